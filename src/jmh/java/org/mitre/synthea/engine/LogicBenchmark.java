@@ -0,0 +1,160 @@
+package org.mitre.synthea.engine;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares testing the conditions of the real module set with compiled Logic against
+ * interpreting the same conditions, over a small generated population.
+ * Run with `./gradlew jmh`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogicBenchmark {
+  @Param({"10"})
+  public int population;
+
+  private Person[] people;
+  private long time;
+  private Logic[] interpreted;
+  private Logic[] compiled;
+
+  /**
+   * Generate the population, and read every guard and transition condition in the
+   * modules twice: once to be interpreted, and once to be compiled.
+   * Conditions that can't be tested against every person (for example, because they
+   * compare attributes that person doesn't have) are left out of both sets.
+   */
+  @Setup
+  public void setup() throws Exception {
+    Config.set("exporter.fhir.export", "false");
+    Config.set("exporter.fhir_stu3.export", "false");
+    Config.set("exporter.fhir_dstu2.export", "false");
+    Config.set("exporter.ccda.export", "false");
+    Config.set("exporter.csv.export", "false");
+    Config.set("exporter.text.export", "false");
+    Config.set("exporter.hospital.fhir.export", "false");
+    Config.set("exporter.practitioner.fhir.export", "false");
+    Config.set("generate.terminology_service_url", "");
+
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.population = population;
+    options.seed = 42L;
+    options.clinicianSeed = 42L;
+    Generator generator = new Generator(options);
+    people = new Person[population];
+    for (int i = 0; i < population; i++) {
+      people[i] = generator.generatePerson(i, 42L + i);
+    }
+    time = options.endTime;
+
+    List<JsonObject> definitions = new ArrayList<>();
+    Utilities.walkAllModules((modulesPath, path) -> {
+      try {
+        String json = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        collectConditions(JsonParser.parseString(json), definitions);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    List<Logic> interpretedList = new ArrayList<>();
+    List<Logic> compiledList = new ArrayList<>();
+    for (JsonObject definition : definitions) {
+      Logic plain = Utilities.getGson().fromJson(definition, Logic.class);
+      Logic fast = Utilities.getGson().fromJson(definition, Logic.class);
+      fast.compile();
+      if (testsCleanly(plain) && testsCleanly(fast)) {
+        interpretedList.add(plain);
+        compiledList.add(fast);
+      }
+    }
+    interpreted = interpretedList.toArray(new Logic[0]);
+    compiled = compiledList.toArray(new Logic[0]);
+    System.out.format("Benchmarking %d of %d module conditions.\n",
+        interpreted.length, definitions.size());
+  }
+
+  private boolean testsCleanly(Logic logic) {
+    try {
+      for (Person person : people) {
+        logic.test(person, time);
+      }
+      return true;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Find the "allow" of every Guard state and the "condition" of every conditional and
+   * complex transition within the given module definition.
+   */
+  private static void collectConditions(JsonElement element, List<JsonObject> definitions) {
+    if (element.isJsonArray()) {
+      for (JsonElement child : (JsonArray) element) {
+        collectConditions(child, definitions);
+      }
+    } else if (element.isJsonObject()) {
+      for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+        String key = entry.getKey();
+        JsonElement value = entry.getValue();
+        if ((key.equals("allow") || key.equals("condition")) && value.isJsonObject()) {
+          definitions.add(value.getAsJsonObject());
+        } else {
+          collectConditions(value, definitions);
+        }
+      }
+    }
+  }
+
+  private int testAll(Logic[] conditions) {
+    int passed = 0;
+    for (Logic logic : conditions) {
+      for (Person person : people) {
+        if (logic.test(person, time)) {
+          passed++;
+        }
+      }
+    }
+    return passed;
+  }
+
+  @Benchmark
+  public int interpreted() {
+    return testAll(interpreted);
+  }
+
+  @Benchmark
+  public int compiled() {
+    return testAll(compiled);
+  }
+}
@@ -23,6 +23,7 @@ public class App {
     System.out.println("Usage: run_synthea [options] [state [city]]");
     System.out.println("Options: [-s seed] [-cs clinicianSeed] [-p populationSize]");
     System.out.println("         [-r referenceDate as YYYYMMDD]");
+    System.out.println("         [-e endDate as YYYYMMDD]");
     System.out.println("         [-g gender] [-a minAge-maxAge]");
     System.out.println("         [-o overflowPopulation]");
     System.out.println("         [-m moduleFileWildcardList]");
@@ -31,7 +32,10 @@ public class App {
     System.out.println("         [-i initialPopulationSnapshotPath]");
     System.out.println("         [-u updatedPopulationSnapshotPath]");
     System.out.println("         [-t updateTimePeriodInDays]");
+    System.out.println("         [--export-only]");
     System.out.println("         [-f fixedRecordPath]");
+    System.out.println("         [--shard k/n]");
+    System.out.println("         [--journal runJournalPath [--resume]]");
     System.out.println("         [--config* value]");
     System.out.println("          * any setting from src/main/resources/synthea.properties");
     System.out.println("Examples:");
@@ -46,6 +50,10 @@ public class App {
     System.out.println("run_synthea -m moduleFilename" + File.pathSeparator + "anotherModule"
         + File.pathSeparator + "module*");
     System.out.println("run_synthea --exporter.baseDirectory \"./output_tx/\" Texas");
+    System.out.println("run_synthea -s 21 -p 1000 -e 20200101 --shard 2/4"
+        + " --exporter.baseDirectory \"./output_shard2/\"");
+    System.out.println("run_synthea -s 21 -p 100000 --journal run.journal --resume");
+    System.out.println("run_synthea -i ./snapshot --export-only --exporter.ccda.export true");
   }
   
   /**
@@ -78,6 +86,11 @@ public class App {
             SimpleDateFormat format = new SimpleDateFormat("YYYYMMDD");
             format.setTimeZone(TimeZone.getTimeZone("UTC"));
             options.referenceTime = format.parse(value).getTime();
+          } else if (currArg.equalsIgnoreCase("-e")) {
+            String value = argsQ.poll();
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            options.endTime = format.parse(value).getTime();
           } else if (currArg.equalsIgnoreCase("-p")) {
             String value = argsQ.poll();
             options.population = Integer.parseInt(value);
@@ -129,7 +142,8 @@ public class App {
             failIfPhysiologyEnabled(currArg);
             File file = new File(value);
             try {
-              if (file.createNewFile()) {
+              if (!file.exists()) {
+                // the snapshot folder is created when the generator starts
                 options.updatedPopulationSnapshotPath = file;
               } else {
                 throw new IOException("File exists");
@@ -175,6 +189,26 @@ public class App {
               throw new FileNotFoundException(String.format(
                   "Specified fixed record file (%s) does not exist", value));
             }
+          } else if (currArg.equalsIgnoreCase("--shard")) {
+            String value = argsQ.poll();
+            String[] values = value.split("/");
+            if (values.length != 2) {
+              throw new Exception("Shard format: k/n, where k is between 1 and n. E.g. 2/4.");
+            }
+            int shard = Integer.parseInt(values[0]);
+            int shardCount = Integer.parseInt(values[1]);
+            if (shardCount < 1 || shard < 1 || shard > shardCount) {
+              throw new Exception("Shard format: k/n, where k is between 1 and n. E.g. 2/4.");
+            }
+            options.shardIndex = shard - 1;
+            options.shardCount = shardCount;
+          } else if (currArg.equalsIgnoreCase("--journal")) {
+            String value = argsQ.poll();
+            options.runJournalPath = new File(value);
+          } else if (currArg.equalsIgnoreCase("--resume")) {
+            options.resume = true;
+          } else if (currArg.equalsIgnoreCase("--export-only")) {
+            options.exportOnly = true;
           } else if (currArg.startsWith("--")) {
             String configSetting;
             String value;
@@ -212,6 +246,19 @@ public class App {
   }
   
   private static boolean validateConfig(Generator.GeneratorOptions options) {
+    if (options.exportOnly && options.initialPopulationSnapshotPath == null) {
+      System.out.println("--export-only requires an initial population snapshot (-i).");
+      return false;
+    }
+    if (options.resume && options.runJournalPath == null) {
+      System.out.println("--resume requires the --journal of the run to resume.");
+      return false;
+    }
+    if (options.runJournalPath != null && (options.initialPopulationSnapshotPath != null
+        || options.updatedPopulationSnapshotPath != null)) {
+      System.out.println("A run --journal can't be used with population snapshots (-i or -u).");
+      return false;
+    }
     if (Config.getAsBoolean("exporter.fhir.transaction_bundle")
             && ! Config.getAsBoolean("exporter.practitioner.fhir.export")
             && ! Config.getAsBoolean("exporter.hospital.fhir.export")) {
@@ -4,19 +4,17 @@ import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FilenameFilter;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Type;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -35,10 +33,13 @@ import org.apache.commons.lang3.StringUtils;
 import org.mitre.synthea.editors.GrowthDataErrorsEditor;
 import org.mitre.synthea.export.CDWExporter;
 import org.mitre.synthea.export.Exporter;
+import org.mitre.synthea.export.FhirGroupExporterR4;
+import org.mitre.synthea.helpers.BoundedExecutor;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.RandomNumberGenerator;
 import org.mitre.synthea.helpers.TransitionMetrics;
 import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.helpers.physiology.SimulationCache;
 import org.mitre.synthea.input.FixedRecord;
 import org.mitre.synthea.input.FixedRecordGroup;
 import org.mitre.synthea.modules.DeathModule;
@@ -70,6 +71,7 @@ public class Generator implements RandomNumberGenerator {
   private boolean onlyAlivePatients;
   private boolean onlyDeadPatients;
   private boolean onlyVeterans;
+  private boolean eventDriven;
   public TransitionMetrics metrics;
   public static String DEFAULT_STATE = "Massachusetts";
   private Exporter.ExporterRuntimeOptions exporterRuntimeOptions;
@@ -82,6 +84,11 @@ public class Generator implements RandomNumberGenerator {
    */
   List<Person> internalStore;
 
+  /** Writes each person to the updated population snapshot as they finish, if there is one. */
+  private PopulationSnapshot.Writer snapshotWriter;
+  private RunJournal journal;
+  private BoundedExecutor exportPool;
+
   /**
    * A filename predicate used to filter a subset of modules. Helpful when testing a particular
    * module. Use "-m filename" on the command line to filter which modules get loaded.
@@ -89,6 +96,8 @@ public class Generator implements RandomNumberGenerator {
   Predicate<String> modulePredicate;
   
   private static final String TARGET_AGE = "target_age";
+  private static final int SNAPSHOT_CHUNK_SIZE =
+      Integer.parseInt(Config.get("generate.snapshot.chunk_size", "1000"));
 
   /**
    * Helper class following the "Parameter Object" pattern.
@@ -116,16 +125,70 @@ public class Generator implements RandomNumberGenerator {
     public File localModuleDir;
     public File fixedRecordPath;
     public List<String> enabledModules;
-    /** File used to initialize a population. */
+    /** Folder used to initialize a population, written by the same version with -u. */
     public File initialPopulationSnapshotPath;
-    /** File used to store a population snapshot. */
+    /** Folder used to store a population snapshot. */
     public File updatedPopulationSnapshotPath;
+    /** Journal of the people finished and the records exported, so the run can be resumed if
+     * it is interrupted. */
+    public File runJournalPath;
+    /** Resume the run recorded in runJournalPath, instead of starting a new one. */
+    public boolean resume = false;
+    /** Export the population loaded from initialPopulationSnapshotPath as it is, with the stop
+     * time it was simulated to, instead of simulating it any further. */
+    public boolean exportOnly = false;
     /** Time period in days to evolve the population loaded from initialPopulationSnapshotPath. A
      *  value of -1 will evolve the population to the current system time.
      */
     public int daysToTravelForward = -1;
+    /** Export only what is new or has changed in the records of the population loaded from
+     * initialPopulationSnapshotPath, since they were last exported. */
+    public boolean deltaExport = Config.getAsBoolean("exporter.delta_export", false);
     /** Reference Time when to start Synthea. By default equal to the current system time. */
     public long referenceTime = seed;
+    /** Time at which the simulation ends. By default equal to the current system time. Shards
+     * of the same population must all use the same end time. */
+    public long endTime = System.currentTimeMillis();
+    /** Zero-based index of the shard of the population to simulate. */
+    public int shardIndex = 0;
+    /** Number of shards the population is split into. Each shard simulates a contiguous range
+     * of person indices, using the same per-person seeds as an unsharded run. */
+    public int shardCount = 1;
+    /** Number of worker threads used to simulate people. Defaults to the number of
+     * available processors. */
+    public int threadPoolSize = defaultThreadPoolSize();
+    /** Maximum number of people queued for simulation per worker thread. Submission blocks
+     * once this many are waiting, so queued work stays proportional to the thread count. */
+    public int queueDepthPerThread =
+        Integer.parseInt(Config.get("generate.thread_pool.queue_depth_per_thread", "4"));
+    /** Number of threads used to export people, separately from the simulation threads.
+     * Zero or less exports each person on the thread that simulated them. */
+    public int exportThreadPoolSize =
+        Integer.parseInt(Config.get("generate.export_pool.size", "0"));
+    /** Maximum number of simulated people waiting to be exported per export thread. The
+     * simulation threads block once this many are waiting, which bounds the memory held by
+     * finished people. */
+    public int exportQueueDepthPerThread =
+        Integer.parseInt(Config.get("generate.export_pool.queue_depth_per_thread", "4"));
+    /** Use a work-stealing pool instead of a fixed thread pool. */
+    public boolean workStealing =
+        Config.getAsBoolean("generate.thread_pool.work_stealing", false);
+    /** Simulate the oldest (most expensive) people first, so the end of a run is not
+     * spent waiting on a few long simulations. Does not change the generated records. */
+    public boolean longestJobFirst =
+        Config.getAsBoolean("generate.scheduling.longest_job_first", false);
+    /** Number of people whose demographics are drawn ahead of time and reordered together
+     * when longestJobFirst is enabled. A value less than 1 reorders the whole population. */
+    public int schedulingWindow =
+        Integer.parseInt(Config.get("generate.scheduling.window", "100000"));
+
+    private static int defaultThreadPoolSize() {
+      int size = Integer.parseInt(Config.get("generate.thread_pool.size", "0"));
+      if (size < 1) {
+        size = Runtime.getRuntime().availableProcessors();
+      }
+      return size;
+    }
   }
   
   /**
@@ -178,11 +241,16 @@ public class Generator implements RandomNumberGenerator {
   public Generator(GeneratorOptions o, Exporter.ExporterRuntimeOptions ero) {
     options = o;
     exporterRuntimeOptions = ero;
+    init();
     if (options.updatedPopulationSnapshotPath != null) {
-      exporterRuntimeOptions.deferExports = true;
-      internalStore = Collections.synchronizedList(new LinkedList<>());
+      // people are written before they are exported, so exports don't need to be deferred
+      try {
+        snapshotWriter = new PopulationSnapshot.Writer(options.updatedPopulationSnapshotPath,
+            SNAPSHOT_CHUNK_SIZE);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
     }
-    init();
   }
 
   private void init() {
@@ -190,13 +258,31 @@ public class Generator implements RandomNumberGenerator {
       options.state = DEFAULT_STATE;
     }
     int stateIndex = Location.getIndex(options.state);
+    if (options.shardCount < 1 || options.shardIndex < 0
+        || options.shardIndex >= options.shardCount) {
+      throw new IllegalArgumentException(String.format("Invalid shard %d of %d",
+          options.shardIndex, options.shardCount));
+    }
     if (Config.getAsBoolean("exporter.cdw.export")) {
+      if (options.shardCount > 1) {
+        // CDW dimension keys are assigned in the order records are exported, so shards
+        // would give the same facts different keys
+        throw new IllegalArgumentException("CDW export can't be used with --shard");
+      }
       CDWExporter.getInstance().setKeyStart((stateIndex * 1_000_000) + 1);
     }
+    if (options.initialPopulationSnapshotPath != null
+        && !PopulationSnapshot.isChunked(options.initialPopulationSnapshotPath)) {
+      // older versions wrote a single file, which can't be read by this version
+      throw new IllegalArgumentException(String.format("Population snapshot %s is a single file "
+          + "from an older version of Synthea. Snapshots are now folders and can only be "
+          + "read by the version that wrote them; regenerate it with -u.",
+          options.initialPopulationSnapshotPath));
+    }
 
     this.random = new Random(options.seed);
     this.timestep = Long.parseLong(Config.get("generate.timestep"));
-    this.stop = System.currentTimeMillis();
+    this.stop = options.endTime;
     this.referenceTime = options.referenceTime;
 
     this.location = new Location(options.state, options.city);
@@ -214,6 +300,7 @@ public class Generator implements RandomNumberGenerator {
     }
 
     this.onlyVeterans = Config.getAsBoolean("generate.veteran_population_override");
+    this.eventDriven = Config.getAsBoolean("generate.event_driven", false);
     this.totalGeneratedPopulation = new AtomicInteger(0);
     this.stats = Collections.synchronizedMap(new HashMap<String, AtomicInteger>());
     this.modulePredicate = getModulePredicate();
@@ -250,6 +337,13 @@ public class Generator implements RandomNumberGenerator {
         locationName));
     System.out.println(String.format("Min Age: %d\nMax Age: %d",
         options.minAge, options.maxAge));
+    if (options.shardCount > 1) {
+      System.out.println(String.format("Shard: %d of %d (people %d to %d)",
+          options.shardIndex + 1, options.shardCount, shardStart() + 1, shardEnd()));
+    }
+    System.out.println(String.format("Threads: %d%s%s", options.threadPoolSize,
+        options.workStealing ? " (work-stealing)" : "",
+        options.longestJobFirst ? " (longest job first)" : ""));
     if (options.gender != null) {
       System.out.println(String.format("Gender: %s", options.gender));
     }
@@ -258,6 +352,8 @@ public class Generator implements RandomNumberGenerator {
       moduleNames.sort(String::compareToIgnoreCase);
       System.out.println("Modules: " + String.join("\n       & ", moduleNames));
       System.out.println(String.format("       > [%d loaded]", moduleNames.size()));
+      System.out.println(String.format("       > [%d submodules skipped, not called]",
+          Module.getUnloadedSubmodulePaths().size()));
     }
 
     if (Config.getAsBoolean("growtherrors", false)) {
@@ -291,73 +387,228 @@ public class Generator implements RandomNumberGenerator {
       Config.set("generate.append_numbers_to_person_names", "false");
     }
 
-    ExecutorService threadPool = Executors.newFixedThreadPool(8);
+    if (options.runJournalPath != null) {
+      openJournal();
+    }
 
-    if (options.initialPopulationSnapshotPath != null) {
-      FileInputStream fis = null;
-      List<Person> initialPopulation = null;
-      try {
-        fis = new FileInputStream(options.initialPopulationSnapshotPath);
-        ObjectInputStream ois = new ObjectInputStream(fis);
-        initialPopulation = (List<Person>) ois.readObject();
-        ois.close();
-      } catch (Exception ex) {
-        System.out.printf("Unable to load population snapshot, error: %s", ex.getMessage());
-      }
-      if (initialPopulation != null && initialPopulation.size() > 0) {
-        // default is to run until current system time.
-        if (options.daysToTravelForward > 0) {
-          stop = initialPopulation.get(0).lastUpdated 
-                  + Utilities.convertTime("days", options.daysToTravelForward);
-        }
-        for (int i = 0; i < initialPopulation.size(); i++) {
+    BoundedExecutor threadPool = createThreadPool();
+    if (options.exportThreadPoolSize > 0) {
+      exportPool = new BoundedExecutor(
+          Executors.newFixedThreadPool(options.exportThreadPoolSize),
+          options.exportThreadPoolSize * Math.max(1, options.exportQueueDepthPerThread));
+    }
+    int start = shardStart();
+    int end = shardEnd();
+    if (options.shardCount > 1) {
+      // jump straight to the seed of the first person in this shard
+      this.random = Utilities.skipAheadRandom(options.seed, start);
+    }
+
+    try {
+      if (options.initialPopulationSnapshotPath != null) {
+        loadChunkedSnapshot(threadPool);
+      } else if (options.longestJobFirst && this.recordGroups == null) {
+        submitLongestJobFirst(threadPool, start, end);
+      } else {
+        // Generate patients up to the specified population size.
+        // Seeds are always drawn here, in index order, so the results do not
+        // depend on the number of threads or the order in which tasks complete.
+        for (int i = start; i < end; i++) {
           final int index = i;
-          final Person p = initialPopulation.get(i);        
-          threadPool.submit(() -> updateRecordExportPerson(p, index));
+          final long seed = this.random.nextLong();
+          if (journal != null && journal.isDone(index)) {
+            continue;
+          }
+          threadPool.submit(() -> generatePerson(index, seed));
         }
       }
-    } else {
-      // Generate patients up to the specified population size.
-      for (int i = 0; i < this.options.population; i++) {
-        final int index = i;
-        final long seed = this.random.nextLong();
-        threadPool.submit(() -> generatePerson(index, seed));
-      }
-    }
 
-    try {
       threadPool.shutdown();
       while (!threadPool.awaitTermination(30, TimeUnit.SECONDS)) {
         System.out.println("Waiting for threads to finish... " + threadPool);
       }
+      if (exportPool != null) {
+        exportPool.shutdown();
+        while (!exportPool.awaitTermination(30, TimeUnit.SECONDS)) {
+          System.out.println("Waiting for exports to finish... " + exportPool);
+        }
+      }
     } catch (InterruptedException e) {
       System.out.println("Generator interrupted. Attempting to shut down associated thread pool.");
       threadPool.shutdownNow();
+      if (exportPool != null) {
+        exportPool.shutdownNow();
+      }
     }
 
-    // Save a snapshot of the generated population using Java Serialization
-    if (options.updatedPopulationSnapshotPath != null) {
-      FileOutputStream fos = null;
+    if (options.shardCount > 1) {
+      // leave the generator in the same state as an unsharded run, so anything drawn
+      // after the population (e.g. the FHIR Group ID) is identical across shards
+      this.random = Utilities.skipAheadRandom(options.seed, options.population);
+    }
+
+    // Finish the last chunk of the population snapshot
+    if (snapshotWriter != null) {
       try {
-        fos = new FileOutputStream(options.updatedPopulationSnapshotPath);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(internalStore);
-        oos.close();
-        fos.close();
-      } catch (Exception ex) {
+        snapshotWriter.close();
+      } catch (IOException ex) {
         System.out.printf("Unable to save population snapshot, error: %s", ex.getMessage());
       }
     }
     Exporter.runPostCompletionExports(this, exporterRuntimeOptions);
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException ex) {
+        System.out.printf("Unable to close run journal, error: %s", ex.getMessage());
+      }
+    }
 
     System.out.printf("Records: total=%d, alive=%d, dead=%d\n", totalGeneratedPopulation.get(),
             stats.get("alive").get(), stats.get("dead").get());
 
+    if (exportPool != null) {
+      System.out.printf("Export queue: threads=%d, max depth=%d/%d, simulation blocked=%dms\n",
+          options.exportThreadPoolSize, exportPool.getMaxOutstanding(), exportPool.getBound(),
+          exportPool.getBlockedMillis());
+    }
+
+    if (SimulationCache.isEnabled()) {
+      SimulationCache.printStats();
+    }
+
     if (this.metrics != null) {
       metrics.printStats(totalGeneratedPopulation.get(), Module.getModules(getModulePredicate()));
     }
   }
 
+  /**
+   * Update the population in a chunked snapshot. Each chunk is read by its own thread, which
+   * submits each person to the thread pool as soon as they are read, so only the people
+   * waiting in the pool are in memory at once.
+   * @param threadPool The pool to submit to.
+   * @throws InterruptedException if interrupted while waiting to submit.
+   */
+  private void loadChunkedSnapshot(BoundedExecutor threadPool) throws InterruptedException {
+    List<File> chunks = PopulationSnapshot.getChunks(options.initialPopulationSnapshotPath);
+    if (chunks.isEmpty()) {
+      System.out.printf("Population snapshot %s is empty\n",
+          options.initialPopulationSnapshotPath);
+      return;
+    }
+    // default is to run until current system time.
+    if (options.daysToTravelForward > 0 && !options.exportOnly) {
+      try {
+        Person first = PopulationSnapshot.readFirst(chunks.get(0));
+        if (first != null) {
+          stop = first.lastUpdated + Utilities.convertTime("days", options.daysToTravelForward);
+        }
+      } catch (IOException ex) {
+        System.out.printf("Unable to load population snapshot, error: %s", ex.getMessage());
+        return;
+      }
+    }
+
+    ExecutorService readers = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(chunks.size(), options.threadPoolSize)));
+    for (File chunk : chunks) {
+      readers.submit(() -> {
+        try {
+          PopulationSnapshot.read(chunk, (person, index) ->
+              threadPool.submit(() -> loadPerson(person, index)));
+        } catch (IOException ex) {
+          System.out.printf("Unable to load population snapshot chunk %s, error: %s\n",
+              chunk, ex.getMessage());
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+    readers.shutdown();
+    try {
+      while (!readers.awaitTermination(30, TimeUnit.SECONDS)) {
+        System.out.println("Waiting for population snapshot to load... " + threadPool);
+      }
+    } catch (InterruptedException ex) {
+      readers.shutdownNow();
+      throw ex;
+    }
+  }
+
+  /**
+   * Submit the population to the thread pool, oldest people first. The seed for each index
+   * is drawn in index order exactly as in the default ordering, and the demographics are
+   * drawn from that seed to find the target age, which determines how many timesteps the
+   * person will be simulated for. Only the seeds and sort keys are kept, the demographics
+   * are drawn again (identically) when the person is generated.
+   * @param threadPool The pool to submit to.
+   * @param first The index of the first person to generate.
+   * @param end The index after the last person to generate.
+   * @throws InterruptedException if interrupted while waiting to submit.
+   */
+  private void submitLongestJobFirst(BoundedExecutor threadPool, int first, int end)
+      throws InterruptedException {
+    int window = options.schedulingWindow;
+    if (window < 1 || window > end - first) {
+      window = Math.max(1, end - first);
+    }
+    long[] seeds = new long[window];
+    long[] order = new long[window];
+    for (int start = first; start < end; start += window) {
+      int count = Math.min(window, end - start);
+      for (int i = 0; i < count; i++) {
+        seeds[i] = this.random.nextLong();
+        int targetAge = (int) randomDemographics(new Random(seeds[i])).get(TARGET_AGE);
+        // sort key: oldest first, ties broken by index
+        order[i] = ((long) (Integer.MAX_VALUE - targetAge) << 32) | i;
+      }
+      Arrays.sort(order, 0, count);
+      for (int i = 0; i < count; i++) {
+        int offset = (int) order[i];
+        final int index = start + offset;
+        final long seed = seeds[offset];
+        if (journal != null && journal.isDone(index)) {
+          continue;
+        }
+        threadPool.submit(() -> generatePerson(index, seed));
+      }
+    }
+  }
+
+  /**
+   * Get the index of the first person simulated by this shard.
+   * @return the first index, inclusive.
+   */
+  private int shardStart() {
+    return (int) ((long) options.population * options.shardIndex / options.shardCount);
+  }
+
+  /**
+   * Get the index after the last person simulated by this shard.
+   * @return the last index, exclusive.
+   */
+  private int shardEnd() {
+    return (int) ((long) options.population * (options.shardIndex + 1) / options.shardCount);
+  }
+
+  /**
+   * Create the pool of worker threads used to simulate people, sized according to
+   * the GeneratorOptions. Submission to the returned executor blocks once
+   * threadPoolSize * queueDepthPerThread tasks are outstanding.
+   * @return the bounded thread pool.
+   */
+  private BoundedExecutor createThreadPool() {
+    int threads = Math.max(1, options.threadPoolSize);
+    ExecutorService executor;
+    if (options.workStealing) {
+      executor = Executors.newWorkStealingPool(threads);
+    } else {
+      executor = Executors.newFixedThreadPool(threads);
+    }
+    int bound = threads * Math.max(1, options.queueDepthPerThread);
+    return new BoundedExecutor(executor, bound);
+  }
+
   /**
    * Imports the fixed demographics records file when using fixed patient
    * demographics.
@@ -499,7 +750,8 @@ public class Generator implements RandomNumberGenerator {
 
         // TODO - export is DESTRUCTIVE when it filters out data
         // this means export must be the LAST THING done with the person
-        Exporter.export(person, finishTime, exporterRuntimeOptions);
+        export(person, index, finishTime,
+            patientMeetsCriteria(isAlive, providerCount, providerMinimum));
       } while (!patientMeetsCriteria(isAlive, providerCount, providerMinimum));
       //repeat while patient doesn't meet criteria
       // if the patient is alive and we want only dead ones => loop & try again
@@ -516,6 +768,87 @@ public class Generator implements RandomNumberGenerator {
     return person;
   }
   
+  /**
+   * Export a person, on the export pool if there is one, committing the export to the run
+   * journal if there is one. Export must be the last thing done with the person.
+   * @param person The person to export.
+   * @param index The index of the person.
+   * @param finishTime Time at which the simulation stopped.
+   * @param last Whether this is the final person for the index, after which it is done.
+   */
+  private void export(Person person, int index, long finishTime, boolean last) {
+    if (exportPool == null) {
+      exportNow(person, index, finishTime, last);
+      return;
+    }
+    if (journal != null) {
+      journal.submitted(index);
+    }
+    try {
+      // blocks while the export queue is full, so finished people can't pile up in memory
+      exportPool.submit(() -> {
+        try {
+          exportNow(person, index, finishTime, last);
+        } catch (Throwable e) {
+          e.printStackTrace();
+          throw e;
+        }
+      });
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private void exportNow(Person person, int index, long finishTime, boolean last) {
+    if (journal == null) {
+      Exporter.export(person, finishTime, exporterRuntimeOptions);
+      return;
+    }
+    String patientId = (String) person.attributes.get(Person.ID);
+    try {
+      boolean exported = journal.export(index, person.seed, patientId,
+          person.alive(finishTime),
+          () -> Exporter.export(person, finishTime, exporterRuntimeOptions));
+      if (!exported && Config.getAsBoolean("exporter.fhir.export")) {
+        // a previous run exported the record, but the Group is only written by this run
+        FhirGroupExporterR4.addPatient(patientId);
+      }
+      if (last) {
+        journal.done(index, person.seed);
+      }
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Start or resume the run journal. Must be called before anything is exported.
+   */
+  private void openJournal() {
+    try {
+      if (options.resume) {
+        journal = RunJournal.resume(options.runJournalPath, options);
+        // records of people that weren't committed may have been written already
+        exporterRuntimeOptions.overwriteFiles = true;
+        System.out.printf("Resuming run: %d of %d people already done.\n",
+            journal.getDoneCount(), shardEnd() - shardStart());
+        // count the records of the people who won't be generated again
+        for (String[] record : journal.getDoneRecords()) {
+          stats.get(record[1]).incrementAndGet();
+          totalGeneratedPopulation.incrementAndGet();
+          if (Config.getAsBoolean("exporter.fhir.export")) {
+            FhirGroupExporterR4.addPatient(record[0]);
+          }
+        }
+      } else {
+        journal = RunJournal.create(options.runJournalPath, options);
+      }
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
   /**
    * Determines if a patient meets the requested criteria.
    * If a patient does not meet the criteria the process will be repeated so a new one is generated
@@ -548,14 +881,41 @@ public class Generator implements RandomNumberGenerator {
     return true;
   }
 
+  /**
+   * Process a person loaded from a population snapshot: either export them as they are, or
+   * update them to the stop time and export them.
+   */
+  private Person loadPerson(Person person, int index) {
+    if (options.exportOnly) {
+      return recordExportPerson(person, index);
+    }
+    return updateRecordExportPerson(person, index);
+  }
+
+  /**
+   * Record the entry and export the record of a person that has already been simulated,
+   * without simulating them any further. The record is exported with the stop time it was
+   * simulated to.
+   */
+  public Person recordExportPerson(Person person, int index) {
+    recordPerson(person, index);
+    long finishTime = person.lastUpdated + timestep;
+    export(person, index, finishTime, true);
+    return person;
+  }
+
   /**
    * Update person record to stop time, record the entry and export record.
    */
   public Person updateRecordExportPerson(Person person, int index) {
+    Long exportedUntil = (Long) person.attributes.get(Person.EXPORTED_UNTIL);
     updatePerson(person);
     recordPerson(person, index);
     long finishTime = person.lastUpdated + timestep;
-    Exporter.export(person, finishTime, exporterRuntimeOptions);
+    if (options.deltaExport && exportedUntil != null) {
+      Exporter.filterForDelta(person, exportedUntil, finishTime);
+    }
+    export(person, index, finishTime, true);
     return person;
   }
 
@@ -589,18 +949,45 @@ public class Generator implements RandomNumberGenerator {
   public void updatePerson(Person person) {
     HealthInsuranceModule healthInsuranceModule = new HealthInsuranceModule();
     EncounterModule encounterModule = new EncounterModule();
+    // when event driven, the time before which each module has nothing to do
+    Map<Module, Long> wakeTimes = eventDriven ? new IdentityHashMap<>() : null;
+    long insuranceWakeTime = Long.MIN_VALUE;
 
+    // Lifecycle rolls for death and the Encounter module reacts to symptoms on every
+    // timestep, so the loop itself never skips a timestep; only idle modules are skipped
     long time = person.lastUpdated;
     while (person.alive(time) && time < stop) {
-      healthInsuranceModule.process(person, time + timestep);
+      if (time + timestep >= insuranceWakeTime) {
+        healthInsuranceModule.process(person, time + timestep);
+        if (eventDriven) {
+          insuranceWakeTime = healthInsuranceModule.nextEventTime(person, time + timestep);
+        }
+      }
       encounterModule.process(person, time);
 
       Iterator<Module> iter = person.currentModules.iterator();
       while (iter.hasNext()) {
         Module module = iter.next();
 
+        if (wakeTimes != null) {
+          Long wakeTime = wakeTimes.get(module);
+          if (wakeTime != null && time < wakeTime) {
+            continue; // nothing can happen in this module yet
+          }
+        }
+
         if (module.process(person, time)) {
           iter.remove(); // this module has completed/terminated.
+          if (wakeTimes != null) {
+            wakeTimes.remove(module);
+          }
+        } else if (wakeTimes != null) {
+          long wakeTime = module.nextEventTime(person, time);
+          if (wakeTime > time + timestep) {
+            wakeTimes.put(module, wakeTime);
+          } else {
+            wakeTimes.remove(module);
+          }
         }
       }
       encounterModule.endEncounterModuleEncounters(person, time);
@@ -787,11 +1174,22 @@ public class Generator implements RandomNumberGenerator {
   public void recordPerson(Person person, int index) {
     long finishTime = person.lastUpdated + timestep;
     boolean isAlive = person.alive(finishTime);
+    // the high-water mark for delta exports, the record is exported up to the same time
+    person.attributes.put(Person.EXPORTED_UNTIL, finishTime);
 
     if (internalStore != null) {
       internalStore.add(person);
     }
 
+    if (snapshotWriter != null) {
+      try {
+        snapshotWriter.write(person, index);
+      } catch (IOException ex) {
+        System.out.printf("Unable to save person %d to population snapshot, error: %s\n",
+            index, ex.getMessage());
+      }
+    }
+
     if (this.metrics != null) {
       metrics.recordStats(person, finishTime, Module.getModules(modulePredicate));
     }
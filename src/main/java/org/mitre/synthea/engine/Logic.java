@@ -1,6 +1,9 @@
 package org.mitre.synthea.engine;
 
 import java.io.Serializable;
+import java.time.Period;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.List;
@@ -22,10 +25,67 @@ import org.mitre.synthea.world.concepts.HealthRecord.Medication;
  * expression. This class is stateless, and calling 'test' on an instance
  * must not modify state as instances of Logic within Modules are shared
  * across the population.
+ *
+ * <p>Modules compile the Logic in their states once they have been loaded. Compiling resolves
+ * operators, units and configuration settings ahead of time, so that testing a condition
+ * does not need to parse strings, look up settings, or allocate. Logic that has not been
+ * compiled gives the same results, interpreting its definition on every test.
  */
 public abstract class Logic implements Serializable {
   public List<String> remarks;
 
+  /**
+   * The numeric comparison operators, resolved from their names when Logic is compiled.
+   * These compare primitive values exactly as Utilities.compare compares numbers.
+   */
+  private enum Operator {
+    LT, LTE, EQ, GTE, GT, NE;
+
+    /**
+     * Resolve an operator by name.
+     * @param operator The name of the operator, such as "&lt;=".
+     * @return the operator, or null if it is not a numeric comparison.
+     */
+    private static Operator of(String operator) {
+      if (operator == null) {
+        return null;
+      }
+      switch (operator) {
+        case "<":
+          return LT;
+        case "<=":
+          return LTE;
+        case "==":
+          return EQ;
+        case ">=":
+          return GTE;
+        case ">":
+          return GT;
+        case "!=":
+          return NE;
+        default:
+          return null;
+      }
+    }
+
+    private boolean test(double lhs, double rhs) {
+      switch (this) {
+        case LT:
+          return lhs < rhs;
+        case LTE:
+          return lhs <= rhs;
+        case EQ:
+          return lhs == rhs;
+        case GTE:
+          return lhs >= rhs;
+        case GT:
+          return lhs > rhs;
+        default:
+          return lhs != rhs;
+      }
+    }
+  }
+
   /**
    * Test whether the logic is true for the given person at the given time.
    * 
@@ -35,6 +95,31 @@ public abstract class Logic implements Serializable {
    */
   public abstract boolean test(Person person, long time);
 
+  /**
+   * Resolve everything about this logic that doesn't depend on the person or the time,
+   * so that it can be tested repeatedly without repeating that work.
+   */
+  public void compile() {
+    // most conditions have nothing to resolve
+  }
+
+  /**
+   * Find the earliest time, at or after the given time, at which this logic could possibly
+   * be true for the given person. Only conditions that depend on nothing but the simulation
+   * time and the person's birthdate (Age and Date) can look ahead, and only once they have been
+   * compiled; every other condition may become true as soon as another module changes the
+   * person, so it returns the given time.
+   * The result is never later than the first time at which test() would return true, so a
+   * caller may skip testing this logic until then without changing the outcome.
+   *
+   * @param person Person to execute logic against
+   * @param time Timestamp to execute logic against
+   * @return the earliest time at which the logic could be true
+   */
+  public long earliestPassTime(Person person, long time) {
+    return time;
+  }
+
   /**
    * Find the most recent entry, of a specific type of HealthRecord.Entry
    * within the patient history. May return null.
@@ -62,6 +147,10 @@ public abstract class Logic implements Serializable {
         break;
       }
     }
+    if (entry == null && person.history instanceof StateHistory) {
+      // older states may have been dropped from the history, but not their entries
+      entry = ((StateHistory) person.history).findDroppedEntry(classType, code);
+    }
     return entry;
   }
 
@@ -85,9 +174,31 @@ public abstract class Logic implements Serializable {
     private Double quantity;
     private String unit;
     private String operator;
+    private ChronoUnit compiledUnit;
+    private Operator compiledOperator;
+    private Period minimumAge;
+
+    @Override
+    public void compile() {
+      int age = leastPassingAge();
+      if (unit.equals("years")) {
+        compiledUnit = ChronoUnit.YEARS;
+        minimumAge = (age > 0) ? Period.ofYears(age) : null;
+      } else if (unit.equals("months")) {
+        compiledUnit = ChronoUnit.MONTHS;
+        minimumAge = (age > 0) ? Period.ofMonths(age) : null;
+      }
+      compiledOperator = Operator.of(operator);
+    }
 
     @Override
     public boolean test(Person person, long time) {
+      if (compiledUnit != null && compiledOperator != null) {
+        int age = (compiledUnit == ChronoUnit.YEARS)
+            ? person.ageInYears(time) : person.ageInMonths(time);
+        return compiledOperator.test(age, quantity);
+      }
+
       double age;
 
       switch (unit) {
@@ -105,6 +216,32 @@ public abstract class Logic implements Serializable {
 
       return Utilities.compare(age, quantity, operator);
     }
+
+    @Override
+    public long earliestPassTime(Person person, long time) {
+      if (minimumAge == null) {
+        return time;
+      }
+      Long wake = person.timeAtAge(minimumAge);
+      return (wake == null) ? time : Math.max(time, wake);
+    }
+
+    /**
+     * Ages are whole numbers of years or months that never decrease, so "at least",
+     * "greater than" and "equal to" can only pass once the age reaches some minimum.
+     * @return the smallest age that could pass, or 0 if any age could.
+     */
+    private int leastPassingAge() {
+      switch (operator) {
+        case ">=":
+        case "==":
+          return (int) Math.ceil(quantity);
+        case ">":
+          return (int) Math.floor(quantity) + 1;
+        default:
+          return 0;
+      }
+    }
   }
   
   /**
@@ -118,9 +255,43 @@ public abstract class Logic implements Serializable {
     private Integer month;
     private DateInput date;
     private String operator;
+    private Operator compiledOperator;
+    private long yearStart;
+    private long yearEnd;
+    private long dateTime;
+    private long minimumTime = Long.MIN_VALUE;
+
+    @Override
+    public void compile() {
+      compiledOperator = Operator.of(operator);
+      minimumTime = minimumTime();
+      Calendar testDate = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+      testDate.clear();
+      if (year != null) {
+        testDate.set(year, Calendar.JANUARY, 1);
+        yearStart = testDate.getTimeInMillis();
+        testDate.set(year + 1, Calendar.JANUARY, 1);
+        yearEnd = testDate.getTimeInMillis();
+      } else if (date != null) {
+        testDate.set(date.year, date.month - 1, date.day, date.hour, date.minute, date.second);
+        testDate.set(Calendar.MILLISECOND, date.millisecond);
+        dateTime = testDate.getTimeInMillis();
+      }
+    }
 
     @Override
     public boolean test(Person person, long time) {
+      if (compiledOperator != null) {
+        if (year != null) {
+          // compare the year the time falls in against the year, without a Calendar
+          int currentyear = (time < yearStart) ? year - 1 : (time >= yearEnd) ? year + 1 : year;
+          return compiledOperator.test(currentyear, year);
+        } else if (month != null) {
+          return compiledOperator.test(monthOf(time), month);
+        } else if (date != null) {
+          return compiledOperator.test(time, dateTime);
+        }
+      }
       if (year != null) {
         int currentyear = Utilities.getYear(time);
         return Utilities.compare(currentyear, year, operator);
@@ -138,6 +309,51 @@ public abstract class Logic implements Serializable {
             + "not currently supported in Date logic.");
       }
     }
+
+    @Override
+    public long earliestPassTime(Person person, long time) {
+      return Math.max(time, minimumTime);
+    }
+
+    /**
+     * Get the month of the year that the given time falls in, in UTC, from 1 to 12.
+     * Equivalent to Utilities.getMonth, using the days-to-civil-date algorithm from
+     * http://howardhinnant.github.io/date_algorithms.html so that no Calendar is needed.
+     */
+    private static int monthOf(long time) {
+      long days = Math.floorDiv(time, 86400000L) + 719468;
+      long era = Math.floorDiv(days, 146097);
+      long dayOfEra = days - era * 146097;
+      long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+      long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+      long monthIndex = (5 * dayOfYear + 2) / 153;
+      return (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+    }
+
+    /**
+     * Years and exact dates only move forward, so "at least", "greater than" and "equal to"
+     * can only pass from some instant onward. Months wrap around every year and are
+     * never bounded.
+     * @return the first instant that could pass, or Long.MIN_VALUE if any instant could.
+     */
+    private long minimumTime() {
+      if (!operator.equals(">=") && !operator.equals(">") && !operator.equals("==")) {
+        return Long.MIN_VALUE;
+      }
+      Calendar testDate = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+      testDate.clear();
+      if (year != null) {
+        testDate.set(operator.equals(">") ? year + 1 : year, Calendar.JANUARY, 1);
+        return testDate.getTimeInMillis();
+      } else if (date != null) {
+        testDate.set(date.year, date.month - 1, date.day, date.hour, date.minute, date.second);
+        testDate.set(Calendar.MILLISECOND, date.millisecond);
+        long testTime = testDate.getTimeInMillis();
+        return operator.equals(">") ? testTime + 1 : testTime;
+      } else {
+        return Long.MIN_VALUE;
+      }
+    }
   }
 
   /**
@@ -176,9 +392,18 @@ public abstract class Logic implements Serializable {
     private String symptom;
     private String operator;
     private double value;
+    private Operator compiledOperator;
+
+    @Override
+    public void compile() {
+      compiledOperator = Operator.of(operator);
+    }
 
     @Override
     public boolean test(Person person, long time) {
+      if (compiledOperator != null) {
+        return compiledOperator.test(person.getSymptom(symptom), value);
+      }
       return Utilities.compare((double) person.getSymptom(symptom), value, operator);
     }
   }
@@ -199,6 +424,12 @@ public abstract class Logic implements Serializable {
     private String referencedByAttribute;
     private Object value;
     private Code valueCode;
+    private Boolean duplicateData;
+
+    @Override
+    public void compile() {
+      duplicateData = Config.getAsBoolean("exporter.split_records.duplicate_data", false);
+    }
 
     @Override
     public boolean test(Person person, long time) {
@@ -224,8 +455,8 @@ public abstract class Logic implements Serializable {
             // then look in the module history.
             last = (HealthRecord.Observation)
                 findEntryFromHistory(person, HealthRecord.Observation.class, code);
-            if (Config.getAsBoolean("exporter.split_records.duplicate_data", false)) {
-              person.record.currentEncounter(time).observations.add(last);
+            if (duplicateData(duplicateData)) {
+              person.record.currentEncounter(time).addObservation(last);
             }
           }
           if (last != null) {
@@ -290,6 +521,29 @@ public abstract class Logic implements Serializable {
    */
   private abstract static class GroupedCondition extends Logic {
     protected Collection<Logic> conditions;
+    protected Logic[] compiledConditions;
+
+    @Override
+    public void compile() {
+      Logic[] compiled = conditions.toArray(new Logic[conditions.size()]);
+      for (Logic condition : compiled) {
+        condition.compile();
+      }
+      compiledConditions = compiled;
+    }
+
+    /**
+     * Count how many of the conditions are true. Every condition is tested.
+     */
+    protected int countTrue(Person person, long time) {
+      int count = 0;
+      for (Logic condition : compiledConditions) {
+        if (condition.test(person, time)) {
+          count++;
+        }
+      }
+      return count;
+    }
   }
   
   /**
@@ -300,8 +554,25 @@ public abstract class Logic implements Serializable {
   public static class And extends GroupedCondition {
     @Override
     public boolean test(Person person, long time) {
+      if (compiledConditions != null) {
+        for (Logic condition : compiledConditions) {
+          if (!condition.test(person, time)) {
+            return false;
+          }
+        }
+        return true;
+      }
       return conditions.stream().allMatch(c -> c.test(person, time));
     }
+
+    @Override
+    public long earliestPassTime(Person person, long time) {
+      long earliest = time;
+      for (Logic condition : conditions) {
+        earliest = Math.max(earliest, condition.earliestPassTime(person, time));
+      }
+      return earliest;
+    }
   }
 
   /**
@@ -312,8 +583,28 @@ public abstract class Logic implements Serializable {
   public static class Or extends GroupedCondition {
     @Override
     public boolean test(Person person, long time) {
+      if (compiledConditions != null) {
+        for (Logic condition : compiledConditions) {
+          if (condition.test(person, time)) {
+            return true;
+          }
+        }
+        return false;
+      }
       return conditions.stream().anyMatch(c -> c.test(person, time));
     }
+
+    @Override
+    public long earliestPassTime(Person person, long time) {
+      long earliest = Long.MAX_VALUE;
+      for (Logic condition : conditions) {
+        earliest = Math.min(earliest, condition.earliestPassTime(person, time));
+        if (earliest <= time) {
+          return time;
+        }
+      }
+      return earliest;
+    }
   }
 
   /**
@@ -324,6 +615,11 @@ public abstract class Logic implements Serializable {
   public static class Not extends Logic {
     private Logic condition;
 
+    @Override
+    public void compile() {
+      condition.compile();
+    }
+
     @Override
     public boolean test(Person person, long time) {
       return !condition.test(person, time);
@@ -344,8 +640,26 @@ public abstract class Logic implements Serializable {
 
     @Override
     public boolean test(Person person, long time) {
+      if (compiledConditions != null) {
+        return countTrue(person, time) >= minimum;
+      }
       return conditions.stream().filter(c -> c.test(person, time)).count() >= minimum;
     }
+
+    @Override
+    public long earliestPassTime(Person person, long time) {
+      if (minimum <= 0 || minimum > conditions.size()) {
+        return time;
+      }
+      // the minimum-th condition to become possible is the first time enough can be true
+      long[] times = new long[conditions.size()];
+      int i = 0;
+      for (Logic condition : conditions) {
+        times[i++] = condition.earliestPassTime(person, time);
+      }
+      Arrays.sort(times);
+      return times[minimum - 1];
+    }
   }
 
   /**
@@ -358,6 +672,9 @@ public abstract class Logic implements Serializable {
 
     @Override
     public boolean test(Person person, long time) {
+      if (compiledConditions != null) {
+        return countTrue(person, time) <= maximum;
+      }
       return conditions.stream().filter(c -> c.test(person, time)).count() <= maximum;
     }
   }
@@ -399,6 +716,13 @@ public abstract class Logic implements Serializable {
     private ExactWithUnit<Double> within;
     private Long window;
 
+    @Override
+    public void compile() {
+      if (within != null) {
+        window = Utilities.convertTime(within.unit, within.quantity);
+      }
+    }
+
     @Override
     public boolean test(Person person, long time) {
       Long sinceTime = null;
@@ -422,6 +746,23 @@ public abstract class Logic implements Serializable {
   private abstract static class ActiveLogic extends Logic {
     protected List<Code> codes;
     protected String referencedByAttribute;
+    protected Boolean duplicateData;
+
+    @Override
+    public void compile() {
+      duplicateData = Config.getAsBoolean("exporter.split_records.duplicate_data", false);
+    }
+  }
+
+  /**
+   * Whether entries found only in the module history should be copied into the current
+   * encounter, as resolved when the logic was compiled, or from the configuration otherwise.
+   */
+  private static boolean duplicateData(Boolean compiled) {
+    if (compiled != null) {
+      return compiled;
+    }
+    return Config.getAsBoolean("exporter.split_records.duplicate_data", false);
   }
 
   /**
@@ -447,7 +788,7 @@ public abstract class Logic implements Serializable {
             HealthRecord.Entry condition = (HealthRecord.Entry)
                 findEntryFromHistory(person, HealthRecord.Entry.class, code);
             if (condition != null && condition.stop == 0L) {
-              if (Config.getAsBoolean("exporter.split_records.duplicate_data", false)) {
+              if (duplicateData(duplicateData)) {
                 person.record.currentEncounter(time).conditions.add(condition);
               }
               return true;
@@ -486,7 +827,7 @@ public abstract class Logic implements Serializable {
             HealthRecord.Medication medication = (HealthRecord.Medication)
                 findEntryFromHistory(person, HealthRecord.Medication.class, code);
             if (medication != null && medication.stop == 0L) {
-              if (Config.getAsBoolean("exporter.split_records.duplicate_data", false)) {
+              if (duplicateData(duplicateData)) {
                 person.record.currentEncounter(time).medications.add(medication);
               }
               return true;
@@ -525,7 +866,7 @@ public abstract class Logic implements Serializable {
             HealthRecord.CarePlan carePlan = (HealthRecord.CarePlan)
                 findEntryFromHistory(person, HealthRecord.CarePlan.class, code);
             if (carePlan != null && carePlan.stop == 0L) {
-              if (Config.getAsBoolean("exporter.split_records.duplicate_data", false)) {
+              if (duplicateData(duplicateData)) {
                 person.record.currentEncounter(time).careplans.add(carePlan);
               }
               return true;
@@ -555,9 +896,18 @@ public abstract class Logic implements Serializable {
     private org.mitre.synthea.world.concepts.VitalSign vitalSign;
     private String operator;
     private double value;
+    private Operator compiledOperator;
+
+    @Override
+    public void compile() {
+      compiledOperator = Operator.of(operator);
+    }
 
     @Override
     public boolean test(Person person, long time) {
+      if (compiledOperator != null) {
+        return compiledOperator.test(person.getVitalSign(vitalSign, time), value);
+      }
       return Utilities.compare(person.getVitalSign(vitalSign, time), value, operator);
     }
   }
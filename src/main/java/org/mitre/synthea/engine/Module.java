@@ -20,21 +20,27 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import org.mitre.synthea.helpers.Attributes;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.modules.CardiovascularDiseaseModule;
@@ -42,6 +48,7 @@ import org.mitre.synthea.modules.EncounterModule;
 import org.mitre.synthea.modules.LifecycleModule;
 import org.mitre.synthea.modules.QualityOfLifeModule;
 import org.mitre.synthea.modules.WeightLossModule;
+import org.mitre.synthea.world.agents.AttributeRegistry;
 import org.mitre.synthea.world.agents.Person;
 
 /**
@@ -51,6 +58,10 @@ import org.mitre.synthea.world.agents.Person;
  * and the list of modules is shared between the generated population. Because we share modules 
  * across the population, it is important that States are cloned before they are executed. 
  * This keeps the "master" copy of the module clean.
+ *
+ * <p>A loaded Module is never modified, so a single instance of each is handed to every person.
+ * Everything that is specific to one person lives in the cloned States of that person's
+ * history, which is stored in the person's attributes under the module name.
  */
 public class Module implements Cloneable, Serializable {
 
@@ -62,6 +73,8 @@ public class Module implements Cloneable, Serializable {
       .build();
 
   private static final Map<String, ModuleSupplier> modules = loadModules();
+  /** Modules whose submodules (and their submodules) have all been loaded. */
+  private static final Set<Module> submodulesLoaded = ConcurrentHashMap.newKeySet();
   
   private static Map<String, ModuleSupplier> loadModules() {
     Map<String, ModuleSupplier> retVal = new ConcurrentHashMap<>();
@@ -72,6 +85,8 @@ public class Module implements Cloneable, Serializable {
     retVal.put("Cardiovascular Disease", new ModuleSupplier(new CardiovascularDiseaseModule()));
     retVal.put("Quality Of Life", new ModuleSupplier(new QualityOfLifeModule()));
     retVal.put("Weight Loss", new ModuleSupplier(new WeightLossModule()));
+    // give the attributes used by the Java modules their own slots on every Person
+    AttributeRegistry.registerAll(Attributes.getJavaModuleInventory().keySet());
 
     Properties moduleOverrides = getModuleOverrides();
 
@@ -79,7 +94,13 @@ public class Module implements Cloneable, Serializable {
       URI modulesURI = Module.class.getClassLoader().getResource("modules").toURI();
       fixPathFromJar(modulesURI);
       Path modulesPath = Paths.get(modulesURI);
-      submoduleCount = walkModuleTree(modulesPath, retVal, moduleOverrides, false);
+      String moduleCache = Config.get("generate.module_cache", "");
+      if (moduleCache.trim().isEmpty()) {
+        submoduleCount = walkModuleTree(modulesPath, retVal, moduleOverrides, false);
+      } else {
+        submoduleCount = loadCachedModuleTree(modulesPath, retVal, moduleOverrides,
+            new File(moduleCache));
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -106,6 +127,59 @@ public class Module implements Cloneable, Serializable {
     return overrides;
   }
 
+  /**
+   * Load every module under the given folder from the module cache, if the cache is up to
+   * date. Otherwise load every module from JSON and rebuild the cache.
+   * @return the number of submodules.
+   */
+  private static int loadCachedModuleTree(
+          Path modulesPath,
+          Map<String, ModuleSupplier> retVal,
+          Properties overrides,
+          File cache)
+          throws Exception {
+    String fingerprint = ModuleCache.fingerprint(modulesPath, Config.get("module_override"));
+    Map<String, Module> cached = ModuleCache.read(cache, fingerprint);
+    int submoduleCount = 0;
+    if (cached != null) {
+      for (Entry<String, Module> entry : cached.entrySet()) {
+        Module module = entry.getValue();
+        if (module.submodule) {
+          submoduleCount++;
+        }
+        retVal.put(entry.getKey(), new ModuleSupplier(module.submodule, entry.getKey(),
+            () -> module));
+      }
+      System.out.format("Loaded %d modules from cache %s\n", cached.size(), cache);
+      return submoduleCount;
+    }
+
+    Map<String, ModuleSupplier> loaded = new HashMap<String, ModuleSupplier>();
+    submoduleCount = walkModuleTree(modulesPath, loaded, overrides, false);
+    Map<String, Module> modules = new HashMap<String, Module>();
+    boolean complete = true;
+    for (Entry<String, ModuleSupplier> entry : loaded.entrySet()) {
+      try {
+        modules.put(entry.getKey(), entry.getValue().get());
+      } catch (RuntimeException e) {
+        // the fault is reported again if the module is used
+        complete = false;
+      }
+    }
+    retVal.putAll(loaded);
+    if (complete) {
+      try {
+        ModuleCache.write(cache, fingerprint, modules);
+        System.out.format("Wrote %d modules to cache %s\n", modules.size(), cache);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    } else {
+      System.out.format("Not writing module cache %s, some modules failed to load.\n", cache);
+    }
+    return submoduleCount;
+  }
+
   private static int walkModuleTree(
           Path modulesPath,
           Map<String, ModuleSupplier> retVal, 
@@ -230,15 +304,56 @@ public class Module implements Cloneable, Serializable {
   public static List<Module> getModules(Predicate<String> pathPredicate) {
     List<Module> list = new ArrayList<Module>();
     modules.forEach((k, v) -> {
-      if (v.submodule) {
-        v.get(); // ensure submodules get loaded
-      } else if (v.core || pathPredicate.test(v.path)) {
+      if (!v.submodule && (v.core || pathPredicate.test(v.path))) {
         list.add(v.get());
       }
     });
+    for (Module module : list) {
+      if (!submodulesLoaded.contains(module)) {
+        loadSubmodules(module);
+      }
+    }
     return list;
   }
 
+  /**
+   * Load every submodule that the given module calls, directly or through other submodules,
+   * so that submodules which no enabled module can reach are never loaded.
+   */
+  private static void loadSubmodules(Module module) {
+    Set<Module> visited = new HashSet<Module>();
+    Deque<Module> pending = new ArrayDeque<Module>();
+    visited.add(module);
+    pending.add(module);
+    while (!pending.isEmpty()) {
+      for (String path : pending.remove().getSubmodulePaths()) {
+        ModuleSupplier supplier = modules.get(path);
+        if (supplier != null) {
+          Module submodule = supplier.get();
+          if (visited.add(submodule)) {
+            pending.add(submodule);
+          }
+        }
+      }
+    }
+    submodulesLoaded.add(module);
+  }
+
+  /**
+   * Get the paths of the submodules that have not been loaded, because none of the modules
+   * returned by getModules call them.
+   * @return the paths, in no particular order.
+   */
+  public static List<String> getUnloadedSubmodulePaths() {
+    List<String> paths = new ArrayList<String>();
+    modules.forEach((k, v) -> {
+      if (v.submodule && !v.isLoaded()) {
+        paths.add(k);
+      }
+    });
+    return paths;
+  }
+
   /**
    * Get a module by path.
    * @param path
@@ -256,6 +371,10 @@ public class Module implements Cloneable, Serializable {
   public Double gmfVersion;
   public List<String> remarks;
   private Map<String, State> states;
+  /** The states of this module, indexed by the targets of their compiled transitions. */
+  private State[] stateTable;
+  /** The paths of the submodules called by the states of this module. */
+  private List<String> submodulePaths;
 
   protected Module() {
     // no-args constructor only allowed to be used by subclasses
@@ -289,28 +408,51 @@ public class Module implements Cloneable, Serializable {
     }
 
     JsonObject jsonStates = definition.get("states").getAsJsonObject();
-    states = new ConcurrentHashMap<String, State>();
+    Map<String, State> loadedStates = new HashMap<String, State>();
     for (Entry<String, JsonElement> entry : jsonStates.entrySet()) {
       State state = State.build(this, entry.getKey(), entry.getValue().getAsJsonObject());
-      states.put(entry.getKey(), state);
+      loadedStates.put(entry.getKey(), state);
     }
+    states = Collections.unmodifiableMap(loadedStates);
+    compile();
   }
 
   /**
-   * Clone this module. Never provide the original.
+   * Number the states of this module and resolve every transition to the number of its
+   * destination, so that process() steps from state to state without looking up names.
    */
-  public Module clone() {
-    Module clone = new Module();
-    clone.name = this.name;
-    clone.submodule = this.submodule;
-    clone.remarks = this.remarks;
-    if (this.states != null) {
-      clone.states = new ConcurrentHashMap<String, State>();
-      for (String key : this.states.keySet()) {
-        clone.states.put(key, this.states.get(key).clone());
+  private void compile() {
+    Map<String, Integer> stateIndexes = new HashMap<String, Integer>();
+    stateTable = new State[states.size()];
+    for (State state : states.values()) {
+      stateIndexes.put(state.name, stateIndexes.size());
+      stateTable[stateIndexes.get(state.name)] = state;
+    }
+    Set<String> called = new TreeSet<String>();
+    for (State state : stateTable) {
+      state.compile(stateIndexes);
+      if (state instanceof State.CallSubmodule) {
+        called.add(((State.CallSubmodule) state).getSubmodule());
       }
     }
-    return clone;
+    submodulePaths = Collections.unmodifiableList(new ArrayList<String>(called));
+  }
+
+  /**
+   * Get the paths of the submodules this module calls, as used by getModuleByPath.
+   * @return the paths, or an empty list if this module calls no submodules or is a
+   *     non-GMF module.
+   */
+  public List<String> getSubmodulePaths() {
+    return submodulePaths == null ? Collections.emptyList() : submodulePaths;
+  }
+
+  /**
+   * Modules are immutable once loaded and only ever executed through clones of their
+   * States, so the shared instance is returned rather than a copy.
+   */
+  public Module clone() {
+    return this;
   }
 
   /**
@@ -330,7 +472,7 @@ public class Module implements Cloneable, Serializable {
     person.history = null;
     // what current state is this person in?
     if (!person.attributes.containsKey(this.name)) {
-      person.history = new LinkedList<State>();
+      person.history = new StateHistory();
       person.history.add(initialState());
       person.attributes.put(this.name, person.history);
     }
@@ -344,12 +486,14 @@ public class Module implements Cloneable, Serializable {
     // process the current state,
     // looping until module is finished,
     // probably more than one state
-    String nextStateName = null;
     while (current.run(person, time)) {
       Long exited = current.exited;      
-      nextStateName = current.transition(person, time);
-      // System.out.println(" Transitioning to " + nextStateName);
-      current = states.get(nextStateName).clone(); // clone the state so we don't dirty the original
+      int next = current.transitionIndex(person, time);
+      if (next == Transition.UNKNOWN_STATE) {
+        throw new IllegalStateException(String.format("%s: state '%s' transitions to a state "
+            + "that does not exist in the module", this.name, current.name));
+      }
+      current = stateTable[next].clone(); // clone the state so we don't dirty the original
       person.history.add(0, current);
       if (exited != null && exited < time) {
         // stop if the patient died in the meantime...
@@ -368,6 +512,42 @@ public class Module implements Cloneable, Serializable {
     return (current instanceof State.Terminal);
   }
 
+  /**
+   * Get the earliest time at which processing this Module for the given Person could have any
+   * effect, assuming it was just processed at the given time. Modules parked in a Delay (or
+   * any other Delayable state) cannot progress until the delay expires, so the simulation may
+   * skip processing them until then. Likewise a Guard whose condition is bounded by an Age or
+   * Date cannot pass before that age or date. Any other state may progress on any timestep.
+   * Java modules that do work every timestep should not override this.
+   *
+   * @param person
+   *          : the person being simulated
+   * @param time
+   *          : the time at which this module was last processed
+   * @return the earliest time this module needs to be processed again. A value less than or
+   *         equal to the next timestep means the module must be processed every timestep.
+   */
+  @SuppressWarnings("unchecked")
+  public long nextEventTime(Person person, long time) {
+    if (states == null) {
+      return time;
+    }
+    List<State> history = (List<State>) person.attributes.get(this.name);
+    if (history == null || history.isEmpty()) {
+      return time;
+    }
+    State current = history.get(0);
+    if (current instanceof State.Delayable) {
+      Long next = ((State.Delayable) current).next;
+      if (next != null) {
+        return next;
+      }
+    } else if (current instanceof State.Guard) {
+      return ((State.Guard) current).earliestPassTime(person, time);
+    }
+    return time;
+  }
+
   private State initialState() {
     return states.get("Initial").clone(); // all Initial states have name Initial
   }
@@ -403,7 +583,7 @@ public class Module implements Cloneable, Serializable {
     public final boolean submodule;
     public final String path;
 
-    private boolean loaded;
+    private volatile boolean loaded;
     private Callable<Module> loader;
     private Module module;
     private Throwable fault;
@@ -436,8 +616,26 @@ public class Module implements Cloneable, Serializable {
       loader = null;
     }
 
+    /**
+     * Whether the module has been loaded (or failed to load).
+     */
+    public boolean isLoaded() {
+      return loaded;
+    }
+
     @Override
-    public synchronized Module get() {
+    public Module get() {
+      if (!loaded) {
+        load();
+      }
+      if (fault != null) {
+        throw new RuntimeException(fault);
+      }
+      // modules are shared between the population, see Module.clone()
+      return module;
+    }
+
+    private synchronized void load() {
       if (!loaded) {
         try {
           module = loader.call();
@@ -449,10 +647,6 @@ public class Module implements Cloneable, Serializable {
           loader = null;
         }
       }
-      if (fault != null) {
-        throw new RuntimeException(fault);
-      }
-      return module.clone();
     }
   }
 }
@@ -0,0 +1,183 @@
+package org.mitre.synthea.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.Utilities;
+
+/**
+ * A binary cache of the fully loaded generic modules, so that runs after the first can skip
+ * reading, overriding and parsing the module JSON. Modules, including their submodules and
+ * lookup tables, are written with Java serialization, after a header holding a fingerprint
+ * of everything the loaded modules were built from: the module and lookup table files, the
+ * module override file and the settings that are read while loading. A cache whose
+ * fingerprint doesn't match, or that can't be read for any other reason, is ignored and
+ * rebuilt.
+ */
+final class ModuleCache {
+  private static final String MAGIC = "SYNTHEA-MODULE-CACHE";
+  /** Change whenever the contents of the cache change in a way serialization can't detect. */
+  private static final int VERSION = 1;
+
+  private ModuleCache() {}
+
+  /**
+   * Compute the fingerprint of the modules under the given folder.
+   * @param modulesPath The folder of module JSON files.
+   * @param overrideFile The module override file, or null if there isn't one.
+   * @return a hex string that changes whenever any of the module sources change.
+   * @throws IOException if any of the files can't be read.
+   */
+  static String fingerprint(Path modulesPath, String overrideFile) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    update(digest, MAGIC + VERSION);
+    update(digest, Utilities.SYNTHEA_VERSION);
+    update(digest, String.valueOf(Module.GMF_VERSION));
+    // settings that are read while the modules are loaded
+    update(digest, Config.get("generate.lookup_tables", ""));
+    update(digest, Config.get("exporter.split_records.duplicate_data", ""));
+
+    addFiles(digest, modulesPath);
+    URL lookupTables = Module.class.getClassLoader()
+        .getResource(Config.get("generate.lookup_tables", ""));
+    if (lookupTables != null && "file".equals(lookupTables.getProtocol())) {
+      Path lookupTablesPath;
+      try {
+        lookupTablesPath = Paths.get(lookupTables.toURI());
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+      if (!lookupTablesPath.startsWith(modulesPath)) {
+        addFiles(digest, lookupTablesPath);
+      }
+    }
+    if (overrideFile != null && !overrideFile.trim().isEmpty()) {
+      update(digest, overrideFile);
+      digest.update(Files.readAllBytes(Paths.get(overrideFile)));
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Add the name and contents of every file under the given folder to the digest,
+   * in a fixed order.
+   */
+  private static void addFiles(MessageDigest digest, Path folder) throws IOException {
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(folder, Integer.MAX_VALUE)) {
+      files = walk.filter(Files::isRegularFile)
+          .sorted((a, b) -> relativeName(folder, a).compareTo(relativeName(folder, b)))
+          .collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      byte[] contents = Files.readAllBytes(file);
+      update(digest, relativeName(folder, file) + ":" + contents.length);
+      digest.update(contents);
+    }
+  }
+
+  private static String relativeName(Path folder, Path file) {
+    return folder.relativize(file).toString().replace("\\", "/");
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    digest.update(value.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+  }
+
+  /**
+   * Read the modules from the cache file.
+   * @param cache The cache file.
+   * @param fingerprint The fingerprint of the current module sources.
+   * @return the modules by path, or null if the cache doesn't exist, is out of date or
+   *     can't be read.
+   */
+  @SuppressWarnings("unchecked")
+  static Map<String, Module> read(File cache, String fingerprint) {
+    if (!cache.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(cache)))) {
+      if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION
+          || !fingerprint.equals(in.readUTF())) {
+        System.out.format("Module cache %s is out of date.\n", cache);
+        return null;
+      }
+      ObjectInputStream objects = new ObjectInputStream(in);
+      return (Map<String, Module>) objects.readObject();
+    } catch (Exception e) {
+      // most likely written by a different version of the classes
+      System.out.format("Unable to read module cache %s: %s\n", cache, e);
+      return null;
+    }
+  }
+
+  /**
+   * Write the modules to the cache file. The file is replaced in one step, so that other
+   * processes starting at the same time never read a partly written cache.
+   * @param cache The cache file.
+   * @param fingerprint The fingerprint of the current module sources.
+   * @param modules The loaded modules, by path.
+   * @throws IOException if the cache can't be written.
+   */
+  static void write(File cache, String fingerprint, Map<String, Module> modules)
+      throws IOException {
+    File folder = cache.getAbsoluteFile().getParentFile();
+    folder.mkdirs();
+    File temp = File.createTempFile(cache.getName(), ".tmp", folder);
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)))) {
+        out.writeUTF(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(fingerprint);
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+        objects.writeObject(new LinkedHashMap<String, Module>(modules));
+        objects.flush();
+      }
+      try {
+        Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+}
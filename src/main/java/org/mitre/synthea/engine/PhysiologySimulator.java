@@ -18,6 +18,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.xml.stream.XMLStreamException;
 
 import org.apache.commons.lang3.ArrayUtils;
@@ -54,17 +55,44 @@ public class PhysiologySimulator {
   private static final URL MODELS_RESOURCE = ClassLoader.getSystemClassLoader()
       .getResource("physiology/models");
   private static final Map<String, Class<?>> SOLVER_CLASSES;
-  private static Map<String, Model> MODEL_CACHE;
+  private static final Map<String, Model> MODEL_CACHE = new ConcurrentHashMap<String, Model>();
+  /** Initialized interpreters and solvers for each thread, by model, solver and step size. */
+  private static final ThreadLocal<Map<String, Engine>> ENGINES =
+      ThreadLocal.withInitial(HashMap::new);
   private static Path SBML_PATH;
   private static Path OUTPUT_PATH = Paths.get("output", "physiology");
   
   private final Model model;
-  private final SBMLinterpreter interpreter;
-  private final AbstractDESSolver solver;
+  private final String solverName;
+  private final double stepSize;
+  private final String engineKey;
   private final String[] modelFields;
   private final double[] modelDefaults;
   private final double simDuration;
 
+  /**
+   * An interpreter and solver for one model, which can only be used by one thread at a time.
+   * Building the interpreter is expensive, so each thread keeps the ones it has built and
+   * reinitializes them before every run.
+   */
+  private static class Engine {
+    private final SBMLinterpreter interpreter;
+    private final AbstractDESSolver solver;
+    private final String[] modelFields;
+    private final double[] modelDefaults;
+
+    private Engine(Model model, String solverName, double stepSize) {
+      // The model is shared between threads, so only build one interpreter from it at a time
+      synchronized (model) {
+        interpreter = getInterpreter(model);
+      }
+      solver = getSolver(solverName);
+      solver.setStepSize(stepSize);
+      modelFields = interpreter.getIdentifiers().clone();
+      modelDefaults = interpreter.getInitialValues().clone();
+    }
+  }
+
   /** POJO configuration for the simulation. **/
   public static class SimConfig {
     private String name;
@@ -156,9 +184,6 @@ public class PhysiologySimulator {
     } catch (URISyntaxException ex) {
       throw new RuntimeException(ex);
     }
-    
-    // Initialize our model cache
-    MODEL_CACHE = new HashMap<String, Model>();
   }
   
   /**
@@ -187,32 +212,58 @@ public class PhysiologySimulator {
   public PhysiologySimulator(String modelPath, String solverName, double stepSize,
       double simDuration) {
     
-    // Get the model from cache if it has already been loaded
-    if (MODEL_CACHE.containsKey(modelPath)) {
-      model = MODEL_CACHE.get(modelPath);
-    } else {
-      // Load and instantiate the model from the SBML file
-      Path modelFilepath = Paths.get(SBML_PATH.toString(), modelPath);
-      SBMLReader reader = new SBMLReader();
-      File inputFile = new File(modelFilepath.toString());
-      SBMLDocument doc;
-      try {
-        doc = reader.readSBML(inputFile);
-      } catch (IOException | XMLStreamException ex) {
-        throw new RuntimeException(ex);
-      }
-      model = doc.getModel();
-      
-      // Add the loaded model to the cache so we don't need to load it again
-      MODEL_CACHE.put(modelPath, model);
-    }
-    interpreter = getInterpreter(model);
-    solver = getSolver(solverName);
-    solver.setStepSize(stepSize);
-    modelFields = interpreter.getIdentifiers();
-    modelDefaults = interpreter.getInitialValues();
+    // Get the model from cache, loading it only once even if several threads ask for it
+    model = MODEL_CACHE.computeIfAbsent(modelPath, PhysiologySimulator::loadModel);
+    this.solverName = solverName;
+    this.stepSize = stepSize;
+    this.engineKey = modelPath + "|" + solverName + "|" + stepSize;
+    Engine engine = getEngine();
+    modelFields = engine.modelFields;
+    modelDefaults = engine.modelDefaults;
     this.simDuration = simDuration;
   }
+
+  /**
+   * Loads and instantiates a model from its SBML file.
+   * @param modelPath Path to the SBML file to load relative to resources/physiology
+   * @return the model
+   */
+  private static Model loadModel(String modelPath) {
+    Path modelFilepath = getModelFile(modelPath);
+    SBMLReader reader = new SBMLReader();
+    File inputFile = new File(modelFilepath.toString());
+    SBMLDocument doc;
+    try {
+      doc = reader.readSBML(inputFile);
+    } catch (IOException | XMLStreamException ex) {
+      throw new RuntimeException(ex);
+    }
+    return doc.getModel();
+  }
+
+  /**
+   * Gets the SBML file of a model.
+   * @param modelPath Path to the SBML file relative to resources/physiology
+   * @return path to the SBML file
+   */
+  public static Path getModelFile(String modelPath) {
+    return Paths.get(SBML_PATH.toString(), modelPath);
+  }
+
+  /**
+   * Gets the current thread's interpreter and solver for this simulation, building them
+   * the first time they are needed on the thread.
+   * @return the engine for this thread
+   */
+  private Engine getEngine() {
+    Map<String, Engine> engines = ENGINES.get();
+    Engine engine = engines.get(engineKey);
+    if (engine == null) {
+      engine = new Engine(model, solverName, stepSize);
+      engines.put(engineKey, engine);
+    }
+    return engine;
+  }
   
   /**
    * Returns a list of all model parameters.
@@ -238,9 +289,10 @@ public class PhysiologySimulator {
    *        solution to differential equations
    */
   public MultiTable run(Map<String, Double> inputs) throws DerivativeException {
+    Engine engine = getEngine();
     try {
       // Reinitialize the interpreter to prevent old values from affecting the new simulation
-      interpreter.init(true);
+      engine.interpreter.init(true);
     } catch (ModelOverdeterminedException | SBMLException ex) {
       // This shouldn't ever happen here since the interpreter has already been instantiated
       // at least once
@@ -261,7 +313,7 @@ public class PhysiologySimulator {
     }
     
     // Solve the ODE for the specified duration and return the results
-    MultiTable results = solver.solve(interpreter, params, 0, simDuration);
+    MultiTable results = engine.solver.solve(engine.interpreter, params, 0, simDuration);
     
     return results;
   }
@@ -369,7 +421,7 @@ public class PhysiologySimulator {
    * @return initial value
    */
   public double getParamDefault(String param) {
-    return modelDefaults[ArrayUtils.indexOf(interpreter.getIdentifiers(), param)];
+    return modelDefaults[ArrayUtils.indexOf(modelFields, param)];
   }
 
   /**
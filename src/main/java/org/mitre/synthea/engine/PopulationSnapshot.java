@@ -0,0 +1,328 @@
+package org.mitre.synthea.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mitre.synthea.world.agents.Payer;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.agents.Provider;
+
+/**
+ * A population snapshot, written as each person finishes and read back in parallel. The
+ * snapshot is a folder of chunk files, each holding up to a fixed number of people. Every
+ * person is a separate length-prefixed record holding their index and their Java
+ * serialization, so nothing but the current person is ever held in memory while writing,
+ * and each chunk can be read by a different thread.
+ *
+ * <p>Providers and payers are shared by the whole population, so instead of copying them
+ * into every record, they are written as references to the loaded provider or payer with
+ * the same ID, and resolved to the providers and payers loaded when the snapshot is read.
+ * Snapshots must therefore be read with the same location they were written with.
+ */
+final class PopulationSnapshot {
+  private static final String MAGIC = "SYNTHEA-POPULATION-SNAPSHOT";
+  /**
+   * The version of the snapshot format. People are written with Java serialization and are
+   * not migrated, so this changes whenever the chunk layout or the serialized form of a
+   * person does, and chunks of any other version are rejected.
+   */
+  private static final int VERSION = 2;
+  private static final String CHUNK_PREFIX = "chunk-";
+  private static final String CHUNK_SUFFIX = ".bin";
+  /** Marks the end of a complete chunk, in place of the index of the next record. */
+  private static final int END_OF_CHUNK = -1;
+
+  private PopulationSnapshot() {}
+
+  /**
+   * Handles each person read from a snapshot.
+   */
+  interface RecordHandler {
+    void accept(Person person, int index) throws InterruptedException;
+  }
+
+  /**
+   * Whether the given path is a chunked snapshot, rather than a single serialized list.
+   */
+  static boolean isChunked(File path) {
+    return path.isDirectory();
+  }
+
+  /**
+   * Get the chunk files of a snapshot, in the order they were written.
+   * @param folder The snapshot folder.
+   * @return the chunk files.
+   */
+  static List<File> getChunks(File folder) {
+    File[] chunks = folder.listFiles((dir, name) -> name.startsWith(CHUNK_PREFIX)
+        && name.endsWith(CHUNK_SUFFIX));
+    if (chunks == null) {
+      return new ArrayList<File>();
+    }
+    Arrays.sort(chunks);
+    return Arrays.asList(chunks);
+  }
+
+  /**
+   * Read the first person of a chunk.
+   * @param chunk The chunk file.
+   * @return the person, or null if the chunk is empty.
+   * @throws IOException if the chunk can't be read.
+   */
+  static Person readFirst(File chunk) throws IOException {
+    try (ChunkReader reader = new ChunkReader(chunk)) {
+      return reader.next() ? reader.person : null;
+    }
+  }
+
+  /**
+   * Read every person in a chunk. A chunk that ends early, for example because the run that
+   * wrote it was killed, is read up to the last complete record.
+   * @param chunk The chunk file.
+   * @param handler Handles each person, in the order they were written.
+   * @throws IOException if the chunk isn't a snapshot chunk or a person can't be read.
+   * @throws InterruptedException if the handler is interrupted.
+   */
+  static void read(File chunk, RecordHandler handler) throws IOException, InterruptedException {
+    try (ChunkReader reader = new ChunkReader(chunk)) {
+      while (reader.next()) {
+        handler.accept(reader.person, reader.index);
+      }
+    }
+  }
+
+  /**
+   * Reads the records of a chunk one at a time.
+   */
+  private static final class ChunkReader implements Closeable {
+    private final File chunk;
+    private final WorldObjects world = new WorldObjects();
+    private final DataInputStream in;
+    private Person person;
+    private int index;
+
+    private ChunkReader(File chunk) throws IOException {
+      this.chunk = chunk;
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(chunk)));
+      if (!MAGIC.equals(in.readUTF())) {
+        in.close();
+        throw new IOException(chunk + " is not a population snapshot chunk");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        in.close();
+        throw new IOException(String.format("%s is a version %d population snapshot chunk, "
+            + "but this version of Synthea reads version %d. Regenerate the snapshot with -u.",
+            chunk, version, VERSION));
+      }
+    }
+
+    /**
+     * Read the next record.
+     * @return false at the end of the chunk.
+     */
+    private boolean next() throws IOException {
+      byte[] bytes;
+      try {
+        index = in.readInt();
+        if (index == END_OF_CHUNK) {
+          return false;
+        }
+        bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+      } catch (EOFException e) {
+        System.out.printf("Population snapshot chunk %s is incomplete.\n", chunk);
+        return false;
+      }
+      try (WorldInputStream objects = new WorldInputStream(
+          new ByteArrayInputStream(bytes), world)) {
+        person = (Person) objects.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      }
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes people to a snapshot folder as they finish. Safe to use from several threads:
+   * each person is serialized by the calling thread, and only appending the finished
+   * record to the current chunk is synchronized.
+   */
+  static final class Writer implements Closeable {
+    private final File folder;
+    private final int chunkSize;
+    private final Map<Object, String> references;
+    private DataOutputStream out;
+    private int chunkCount;
+    private int recordCount;
+
+    /**
+     * Create a writer for a new snapshot.
+     * @param folder The snapshot folder, which is created if it doesn't exist.
+     * @param chunkSize The number of people in each chunk.
+     * @throws IOException if the folder can't be created.
+     */
+    Writer(File folder, int chunkSize) throws IOException {
+      if (chunkSize < 1) {
+        throw new IllegalArgumentException("Chunk size must be a positive integer: " + chunkSize);
+      }
+      if (!folder.isDirectory() && !folder.mkdirs()) {
+        throw new IOException("Unable to create snapshot folder " + folder);
+      }
+      this.folder = folder;
+      this.chunkSize = chunkSize;
+      this.references = WorldObjects.references();
+    }
+
+    /**
+     * Write a person to the snapshot.
+     * @param person The person.
+     * @param index The index of the person in the population.
+     * @throws IOException if the person can't be written.
+     */
+    void write(Person person, int index) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (WorldOutputStream objects = new WorldOutputStream(bytes, references)) {
+        objects.writeObject(person);
+      }
+      synchronized (this) {
+        if (out == null || recordCount == chunkSize) {
+          nextChunk();
+        }
+        out.writeInt(index);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        recordCount++;
+      }
+    }
+
+    private void nextChunk() throws IOException {
+      closeChunk();
+      File chunk = new File(folder, String.format("%s%05d%s", CHUNK_PREFIX, chunkCount,
+          CHUNK_SUFFIX));
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(chunk)));
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      chunkCount++;
+      recordCount = 0;
+    }
+
+    private void closeChunk() throws IOException {
+      if (out != null) {
+        out.writeInt(END_OF_CHUNK);
+        out.close();
+        out = null;
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      closeChunk();
+    }
+  }
+
+  /**
+   * The providers and payers loaded for the current location.
+   */
+  private static final class WorldObjects {
+    private final Map<String, Object> byReference = new HashMap<String, Object>();
+
+    private WorldObjects() {
+      references().forEach((object, reference) -> byReference.put(reference, object));
+    }
+
+    private static Map<Object, String> references() {
+      Map<Object, String> references = new IdentityHashMap<Object, String>();
+      for (Provider provider : Provider.getProviderList()) {
+        references.put(provider, "Provider/" + provider.getResourceID());
+      }
+      List<Payer> payers = Payer.getAllPayers();
+      if (Payer.noInsurance != null) {
+        payers.add(Payer.noInsurance);
+      }
+      for (Payer payer : payers) {
+        references.put(payer, "Payer/" + payer.getResourceID());
+      }
+      return references;
+    }
+  }
+
+  /** Written in place of a loaded provider or payer. */
+  private static final class WorldReference implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String reference;
+
+    private WorldReference(String reference) {
+      this.reference = reference;
+    }
+  }
+
+  private static final class WorldOutputStream extends ObjectOutputStream {
+    private final Map<Object, String> references;
+
+    private WorldOutputStream(OutputStream out, Map<Object, String> references)
+        throws IOException {
+      super(out);
+      this.references = references;
+      enableReplaceObject(true);
+    }
+
+    @Override
+    protected Object replaceObject(Object obj) {
+      String reference = references.get(obj);
+      return reference == null ? obj : new WorldReference(reference);
+    }
+  }
+
+  private static final class WorldInputStream extends ObjectInputStream {
+    private final WorldObjects world;
+
+    private WorldInputStream(InputStream in, WorldObjects world) throws IOException {
+      super(in);
+      this.world = world;
+      enableResolveObject(true);
+    }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+      if (obj instanceof WorldReference) {
+        String reference = ((WorldReference) obj).reference;
+        Object resolved = world.byReference.get(reference);
+        if (resolved == null) {
+          throw new InvalidObjectException("The snapshot refers to " + reference
+              + ", which isn't loaded. Snapshots must be read with the same location.");
+        }
+        return resolved;
+      }
+      return obj;
+    }
+  }
+}
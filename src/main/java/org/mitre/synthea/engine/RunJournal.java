@@ -0,0 +1,331 @@
+package org.mitre.synthea.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mitre.synthea.export.CSVExporter;
+import org.mitre.synthea.export.Exporter;
+import org.mitre.synthea.helpers.Config;
+
+/**
+ * A journal of a generation run, so that a run that crashes or is killed can be resumed
+ * where it left off. Each record exported is committed to the journal together with the
+ * size of every file that exports append to (the CSV files and the bulk FHIR NDJSON files),
+ * and each person is marked done once their last record is exported. Resuming truncates
+ * those files back to their sizes at the last commit, which removes any partially written
+ * lines and the rows of anyone who wasn't committed, then skips the people already done.
+ * The patient ID and vital status of each record are committed too, so that the run totals
+ * and the FHIR Group still count the records of the people skipped.
+ *
+ * <p>The journal is a text file with one tab separated entry per line:
+ * <pre>
+ * H  version  seed  population  shardIndex  shardCount
+ * O  [file  size]...                 sizes of the files when the run started
+ * E  index  seed  id  alive|dead  [file  size]...
+ *                                    a record was exported, and the files that grew
+ * D  index  seed                     the person at the index is done, with their final seed
+ * </pre>
+ * A line without a trailing newline was being written when the run stopped, and is ignored.
+ *
+ * <p>Exports are committed one at a time, so that the file sizes always line up with
+ * complete records. People are still simulated in parallel. When records are exported on
+ * a separate pool, the attempts at a person can finish in any order, so a person is only
+ * marked done once every record submitted for them has been committed.
+ */
+final class RunJournal implements Closeable {
+  private static final int VERSION = 2;
+  private static final String HEADER = "H";
+  private static final String OFFSETS = "O";
+  private static final String EXPORTED = "E";
+  private static final String DONE = "D";
+  private static final String[] BULK_FHIR_FOLDERS = {"fhir", "fhir_stu3", "fhir_dstu2"};
+
+  private final Writer out;
+  /** The current size of each file that exports append to. */
+  private final Map<File, Long> sizes = new LinkedHashMap<File, Long>();
+  /** The people marked done by a previous run, by index. */
+  private final Map<Integer, Long> done = new HashMap<Integer, Long>();
+  /** The records committed by a previous run, by index, as the seeds of the attempts. */
+  private final Map<Integer, Set<Long>> exported = new HashMap<Integer, Set<Long>>();
+  /** The records committed by a previous run, by index, as their patient ID and status. */
+  private final Map<Integer, List<String[]>> records = new HashMap<Integer, List<String[]>>();
+  /** The number of records submitted for export but not yet committed, by index. */
+  private final Map<Integer, Integer> pending = new HashMap<Integer, Integer>();
+  /** The final seeds of people waiting on pending records to be marked done, by index. */
+  private final Map<Integer, Long> waiting = new HashMap<Integer, Long>();
+
+  private RunJournal(File file, boolean append) throws IOException {
+    this.out = new OutputStreamWriter(new FileOutputStream(file, append),
+        StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Start a new journal. Must be called before anything is exported.
+   * @param file The journal file, which must not exist.
+   * @param options The options of the run.
+   * @return the journal.
+   * @throws IOException if the journal exists or can't be written.
+   */
+  static RunJournal create(File file, Generator.GeneratorOptions options) throws IOException {
+    if (file.exists()) {
+      throw new IOException("Run journal " + file + " exists. Use --resume to resume the run.");
+    }
+    RunJournal journal = new RunJournal(file, false);
+    journal.writeLine(header(options));
+    if (Config.getAsBoolean("exporter.csv.export")) {
+      // create the CSV files and write their headers, so that they are tracked from the start
+      CSVExporter.getInstance();
+    }
+    for (File tracked : listTrackedFiles()) {
+      journal.sizes.put(tracked, tracked.length());
+    }
+    journal.writeLine(journal.offsets(OFFSETS, journal.sizes));
+    return journal;
+  }
+
+  /**
+   * Resume the run of an existing journal. The files that exports append to are truncated
+   * back to their sizes at the last commit, so this must be called before anything is
+   * exported, and the run must use the same options and configuration as the original.
+   * @param file The journal file.
+   * @param options The options of the run, which must match the journal.
+   * @return the journal, ready to record the rest of the run.
+   * @throws IOException if the journal can't be read or files can't be truncated.
+   */
+  static RunJournal resume(File file, Generator.GeneratorOptions options) throws IOException {
+    if (!file.isFile()) {
+      throw new IOException("Run journal " + file + " does not exist.");
+    }
+    if (Config.getAsBoolean("exporter.csv.folder_per_run")) {
+      throw new IllegalStateException(
+          "Runs can't be resumed with exporter.csv.folder_per_run enabled.");
+    }
+    String contents = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    int complete = contents.lastIndexOf('\n') + 1;
+    String[] lines = contents.substring(0, complete).split("\n");
+
+    if (!lines[0].equals(header(options))) {
+      throw new IllegalStateException("Run journal " + file + " is for a different run ("
+          + lines[0].replace('\t', ' ') + "). Resume with the same seed, population and shard.");
+    }
+
+    // drop the line that was being written when the run stopped
+    try (RandomAccessFile journalFile = new RandomAccessFile(file, "rw")) {
+      journalFile.setLength(contents.substring(0, complete).getBytes(StandardCharsets.UTF_8)
+          .length);
+    }
+    RunJournal journal = new RunJournal(file, true);
+    for (int i = 1; i < lines.length; i++) {
+      String[] fields = lines[i].split("\t");
+      int pairs = 1;
+      if (fields[0].equals(EXPORTED) || fields[0].equals(DONE)) {
+        int index = Integer.parseInt(fields[1]);
+        long seed = Long.parseLong(fields[2]);
+        if (fields[0].equals(DONE)) {
+          journal.done.put(index, seed);
+          continue;
+        }
+        journal.exported.computeIfAbsent(index, k -> new HashSet<Long>()).add(seed);
+        journal.records.computeIfAbsent(index, k -> new ArrayList<String[]>())
+            .add(new String[] {fields[3], fields[4]});
+        pairs = 5;
+      }
+      for (int j = pairs; j + 1 < fields.length; j += 2) {
+        journal.sizes.put(new File(fields[j]), Long.parseLong(fields[j + 1]));
+      }
+    }
+    journal.truncate();
+
+    // the CSV files already have their headers, so the CSV exporter must append to them
+    Config.set("exporter.csv.append_mode", "true");
+    return journal;
+  }
+
+  /**
+   * The first line of the journal, identifying the run.
+   */
+  private static String header(Generator.GeneratorOptions options) {
+    return String.join("\t", HEADER, Integer.toString(VERSION), Long.toString(options.seed),
+        Integer.toString(options.population), Integer.toString(options.shardIndex),
+        Integer.toString(options.shardCount));
+  }
+
+  /**
+   * Truncate every tracked file to its committed size, and delete the bulk FHIR files
+   * created since the last commit.
+   */
+  private void truncate() throws IOException {
+    for (File tracked : listTrackedFiles()) {
+      if (!sizes.containsKey(tracked) && tracked.getName().endsWith(".ndjson")) {
+        Files.delete(tracked.toPath());
+      }
+    }
+    for (Map.Entry<File, Long> entry : sizes.entrySet()) {
+      File tracked = entry.getKey();
+      if (tracked.length() > entry.getValue()) {
+        try (RandomAccessFile trackedFile = new RandomAccessFile(tracked, "rw")) {
+          trackedFile.setLength(entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * List the files in the CSV and bulk FHIR output folders.
+   */
+  private static List<File> listTrackedFiles() {
+    List<File> tracked = new ArrayList<File>();
+    List<String> folders = new ArrayList<String>();
+    if (Config.getAsBoolean("exporter.csv.export")) {
+      folders.add("csv");
+    }
+    if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+      for (String folder : BULK_FHIR_FOLDERS) {
+        if (Config.getAsBoolean("exporter." + folder + ".export")) {
+          folders.add(folder);
+        }
+      }
+    }
+    for (String folder : folders) {
+      File[] files = Exporter.getOutputFolder(folder, null).listFiles(File::isFile);
+      if (files != null) {
+        for (File f : files) {
+          tracked.add(f.getAbsoluteFile());
+        }
+      }
+    }
+    return tracked;
+  }
+
+  /**
+   * The number of people a previous run finished.
+   */
+  int getDoneCount() {
+    return done.size();
+  }
+
+  /**
+   * Whether a previous run finished the person at the given index.
+   */
+  boolean isDone(int index) {
+    return done.containsKey(index);
+  }
+
+  /**
+   * The records of the people a previous run finished.
+   * @return the patient ID of each record, and whether the person was "alive" or "dead".
+   */
+  List<String[]> getDoneRecords() {
+    List<String[]> doneRecords = new ArrayList<String[]>();
+    for (Integer index : done.keySet()) {
+      doneRecords.addAll(records.getOrDefault(index, new ArrayList<String[]>()));
+    }
+    return doneRecords;
+  }
+
+  /**
+   * Note that a record of the person at the given index will be exported later, so that the
+   * person isn't marked done until it has been.
+   * @param index The index of the person.
+   */
+  synchronized void submitted(int index) {
+    pending.merge(index, 1, Integer::sum);
+  }
+
+  /**
+   * Export a record and commit it to the journal, unless a previous run already did.
+   * @param index The index of the person.
+   * @param seed The seed of this attempt at the person.
+   * @param patientId The ID of the patient.
+   * @param alive Whether the person is alive at the end of the simulation.
+   * @param export Exports the record.
+   * @return false if a previous run already exported the record.
+   * @throws IOException if the journal can't be written.
+   */
+  synchronized boolean export(int index, long seed, String patientId, boolean alive,
+      Runnable export) throws IOException {
+    Set<Long> seeds = exported.get(index);
+    if (seeds != null && seeds.contains(seed)) {
+      // an earlier attempt that died, whose record is already in the output
+      committed(index);
+      return false;
+    }
+    export.run();
+
+    Map<File, Long> grown = new LinkedHashMap<File, Long>();
+    for (File tracked : listTrackedFiles()) {
+      long size = tracked.length();
+      Long previous = sizes.put(tracked, size);
+      if (previous == null || previous != size) {
+        grown.put(tracked, size);
+      }
+    }
+    writeLine(offsets(String.join("\t", EXPORTED, Integer.toString(index),
+        Long.toString(seed), patientId, alive ? "alive" : "dead"), grown));
+    committed(index);
+    return true;
+  }
+
+  /**
+   * Count a submitted record as committed, and mark the person done if it was the last one
+   * they were waiting on.
+   */
+  private void committed(int index) throws IOException {
+    Integer count = pending.computeIfPresent(index, (k, n) -> n - 1);
+    if (count != null && count == 0) {
+      pending.remove(index);
+      Long seed = waiting.remove(index);
+      if (seed != null) {
+        done(index, seed);
+      }
+    }
+  }
+
+  /**
+   * Mark the person at the given index done, once every record submitted for them has been
+   * committed.
+   * @param index The index of the person.
+   * @param seed The seed of the person that was kept.
+   * @throws IOException if the journal can't be written.
+   */
+  synchronized void done(int index, long seed) throws IOException {
+    if (pending.containsKey(index)) {
+      waiting.put(index, seed);
+      return;
+    }
+    writeLine(String.join("\t", DONE, Integer.toString(index), Long.toString(seed)));
+  }
+
+  private String offsets(String prefix, Map<File, Long> files) {
+    StringBuilder line = new StringBuilder(prefix);
+    for (Map.Entry<File, Long> entry : files.entrySet()) {
+      line.append('\t').append(entry.getKey().getPath()).append('\t').append(entry.getValue());
+    }
+    return line.toString();
+  }
+
+  private void writeLine(String line) throws IOException {
+    out.write(line);
+    out.write('\n');
+    out.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+}
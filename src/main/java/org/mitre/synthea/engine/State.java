@@ -143,6 +143,27 @@ public abstract class State implements Cloneable, Serializable {
     return transition.follow(person, time);
   }
 
+  /**
+   * Get the index of the next state within the compiled module.
+   * @param person the person being simulated
+   * @param time the date within the simulated world
+   * @return index of the next state, see Transition.followIndex
+   */
+  public int transitionIndex(Person person, long time) {
+    return transition.followIndex(person, time);
+  }
+
+  /**
+   * Resolve the names of the states that this state transitions to into their indexes.
+   * Called by the Module once all of its states have been built.
+   * @param stateIndexes index of each state within the module, by name
+   */
+  protected void compile(Map<String, Integer> stateIndexes) {
+    if (transition != null) {
+      transition.compile(stateIndexes);
+    }
+  }
+
   public Transition getTransition() {
     return transition;
   }
@@ -232,6 +253,13 @@ public abstract class State implements Cloneable, Serializable {
   public static class CallSubmodule extends State {
     private String submodule;
 
+    /**
+     * Get the path of the submodule this state calls.
+     */
+    public String getSubmodule() {
+      return submodule;
+    }
+
     @Override
     public CallSubmodule clone() {
       CallSubmodule clone = (CallSubmodule) super.clone();
@@ -408,6 +436,21 @@ public abstract class State implements Cloneable, Serializable {
       
       return altTransition.follow(person, time);
     }
+
+    @Override
+    public int transitionIndex(Person person, long time) {
+      if (ENABLE_PHYSIOLOGY_STATE) {
+        return super.transitionIndex(person, time);
+      }
+
+      return altTransition.followIndex(person, time);
+    }
+
+    @Override
+    protected void compile(Map<String, Integer> stateIndexes) {
+      super.compile(stateIndexes);
+      altTransition.compile(stateIndexes);
+    }
     
   }
 
@@ -574,21 +617,51 @@ public abstract class State implements Cloneable, Serializable {
    */
   public static class Guard extends State {
     private Logic allow;
+    private transient Person waitingPerson;
+    private transient long wakeTime;
 
     @Override
     public Guard clone() {
       Guard clone = (Guard) super.clone();
+      clone.waitingPerson = null;
       return clone;
     }
 
     @Override
     public boolean process(Person person, long time) {
+      if (time < earliestPassTime(person, time)) {
+        // the logic can't be true yet, so don't test it
+        return false;
+      }
       boolean exit = allow.test(person, time);
       if (exit) {
         this.exited = time;
       }
       return exit;
     }
+
+    /**
+     * Find the earliest time at which this guard could possibly let the person through.
+     * Until then the guard does not need to be processed.
+     * @param person Person waiting at the guard
+     * @param time Time at which the guard last blocked
+     * @return the earliest time at which the guard could pass
+     */
+    public long earliestPassTime(Person person, long time) {
+      if (person != waitingPerson) {
+        // the earliest pass time only depends on the person, not on when it is asked,
+        // so it is found once per person waiting at the guard
+        wakeTime = allow.earliestPassTime(person, time);
+        waitingPerson = person;
+      }
+      return Math.max(time, wakeTime);
+    }
+
+    @Override
+    protected void compile(Map<String, Integer> stateIndexes) {
+      super.compile(stateIndexes);
+      allow.compile();
+    }
   }
 
   /**
@@ -835,18 +908,27 @@ public abstract class State implements Cloneable, Serializable {
       // reminder: history[0] is current state, history[size-1] is Initial
       for (State state : person.history) {
         if (state instanceof OnsetState) {
-          OnsetState onset = (OnsetState) state;
-
-          if (!onset.diagnosed && this.name.equals(onset.targetEncounter)) {
-            onset.diagnose(person, time);
-          }
+          diagnosePastCondition((OnsetState) state, person, time);
         } else if (state instanceof Encounter && state != this && state.name.equals(this.name)) {
           // a prior instance of hitting this same state. no need to go back any further
-          break;
+          return;
+        }
+      }
+      if (person.history instanceof StateHistory) {
+        // older states may have been dropped from the history, but not undiagnosed onsets
+        StateHistory history = (StateHistory) person.history;
+        for (OnsetState onset : history.droppedOnsetsSince(this.name)) {
+          diagnosePastCondition(onset, person, time);
         }
       }
     }
 
+    private void diagnosePastCondition(OnsetState onset, Person person, long time) {
+      if (!onset.diagnosed && this.name.equals(onset.targetEncounter)) {
+        onset.diagnose(person, time);
+      }
+    }
+
     private void renewChronicMedicationsAtWellness(Person person, long time) {
       // note that this code has some child codes for various different reasons,
       // eg "medical aim achieved", "ineffective", "avoid interaction", "side effect", etc
@@ -954,7 +1036,7 @@ public abstract class State implements Cloneable, Serializable {
    * be shared. It is an implementation detail and should never be referenced directly in a JSON
    * module.
    */
-  private abstract static class OnsetState extends State {
+  abstract static class OnsetState extends State {
     public boolean diagnosed;
 
     protected List<Code> codes;
@@ -1290,6 +1372,41 @@ public abstract class State implements Cloneable, Serializable {
     private String reason;
     private String assignToAttribute;
 
+    /**
+     * Java Serialization support method to serialize the JsonObject goals which aren't
+     * natively serializable.
+     * @param oos the stream to write to
+     */
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+      oos.defaultWriteObject();
+      if (goals != null) {
+        List<String> goalsJson = new ArrayList<String>(goals.size());
+        for (JsonObject goal : goals) {
+          goalsJson.add(goal.toString());
+        }
+        oos.writeObject(goalsJson);
+      } else {
+        oos.writeObject(null);
+      }
+    }
+
+    /**
+     * Java Serialization support method to deserialize the JsonObject goals which aren't
+     * natively serializable.
+     * @param ois the stream to read from
+     */
+    private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+      ois.defaultReadObject();
+      List<String> goalsJson = (List<String>) ois.readObject();
+      if (goalsJson != null) {
+        Gson gson = Utilities.getGson();
+        goals = new ArrayList<JsonObject>(goalsJson.size());
+        for (String goal : goalsJson) {
+          goals.add(gson.fromJson(goal, JsonObject.class));
+        }
+      }
+    }
+
     @Override
     public CarePlanStart clone() {
       CarePlanStart clone = (CarePlanStart) super.clone();
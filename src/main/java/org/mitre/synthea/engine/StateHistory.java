@@ -0,0 +1,389 @@
+package org.mitre.synthea.engine;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.concepts.HealthRecord;
+import org.mitre.synthea.world.concepts.HealthRecord.Code;
+
+/**
+ * StateHistory is the history of the states a person has passed through in a single module,
+ * most recent first, as stored in the person's attributes under the module name. Index 0 is
+ * always the current state.
+ *
+ * <p>Long-lived patients in looping modules can pass through tens of thousands of states, so
+ * only the most recent states (the "tail") are kept in the list. The size of the tail is set by
+ * "generate.state_history.max_size", where 0 keeps every state. It is always unlimited when
+ * "generate.track_detailed_transition_metrics" is enabled, as TransitionMetrics counts every
+ * state in the history.
+ *
+ * <p>Everything else that looks back through the history is answered from small indexes, so
+ * it gives the same answer whether or not older states have been dropped:
+ * <ul>
+ * <li>the most recent visit to each state name, for PriorState logic;</li>
+ * <li>the most recent dropped state holding an entry with each code, for looking up entries
+ * that are only in the module history when records are split across providers;</li>
+ * <li>dropped onset states that have not been diagnosed yet, and the most recent dropped
+ * visit to each encounter state, for diagnosing past conditions at an encounter.</li>
+ * </ul>
+ */
+public class StateHistory extends AbstractList<State> implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Maximum number of states kept in the tail, or 0 for no limit. */
+  private final int maxSize;
+  /** Ring buffer of the tail, oldest first starting at index 'oldest'. */
+  private State[] states;
+  /** Sequence number of each state in the ring buffer, increasing with recency. */
+  private long[] sequence;
+  private int oldest;
+  private int size;
+  /** Sequence number of the most recently added state. */
+  private long latest;
+
+  /** The most recent visit to each state name, including states still in the tail. */
+  private Map<String, Visit> visits;
+  /** Dropped onset states that had not been diagnosed yet when they were dropped. */
+  private List<Visit> droppedOnsets;
+  /** Sequence number of the most recent dropped visit to each Encounter state name. */
+  private Map<String, Long> droppedEncounters;
+  /** The most recent dropped states with an entry, by entry code. */
+  private Map<String, List<Visit>> droppedEntries;
+
+  /**
+   * A state and its position in the history.
+   */
+  private static class Visit implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final State state;
+    private final long sequence;
+
+    private Visit(State state, long sequence) {
+      this.state = state;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * Create a new StateHistory with the configured tail size.
+   */
+  public StateHistory() {
+    this(configuredMaxSize());
+  }
+
+  /**
+   * Create a new StateHistory.
+   * @param maxSize The maximum number of states to keep in the tail, or 0 for no limit.
+   */
+  public StateHistory(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("State history size must not be negative: " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.states = new State[(maxSize > 0) ? Math.min(maxSize, 16) : 16];
+    this.sequence = new long[states.length];
+    this.visits = new HashMap<String, Visit>();
+    this.droppedOnsets = new ArrayList<Visit>();
+    this.droppedEncounters = new HashMap<String, Long>();
+    this.droppedEntries = new HashMap<String, List<Visit>>();
+  }
+
+  private static int configuredMaxSize() {
+    if (Config.getAsBoolean("generate.track_detailed_transition_metrics", false)) {
+      return 0;
+    }
+    return Integer.parseInt(Config.get("generate.state_history.max_size", "0"));
+  }
+
+  @Override
+  public State get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return states[slot(size - 1 - index)];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the number of states that have ever been added to this history, including any that
+   * have since been dropped from the tail.
+   * @return the total number of states visited.
+   */
+  public long getTotalVisits() {
+    return latest;
+  }
+
+  /**
+   * Add a state to the history. Only index 0, the front of the history, is supported.
+   */
+  @Override
+  public void add(int index, State state) {
+    if (index != 0) {
+      throw new UnsupportedOperationException("States can only be added at index 0");
+    }
+    addFirst(state, ++latest);
+  }
+
+  /**
+   * Add a collection of states to the front of the history, keeping their order, so that
+   * the first state in the collection becomes index 0. If the collection is another
+   * StateHistory, its indexes are merged in as well.
+   */
+  @Override
+  public boolean addAll(int index, Collection<? extends State> collection) {
+    if (index != 0) {
+      throw new UnsupportedOperationException("States can only be added at index 0");
+    }
+    if (collection.isEmpty()) {
+      return false;
+    }
+    if (collection instanceof StateHistory) {
+      prepend((StateHistory) collection);
+    } else {
+      List<State> added = new ArrayList<State>(collection);
+      for (int i = added.size() - 1; i >= 0; i--) {
+        addFirst(added.get(i), ++latest);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add to the front of this history all of the states of another, more recent history.
+   */
+  private void prepend(StateHistory other) {
+    long offset = latest;
+    for (Visit onset : other.droppedOnsets) {
+      addDroppedOnset(onset.state, onset.sequence + offset);
+    }
+    for (Map.Entry<String, Long> encounter : other.droppedEncounters.entrySet()) {
+      droppedEncounters.merge(encounter.getKey(), encounter.getValue() + offset, Math::max);
+    }
+    for (List<Visit> entries : other.droppedEntries.values()) {
+      for (Visit visit : entries) {
+        indexEntry(visit.state, visit.sequence + offset);
+      }
+    }
+    for (Visit visit : other.visits.values()) {
+      visits.put(visit.state.name, new Visit(visit.state, visit.sequence + offset));
+    }
+    for (int i = 0; i < other.size; i++) {
+      int otherSlot = other.slot(i);
+      addFirst(other.states[otherSlot], other.sequence[otherSlot] + offset);
+    }
+    latest = offset + other.latest;
+  }
+
+  private void addFirst(State state, long seq) {
+    if (maxSize > 0 && size == maxSize) {
+      drop(states[oldest], sequence[oldest]);
+      states[oldest] = null;
+      oldest = (oldest + 1) % states.length;
+      size--;
+    } else if (size == states.length) {
+      grow();
+    }
+    int slot = slot(size);
+    states[slot] = state;
+    sequence[slot] = seq;
+    size++;
+    modCount++;
+    visits.put(state.name, new Visit(state, seq));
+  }
+
+  private int slot(int chronologicalIndex) {
+    return (oldest + chronologicalIndex) % states.length;
+  }
+
+  private void grow() {
+    int capacity = states.length * 2;
+    if (maxSize > 0) {
+      capacity = Math.min(capacity, maxSize);
+    }
+    State[] grownStates = new State[capacity];
+    long[] grownSequence = new long[capacity];
+    for (int i = 0; i < size; i++) {
+      grownStates[i] = states[slot(i)];
+      grownSequence[i] = sequence[slot(i)];
+    }
+    states = grownStates;
+    sequence = grownSequence;
+    oldest = 0;
+  }
+
+  /**
+   * Record whatever later lookups need from a state that is being dropped from the tail.
+   */
+  private void drop(State state, long seq) {
+    if (state instanceof State.OnsetState && !((State.OnsetState) state).diagnosed) {
+      // may still be diagnosed by a later encounter, which will also give it an entry
+      addDroppedOnset(state, seq);
+    } else if (state.entry != null) {
+      indexEntry(state, seq);
+    }
+    if (state instanceof State.Encounter) {
+      droppedEncounters.merge(state.name, seq, Math::max);
+    }
+  }
+
+  private void addDroppedOnset(State state, long seq) {
+    // keep the list in visit order; states prepended from a submodule are dropped out of order
+    int index = droppedOnsets.size();
+    while (index > 0 && droppedOnsets.get(index - 1).sequence > seq) {
+      index--;
+    }
+    droppedOnsets.add(index, new Visit(state, seq));
+  }
+
+  private void indexEntry(State state, long seq) {
+    for (Code code : state.entry.codes) {
+      List<Visit> entries = droppedEntries.computeIfAbsent(code.code, c -> new ArrayList<>(1));
+      // only the most recent state for each type of entry is needed
+      boolean found = false;
+      for (int i = 0; i < entries.size() && !found; i++) {
+        Visit existing = entries.get(i);
+        if (existing.state.entry.getClass() == state.entry.getClass()) {
+          if (existing.sequence < seq) {
+            entries.set(i, new Visit(state, seq));
+          }
+          found = true;
+        }
+      }
+      if (!found) {
+        entries.add(new Visit(state, seq));
+      }
+    }
+  }
+
+  /**
+   * Move any dropped onset states that have since been diagnosed into the entry index.
+   */
+  private void sweepDroppedOnsets() {
+    Iterator<Visit> iterator = droppedOnsets.iterator();
+    while (iterator.hasNext()) {
+      Visit onset = iterator.next();
+      if (((State.OnsetState) onset.state).diagnosed) {
+        iterator.remove();
+        if (onset.state.entry != null) {
+          indexEntry(onset.state, onset.sequence);
+        }
+      }
+    }
+  }
+
+  /**
+   * Check for prior existence of specified state. This gives the same answer as scanning
+   * the full history from the most recent state, stopping at a state named 'since' or at a
+   * state that exited at or before 'within'.
+   * @param name The name of the state to look for.
+   * @param since The name of a state that, if visited more recently, means the answer is false.
+   * @param within The time before which an exit means the answer is false.
+   * @return true if the state was visited.
+   */
+  public boolean hadPriorState(String name, String since, Long within) {
+    Visit visit = visits.get(name);
+    if (visit == null) {
+      return false;
+    }
+    if (since != null) {
+      Visit sinceVisit = visits.get(since);
+      if (sinceVisit != null && sinceVisit.sequence >= visit.sequence) {
+        return false;
+      }
+    }
+    if (within != null) {
+      for (int i = size - 1; i >= 0; i--) {
+        int slot = slot(i);
+        if (sequence[slot] < visit.sequence) {
+          break;
+        }
+        Long exited = states[slot].exited;
+        if (exited != null && exited <= within) {
+          return false;
+        }
+      }
+      if (size == 0 || visit.sequence < sequence[oldest]) {
+        // states exit in the order they were visited, so the dropped states visited after
+        // this one can only have exited at or after it did
+        Long exited = visit.state.exited;
+        if (exited != null && exited <= within) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Find the most recent entry, of a specific type of HealthRecord.Entry, among the states
+   * that have been dropped from the tail. Callers should look through the tail first.
+   * @param classType Must be a HealthRecord.Entry or subclass.
+   * @param code The code being searched for.
+   * @return The HealthRecord.Entry (or subclass) that was found, or null.
+   */
+  public HealthRecord.Entry findDroppedEntry(
+      Class<? extends HealthRecord.Entry> classType, Code code) {
+    sweepDroppedOnsets();
+    List<Visit> entries = droppedEntries.getOrDefault(code.code, Collections.emptyList());
+    Visit found = null;
+    for (Visit visit : entries) {
+      if (matches(visit, classType, code) && (found == null || found.sequence < visit.sequence)) {
+        found = visit;
+      }
+    }
+    for (Visit onset : droppedOnsets) {
+      if (matches(onset, classType, code) && (found == null || found.sequence < onset.sequence)) {
+        found = onset;
+      }
+    }
+    return (found == null) ? null : found.state.entry;
+  }
+
+  private static boolean matches(Visit visit, Class<? extends HealthRecord.Entry> classType,
+      Code code) {
+    HealthRecord.Entry entry = visit.state.entry;
+    return classType.isInstance(entry) && entry.codes.stream().anyMatch(c -> c.equals(code));
+  }
+
+  /**
+   * Get the dropped onset states that are still undiagnosed and were visited after the most
+   * recent dropped visit to the named Encounter state, most recent first. Callers should look
+   * through the tail first, and only need these if the tail has no earlier visit to the
+   * encounter.
+   * @param encounterName The name of the Encounter state.
+   * @return the undiagnosed onset states.
+   */
+  List<State.OnsetState> droppedOnsetsSince(String encounterName) {
+    sweepDroppedOnsets();
+    long stop = droppedEncounters.getOrDefault(encounterName, 0L);
+    List<State.OnsetState> onsets = new ArrayList<State.OnsetState>();
+    for (int i = droppedOnsets.size() - 1; i >= 0; i--) {
+      Visit onset = droppedOnsets.get(i);
+      if (onset.sequence <= stop) {
+        break;
+      }
+      onsets.add((State.OnsetState) onset.state);
+    }
+    return onsets;
+  }
+
+  /**
+   * Check whether any states have been dropped from the tail.
+   * @return true if the tail does not hold the full history.
+   */
+  public boolean isTruncated() {
+    return latest > size;
+  }
+}
@@ -8,6 +8,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.Range;
 import org.mitre.synthea.helpers.Config;
@@ -20,9 +22,16 @@ import org.mitre.synthea.world.agents.Person;
  * framework. This class is stateless, and calling 'follow' on an instance must
  * not modify state as instances of Transition within States and Modules are
  * shared across the population.
+ *
+ * <p>Once a Module has loaded all of its states it compiles each Transition, resolving
+ * the name of every destination state to that state's index within the module, so that
+ * followIndex can be used to step through the module without looking states up by name.
  */
 public abstract class Transition implements Serializable {
 
+  /** The index of a destination state that does not exist in the module. */
+  public static final int UNKNOWN_STATE = -1;
+
   protected List<String> remarks;
 
   /**
@@ -32,7 +41,38 @@ public abstract class Transition implements Serializable {
    * @param time   : time of this transition
    * @return name : name of the next state
    */
-  public abstract String follow(Person person, long time);
+  public String follow(Person person, long time) {
+    return choose(person, time).transition;
+  }
+
+  /**
+   * Get the index of the next state within the compiled module. The same choice is made as
+   * by follow, consuming the same random numbers.
+   * 
+   * @param person : person being processed
+   * @param time   : time of this transition
+   * @return index : index of the next state, or UNKNOWN_STATE if there is no such state
+   */
+  public int followIndex(Person person, long time) {
+    return choose(person, time).target;
+  }
+
+  /**
+   * Choose the option that should be followed.
+   * 
+   * @param person : person being processed
+   * @param time   : time of this transition
+   * @return option : the destination option
+   */
+  protected abstract TransitionOption choose(Person person, long time);
+
+  /**
+   * Resolve the destination state names of this transition into state indexes,
+   * and compile the logic of any conditions.
+   * 
+   * @param stateIndexes : index of each state within the module, by name
+   */
+  protected abstract void compile(Map<String, Integer> stateIndexes);
 
   /**
    * Direct transitions are the simplest of transitions. They transition directly
@@ -40,15 +80,20 @@ public abstract class Transition implements Serializable {
    * of the state to transition to.
    */
   public static class DirectTransition extends Transition {
-    private String transition;
+    private final DirectTransitionOption option;
 
     public DirectTransition(String transition) {
-      this.transition = transition;
+      this.option = new DirectTransitionOption(transition);
+    }
+
+    @Override
+    protected TransitionOption choose(Person person, long time) {
+      return option;
     }
 
     @Override
-    public String follow(Person person, long time) {
-      return transition;
+    protected void compile(Map<String, Integer> stateIndexes) {
+      option.compile(stateIndexes);
     }
   }
 
@@ -56,8 +101,22 @@ public abstract class Transition implements Serializable {
    * A TransitionOption represents a single destination state that may be
    * transitioned to.
    */
-  private abstract static class TransitionOption implements Serializable {
+  protected abstract static class TransitionOption implements Serializable {
     protected String transition;
+    protected int target = UNKNOWN_STATE;
+
+    protected void compile(Map<String, Integer> stateIndexes) {
+      target = stateIndexes.getOrDefault(transition, UNKNOWN_STATE);
+    }
+  }
+
+  /**
+   * A DirectTransitionOption is the single destination of a DirectTransition.
+   */
+  private static final class DirectTransitionOption extends TransitionOption {
+    private DirectTransitionOption(String transition) {
+      this.transition = transition;
+    }
   }
 
   /**
@@ -88,15 +147,27 @@ public abstract class Transition implements Serializable {
    */
   public static final class DistributedTransition extends Transition {
     private List<DistributedTransitionOption> transitions;
+    private double[] cumulative;
 
     public DistributedTransition(List<DistributedTransitionOption> transitions) {
       this.transitions = transitions;
     }
 
     @Override
-    public String follow(Person person, long time) {
+    protected TransitionOption choose(Person person, long time) {
+      if (cumulative != null) {
+        return pickCompiledDistributedTransition(transitions, cumulative, person);
+      }
       return pickDistributedTransition(transitions, person);
     }
+
+    @Override
+    protected void compile(Map<String, Integer> stateIndexes) {
+      for (DistributedTransitionOption option : transitions) {
+        option.compile(stateIndexes);
+      }
+      cumulative = cumulativeDistribution(transitions);
+    }
   }
 
   /**
@@ -120,13 +191,14 @@ public abstract class Transition implements Serializable {
   public static class LookupTableTransition extends Transition {
 
     // Map of lookupTables
-    private static HashMap<String, HashMap<LookupTableKey, List<DistributedTransitionOption>>>
-        lookupTables = new HashMap<String, HashMap<LookupTableKey,
-        List<DistributedTransitionOption>>>();
+    private static Map<String, LookupTable> lookupTables =
+        new ConcurrentHashMap<String, LookupTable>();
     private final List<LookupTableTransitionOption> transitions;
-    private List<String> attributes;
+    /** The table, which is shared by every transition that uses the same CSV file. */
+    private final LookupTable table;
     private List<DistributedTransitionOption> defaultTransitions;
     private String lookupTableName;
+    private Map<String, Integer> targets;
 
     /**
      * Constructor for LookupTableTransition.
@@ -144,6 +216,7 @@ public abstract class Transition implements Serializable {
       if (!lookupTables.containsKey(lookupTableName)) {
         loadLookupTable();
       }
+      this.table = lookupTables.get(lookupTableName);
     }
 
     /**
@@ -167,10 +240,7 @@ public abstract class Transition implements Serializable {
     private void loadLookupTable() {
 
       System.out.println("Loading Lookup Table: " + lookupTableName);
-      // Hashmap for the new lookup table.
-      HashMap<LookupTableKey, List<DistributedTransitionOption>> newTable
-          = new HashMap<LookupTableKey, List<DistributedTransitionOption>>();
-      
+
       // Load in this transitions's CSV file.
       String fileName = Config.get("generate.lookup_tables") + lookupTableName;
       List<? extends Map<String, String>> lookupTable = null;
@@ -187,8 +257,9 @@ public abstract class Transition implements Serializable {
       // Retrieve CSV column headers.
       List<String> columnHeaders = new ArrayList<String>(lookupTable.get(0).keySet());
       // Parse the list of attributes.
-      this.attributes = new ArrayList<String>(columnHeaders.subList(0,
+      List<String> attributes = new ArrayList<String>(columnHeaders.subList(0,
           columnHeaders.size() - this.transitions.size()));
+      LookupTable newTable = new LookupTable(attributes);
       // Parse the list of states to transition to.
       List<String> transitionStates = columnHeaders.subList((columnHeaders.size()
           - this.transitions.size()), columnHeaders.size());
@@ -197,12 +268,12 @@ public abstract class Transition implements Serializable {
       for (Map<String, String> currentRow : lookupTable) {
         // Extract attributes from current CSV row.
         List<String> rowAttributes = new ArrayList<String>(currentRow.values());
-        rowAttributes = rowAttributes.subList(0, this.attributes.size());
+        rowAttributes = rowAttributes.subList(0, attributes.size());
         // Create age range for lookup table key if age is an attribute.
         Range<Integer> ageRange = null;
         Range<Long> timeRange = null;
-        if (this.attributes.contains("age")) {
-          Integer ageIndex = this.attributes.indexOf("age");
+        if (attributes.contains("age")) {
+          Integer ageIndex = attributes.indexOf("age");
           // Remove and parse the age range.
           String value = rowAttributes.remove(ageIndex.intValue());
           if (!value.contains("-")
@@ -217,8 +288,8 @@ public abstract class Transition implements Serializable {
               Integer.parseInt(value.substring(0, value.indexOf("-"))),
               Integer.parseInt(value.substring(value.indexOf("-") + 1)));
         }
-        if (this.attributes.contains("time")) {
-          Integer timeIndex = this.attributes.indexOf("time");
+        if (attributes.contains("time")) {
+          Integer timeIndex = attributes.indexOf("time");
           // Remove and parse the age range.
           String value = rowAttributes.remove(timeIndex.intValue());
           if (!value.contains("-")
@@ -233,17 +304,15 @@ public abstract class Transition implements Serializable {
               Long.parseLong(value.substring(0, value.indexOf("-"))),
               Long.parseLong(value.substring(value.indexOf("-") + 1)));
         }
-        // Attributes key to inert into lookup table.
-        LookupTableKey attributesLookupKey =
-            new LookupTableKey(rowAttributes, ageRange, timeRange);
         // Transition probabilities to insert into lookup table.
         List<DistributedTransitionOption> transitionProbabilities
             = createDistributedTransitionOptions(currentRow, transitionStates);
         // Insert the parsed attributes and transition probabilities into lookup table.
-        newTable.put(attributesLookupKey, transitionProbabilities);
+        newTable.put(rowAttributes, ageRange, timeRange, transitionProbabilities);
       }
 
       // Put new table into Hash map of all lookup tables.
+      newTable.build();
       lookupTables.put(lookupTableName, newTable);
     }
 
@@ -273,37 +342,284 @@ public abstract class Transition implements Serializable {
     }
 
     @Override
-    public String follow(Person person, long time) {
-      Integer age = null;
-      // Extract Person's list of relevant attributes.
-      ArrayList<String> personsAttributes = new ArrayList<String>();
-      for (String currentAttribute : this.attributes) {
-        if (currentAttribute.equalsIgnoreCase("age")) {
-          age = person.ageInYears(time);
-        } else if (currentAttribute.equalsIgnoreCase("time")) {
-          // do nothing, we already have it
-        } else {
-          String personsAttribute
-              = (String) person.attributes.get(currentAttribute.toLowerCase());
-          if (personsAttribute == null) {
-            throw new RuntimeException("LOOKUP TABLE ERROR: Attribute '"
-                + currentAttribute + "' in CSV table '" + this.lookupTableName
-                + "' does not exist as one of this person's attributes.");
-          }
-          personsAttributes.add(personsAttribute);
+    protected void compile(Map<String, Integer> stateIndexes) {
+      for (DistributedTransitionOption option : defaultTransitions) {
+        option.compile(stateIndexes);
+      }
+      // rows of the table may be shared with other modules, so map names here instead
+      targets = new HashMap<String, Integer>();
+      for (LookupTableTransitionOption option : transitions) {
+        option.compile(stateIndexes);
+        targets.put(option.transition, option.target);
+      }
+    }
+
+    @Override
+    public int followIndex(Person person, long time) {
+      return targets.getOrDefault(follow(person, time), UNKNOWN_STATE);
+    }
+
+    @Override
+    protected TransitionOption choose(Person person, long time) {
+      Object node = table.root;
+      String[] names = table.personAttributes;
+      // Walk the table by each of the person's attribute values, without building a key.
+      for (int i = 0; i < names.length; i++) {
+        String personsAttribute = (String) person.attributes.get(names[i]);
+        if (personsAttribute == null) {
+          throw new RuntimeException("LOOKUP TABLE ERROR: Attribute '"
+              + table.personColumns[i] + "' in CSV table '" + this.lookupTableName
+              + "' does not exist as one of this person's attributes.");
+        }
+        if (node != null) {
+          node = ((LookupTable.Node) node).children.get(personsAttribute);
         }
       }
-      // Create key from person's attributes to get distributions
-      LookupTableKey personsAttributesLookupKey = new LookupTableKey(personsAttributes, age, time);
-      if (lookupTables.get(lookupTableName).containsKey(personsAttributesLookupKey)) {
+      List<DistributedTransitionOption> options = null;
+      if (node != null) {
+        int age = table.usesAge ? person.ageInYears(time) : 0;
+        options = ((LookupTable.RangeIndex) node).find(age, time);
+      }
+      if (options != null) {
         // Person matches, use their attribute's list of distributedtransitionoptions
-        return pickDistributedTransition(
-          lookupTables.get(lookupTableName).get(personsAttributesLookupKey), person);
+        return pickDistributedTransition(options, person);
       } else {
         // No attribute match, use default transition.
         return pickDistributedTransition(this.defaultTransitions, person);
       }
     }
+
+    /**
+     * A lookup table, indexed first by the exact values of its attribute columns, one
+     * level per column, and then by the age and time ranges of the rows that share
+     * those values. A person matches a row when their attribute values are equal to the
+     * row's, and their age and the current time fall within the row's ranges (when the
+     * table has "age" and "time" columns).
+     *
+     * <p>Rows with the same attribute values usually have disjoint age and time ranges,
+     * in which case they are found by binary search. Otherwise they are checked in the
+     * order they appear in the CSV file, and the first match is used.
+     */
+    private static final class LookupTable implements Serializable {
+      /** The CSV columns that are looked up as person attributes, in column order. */
+      private final String[] personColumns;
+      /** The person attribute names for personColumns. */
+      private final String[] personAttributes;
+      /** The number of values each row has, once its age and time ranges are removed. */
+      private final int rowLength;
+      private final boolean usesAge;
+      /** A Node for each attribute column, with a RangeIndex at the end of each path. */
+      private Object root;
+
+      private LookupTable(List<String> attributes) {
+        List<String> columns = new ArrayList<String>();
+        int rowLength = attributes.size();
+        boolean usesAge = false;
+        for (String attribute : attributes) {
+          if (attribute.equalsIgnoreCase("age")) {
+            usesAge = true;
+          } else if (!attribute.equalsIgnoreCase("time")) {
+            columns.add(attribute);
+          }
+        }
+        if (attributes.contains("age")) {
+          rowLength--;
+        }
+        if (attributes.contains("time")) {
+          rowLength--;
+        }
+        this.personColumns = columns.toArray(new String[0]);
+        this.personAttributes = new String[personColumns.length];
+        for (int i = 0; i < personColumns.length; i++) {
+          personAttributes[i] = personColumns[i].toLowerCase();
+        }
+        this.rowLength = rowLength;
+        this.usesAge = usesAge;
+        this.root = (rowLength == 0) ? new RangeIndex() : new Node();
+      }
+
+      /**
+       * Add a row to the table. As with the HashMap of LookupTableKeys this replaces,
+       * a row whose ranges contain those of an earlier row with the same attribute values
+       * replaces the transition probabilities of that row.
+       */
+      private void put(List<String> values, Range<Integer> ageRange, Range<Long> timeRange,
+          List<DistributedTransitionOption> options) {
+        Object node = root;
+        for (int i = 0; i < values.size(); i++) {
+          Map<String, Object> children = ((Node) node).children;
+          Object child = children.get(values.get(i));
+          if (child == null) {
+            child = (i == values.size() - 1) ? new RangeIndex() : new Node();
+            children.put(values.get(i), child);
+          }
+          node = child;
+        }
+        ((RangeIndex) node).put(new Row(ageRange, timeRange, options));
+      }
+
+      /**
+       * Build the range indexes, once every row has been added.
+       */
+      private void build() {
+        if (rowLength != personColumns.length) {
+          // an "age" or "time" column that isn't in lower case is compared with the
+          // person's age or the current time, but parsed as an attribute value, so no
+          // person can ever match a row of this table
+          root = null;
+        } else {
+          build(root);
+        }
+      }
+
+      private void build(Object node) {
+        if (node instanceof RangeIndex) {
+          ((RangeIndex) node).build();
+        } else {
+          for (Object child : ((Node) node).children.values()) {
+            build(child);
+          }
+        }
+      }
+
+      private static final class Node implements Serializable {
+        private final Map<String, Object> children = new HashMap<String, Object>();
+      }
+
+      private static final class Row implements Serializable {
+        /** Null if the table has no "age" column. */
+        private final Range<Integer> ageRange;
+        /** Null if the table has no "time" column. */
+        private final Range<Long> timeRange;
+        private List<DistributedTransitionOption> options;
+
+        private Row(Range<Integer> ageRange, Range<Long> timeRange,
+            List<DistributedTransitionOption> options) {
+          this.ageRange = ageRange;
+          this.timeRange = timeRange;
+          this.options = options;
+        }
+
+        private boolean matches(int age, long time) {
+          return (ageRange == null
+                  || (age >= ageRange.getMinimum() && age <= ageRange.getMaximum()))
+              && (timeRange == null
+                  || (time >= timeRange.getMinimum() && time <= timeRange.getMaximum()));
+        }
+
+        /**
+         * Whether this row's ranges contain the other row's, which is when
+         * LookupTableKey considered them equal.
+         */
+        private boolean contains(Row that) {
+          return (ageRange == null ? that.ageRange == null
+                  : that.ageRange != null && ageRange.containsRange(that.ageRange))
+              && (timeRange == null ? that.timeRange == null
+                  : that.timeRange != null && timeRange.containsRange(that.timeRange));
+        }
+      }
+
+      /**
+       * The rows that share the same attribute values.
+       */
+      private static final class RangeIndex implements Serializable {
+        /** Rows in CSV file order. */
+        private final List<Row> rows = new ArrayList<Row>();
+        /**
+         * Rows grouped by age range, with groups sorted by age and the rows of each group
+         * sorted by time. Null if the ranges overlap and rows must be checked in order.
+         */
+        private Row[][] groups;
+
+        private void put(Row row) {
+          for (Row existing : rows) {
+            if (row.contains(existing)) {
+              existing.options = row.options;
+              return;
+            }
+          }
+          rows.add(row);
+        }
+
+        private void build() {
+          List<Row> sorted = new ArrayList<Row>(rows);
+          sorted.sort((a, b) -> {
+            int order = (a.ageRange == null) ? 0
+                : Integer.compare(a.ageRange.getMinimum(), b.ageRange.getMinimum());
+            if (order == 0 && a.timeRange != null) {
+              order = Long.compare(a.timeRange.getMinimum(), b.timeRange.getMinimum());
+            }
+            return order;
+          });
+          List<Row[]> grouped = new ArrayList<Row[]>();
+          int start = 0;
+          for (int i = 1; i <= sorted.size(); i++) {
+            if (i == sorted.size()
+                || !Objects.equals(sorted.get(i).ageRange, sorted.get(start).ageRange)) {
+              Row[] group = sorted.subList(start, i).toArray(new Row[0]);
+              for (int j = 1; j < group.length; j++) {
+                if (group[j - 1].timeRange == null
+                    || group[j - 1].timeRange.getMaximum() >= group[j].timeRange.getMinimum()) {
+                  return;
+                }
+              }
+              if (!grouped.isEmpty()) {
+                Range<Integer> previous = grouped.get(grouped.size() - 1)[0].ageRange;
+                if (previous == null || previous.getMaximum() >= group[0].ageRange.getMinimum()) {
+                  return;
+                }
+              }
+              grouped.add(group);
+              start = i;
+            }
+          }
+          groups = grouped.toArray(new Row[0][]);
+        }
+
+        /**
+         * Find the transition probabilities of the row matching the age and time.
+         * @return the probabilities, or null if no row matches.
+         */
+        private List<DistributedTransitionOption> find(int age, long time) {
+          if (groups == null) {
+            for (Row row : rows) {
+              if (row.matches(age, time)) {
+                return row.options;
+              }
+            }
+            return null;
+          }
+          // the last group starting at or before the age
+          int low = 0;
+          int high = groups.length - 1;
+          while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (groups[mid][0].ageRange.getMinimum() <= age) {
+              low = mid;
+            } else {
+              high = mid - 1;
+            }
+          }
+          if (high < 0) {
+            return null;
+          }
+          Row[] group = groups[low];
+          // the last row of the group starting at or before the time
+          low = 0;
+          high = group.length - 1;
+          while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (group[mid].timeRange.getMinimum() <= time) {
+              low = mid;
+            } else {
+              high = mid - 1;
+            }
+          }
+          Row row = group[low];
+          return row.matches(age, time) ? row.options : null;
+        }
+      }
+    }
   }
 
   public final class LookupTableKey implements Serializable {
@@ -450,6 +766,14 @@ public abstract class Transition implements Serializable {
    */
   public static final class ConditionalTransitionOption extends TransitionOption {
     private Logic condition;
+
+    @Override
+    protected void compile(Map<String, Integer> stateIndexes) {
+      super.compile(stateIndexes);
+      if (condition != null) {
+        condition.compile();
+      }
+    }
   }
 
   /**
@@ -471,15 +795,21 @@ public abstract class Transition implements Serializable {
     }
 
     @Override
-    public String follow(Person person, long time) {
+    protected TransitionOption choose(Person person, long time) {
       for (ConditionalTransitionOption option : transitions) {
         if (option.condition == null || option.condition.test(person, time)) {
-          return option.transition;
+          return option;
         }
       }
       // fallback, just return the last transition
-      TransitionOption last = transitions.get(transitions.size() - 1);
-      return last.transition;
+      return transitions.get(transitions.size() - 1);
+    }
+
+    @Override
+    protected void compile(Map<String, Integer> stateIndexes) {
+      for (ConditionalTransitionOption option : transitions) {
+        option.compile(stateIndexes);
+      }
     }
   }
 
@@ -491,6 +821,22 @@ public abstract class Transition implements Serializable {
   public static final class ComplexTransitionOption extends TransitionOption {
     private Logic condition;
     private List<DistributedTransitionOption> distributions;
+    private double[] cumulative;
+
+    @Override
+    protected void compile(Map<String, Integer> stateIndexes) {
+      if (condition != null) {
+        condition.compile();
+      }
+      if (transition != null) {
+        super.compile(stateIndexes);
+      } else if (distributions != null) {
+        for (DistributedTransitionOption option : distributions) {
+          option.compile(stateIndexes);
+        }
+        cumulative = cumulativeDistribution(distributions);
+      }
+    }
   }
 
   /**
@@ -516,7 +862,7 @@ public abstract class Transition implements Serializable {
     }
 
     @Override
-    public String follow(Person person, long time) {
+    protected TransitionOption choose(Person person, long time) {
       for (ComplexTransitionOption option : transitions) {
         if (option.condition == null || option.condition.test(person, time)) {
           return follow(option, person);
@@ -528,18 +874,67 @@ public abstract class Transition implements Serializable {
       return follow(last, person);
     }
 
-    private String follow(ComplexTransitionOption option, Person person) {
+    private TransitionOption follow(ComplexTransitionOption option, Person person) {
       if (option.transition != null) {
-        return option.transition;
+        return option;
+      } else if (option.cumulative != null) {
+        return pickCompiledDistributedTransition(option.distributions, option.cumulative, person);
       } else if (option.distributions != null) {
         return pickDistributedTransition(option.distributions, person);
       }
       throw new IllegalArgumentException(
           "Complex Transition must have either transition or distributions");
     }
+
+    @Override
+    protected void compile(Map<String, Integer> stateIndexes) {
+      for (ComplexTransitionOption option : transitions) {
+        option.compile(stateIndexes);
+      }
+    }
+  }
+
+  /**
+   * Sum the fixed distributions of the given options, in order, so that a transition can
+   * be picked by searching the running totals. The totals are added up exactly as
+   * pickDistributedTransition does, so both pick the same option for the same number.
+   * @param transitions The options to sum.
+   * @return the running totals, or null if any option depends on a person's attributes.
+   */
+  private static double[] cumulativeDistribution(List<DistributedTransitionOption> transitions) {
+    double[] cumulative = new double[transitions.size()];
+    double high = 0.0;
+    for (int i = 0; i < cumulative.length; i++) {
+      DistributedTransitionOption option = transitions.get(i);
+      processDistributedTransition(option);
+      if (option.numericDistribution == null || option.numericDistribution < 0.0) {
+        return null;
+      }
+      high += option.numericDistribution;
+      cumulative[i] = high;
+    }
+    return cumulative;
+  }
+
+  private static TransitionOption pickCompiledDistributedTransition(
+      List<DistributedTransitionOption> transitions, double[] cumulative, Person person) {
+    double p = person.rand();
+    // find the first option whose running total is above p
+    int low = 0;
+    int high = cumulative.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (p < cumulative[mid]) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    // fallback, just return the last transition
+    return transitions.get(Math.min(low, cumulative.length - 1));
   }
 
-  private static String pickDistributedTransition(
+  private static TransitionOption pickDistributedTransition(
       List<DistributedTransitionOption> transitions, Person person) {
     double p = person.rand();
     double high = 0.0;
@@ -556,12 +951,11 @@ public abstract class Transition implements Serializable {
         high += dist;
       }
       if (p < high) {
-        return option.transition;
+        return option;
       }
     }
     // fallback, just return the last transition
-    TransitionOption last = transitions.get(transitions.size() - 1);
-    return last.transition;
+    return transitions.get(transitions.size() - 1);
   }
 
   private static void processDistributedTransition(DistributedTransitionOption option) {
@@ -60,6 +60,11 @@ import org.mitre.synthea.world.concepts.HealthRecord.Supply;
  * procedures.csv, and immunizations.csv.
  */
 public class CSVExporter {
+  /**
+   * File of unrounded payer totals, written by sharded runs for ShardMerger.
+   */
+  static final String PAYER_TOTALS = "payer_totals.csv";
+
   /**
    * Writer for patients.csv.
    */
@@ -375,6 +380,31 @@ public class CSVExporter {
     payers.flush();
   }
 
+  /**
+   * Export the payer_totals.csv file, with the totals behind the rounded and averaged columns
+   * of payers.csv, so that ShardMerger can combine the payers of several shards exactly.
+   * This method should be called once after all the Patient records have been exported.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  public void exportPayerTotals() throws IOException {
+    List<Payer> allPayers = new ArrayList<>(Payer.getAllPayers());
+    allPayers.add(Payer.noInsurance);
+    File file = Exporter.getOutputFolder("csv", null).toPath().resolve(PAYER_TOTALS).toFile();
+    try (OutputStreamWriter writer =
+        new OutputStreamWriter(new FileOutputStream(file), charset)) {
+      writer.write("Id,AMOUNT_COVERED,AMOUNT_UNCOVERED,REVENUE,TOTAL_QOLS");
+      writer.write(NEWLINE);
+      for (Payer payer : allPayers) {
+        // doubles are written in full, so they are read back exactly
+        writer.write(payer.getResourceID() + "," + payer.getAmountCovered() + ","
+            + payer.getAmountUncovered() + "," + payer.getRevenue() + ","
+            + payer.getTotalQols());
+        writer.write(NEWLINE);
+      }
+    }
+  }
+
   /**
    * Export the payerTransitions.csv file. This method should be called once after all the
    * Patient records have been exported using the export(Person,long) method.
@@ -10,11 +10,18 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ServiceLoader;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Predicate;
 import org.apache.commons.lang3.tuple.ImmutablePair;
@@ -46,6 +53,40 @@ public abstract class Exporter {
   private static final List<Pair<Person, Long>> deferredExports = 
           Collections.synchronizedList(new LinkedList<>());
 
+  /** The formats every record is exported to, in order. */
+  private static final List<RecordSink> SINKS = new CopyOnWriteArrayList<RecordSink>(
+      Arrays.asList(
+          new ConfiguredSink("exporter.fhir_stu3.export", Exporter::exportFhirStu3),
+          new ConfiguredSink("exporter.fhir_dstu2.export", Exporter::exportFhirDstu2),
+          new ConfiguredSink("exporter.fhir.export", Exporter::exportFhirR4),
+          new ConfiguredSink("exporter.ccda.export", Exporter::exportCcda),
+          new ConfiguredSink("exporter.csv.export", (person, fileTag, stopTime, options) ->
+              CSVExporter.getInstance().export(person, stopTime)),
+          new ConfiguredSink("exporter.cpcds.export", (person, fileTag, stopTime, options) ->
+              CPCDSExporter.getInstance().export(person, stopTime)),
+          new ConfiguredSink("exporter.text.export", (person, fileTag, stopTime, options) ->
+              TextExporter.exportAll(person, fileTag, stopTime)),
+          new ConfiguredSink("exporter.text.per_encounter_export",
+              (person, fileTag, stopTime, options) ->
+                  TextExporter.exportEncounter(person, stopTime)),
+          new ConfiguredSink("exporter.symptoms.csv.export",
+              (person, fileTag, stopTime, options) ->
+                  SymptomCSVExporter.getInstance().export(person, stopTime)),
+          new ConfiguredSink("exporter.symptoms.text.export",
+              (person, fileTag, stopTime, options) ->
+                  SymptomTextExporter.exportAll(person, fileTag, stopTime)),
+          new ConfiguredSink("exporter.cdw.export", (person, fileTag, stopTime, options) ->
+              CDWExporter.getInstance().export(person, stopTime)),
+          new ConfiguredSink("exporter.clinical_note.export", Exporter::exportClinicalNotes)));
+
+  static {
+    for (RecordSink sink : ServiceLoader.load(RecordSink.class)) {
+      SINKS.add(sink);
+    }
+  }
+
+  private static ExecutorService sinkPool;
+
   /**
    * Runtime configuration of the record exporter.
    */
@@ -53,6 +94,8 @@ public abstract class Exporter {
     
     public int yearsOfHistory;
     public boolean deferExports = false;
+    /** Replace existing files instead of failing to write them, e.g. when resuming a run. */
+    public boolean overwriteFiles = false;
     public boolean terminologyService =
         !Config.get("generate.terminology_service_url", "").isEmpty();
     private BlockingQueue<String> recordQueue;
@@ -68,6 +111,7 @@ public abstract class Exporter {
     public ExporterRuntimeOptions(ExporterRuntimeOptions init) {
       yearsOfHistory = init.yearsOfHistory;
       deferExports = init.deferExports;
+      overwriteFiles = init.overwriteFiles;
       terminologyService = init.terminologyService;
       recordQueue = init.recordQueue;
       fhirVersion = init.fhirVersion;
@@ -129,6 +173,11 @@ public abstract class Exporter {
       if (!person.alive(stopTime)) {
         filterAfterDeath(person);
       }
+      // the filtering above is done once, the sinks only read the person
+      List<Person> views = null;
+      if (Config.getAsBoolean("exporter.parallel_sinks", false)) {
+        views = new ArrayList<Person>();
+      }
       if (person.hasMultipleRecords) {
         int i = 0;
         for (String key : person.records.keySet()) {
@@ -143,11 +192,11 @@ public abstract class Exporter {
             FixedRecord fr = rg.records.get(recordToPull);
             fr.totalOverwrite(person);
           }
-          exportRecord(person, Integer.toString(i), stopTime, options);
+          exportRecord(person, views, Integer.toString(i), stopTime, options);
           i++;
         }
       } else {
-        exportRecord(person, "", stopTime, options);
+        exportRecord(person, views, "", stopTime, options);
       }
     }
   }
@@ -168,131 +217,34 @@ public abstract class Exporter {
    * (Formats may be enabled or disabled by configuration)
    *
    * @param person   Patient to export, with Patient.record being set.
+   * @param views    The view of the person for each enabled sink, in order, when sinks run
+   *                 concurrently, otherwise null.
    * @param fileTag  An identifier to tag the file with.
    * @param stopTime Time at which the simulation stopped
    * @param options Generator's record queue (may be null)
    */
-  private static void exportRecord(Person person, String fileTag, long stopTime,
-          ExporterRuntimeOptions options) {
+  private static void exportRecord(Person person, List<Person> views,
+      String fileTag, long stopTime, ExporterRuntimeOptions options) {
     if (options.terminologyService) {
       // Resolve any coded values within the record that are specified using a ValueSet URI.
       ValueSetCodeResolver valueSetCodeResolver = new ValueSetCodeResolver(person);
       valueSetCodeResolver.resolve();
     }
 
-    if (Config.getAsBoolean("exporter.fhir_stu3.export")) {
-      File outDirectory = getOutputFolder("fhir_stu3", person);
-      if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
-        org.hl7.fhir.dstu3.model.Bundle bundle = FhirStu3.convertToFHIR(person, stopTime);
-        IParser parser = FhirStu3.getContext().newJsonParser().setPrettyPrint(false);
-        for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceType().toString() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
-        }
-      } else {
-        String bundleJson = FhirStu3.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
-    }
-    if (Config.getAsBoolean("exporter.fhir_dstu2.export")) {
-      File outDirectory = getOutputFolder("fhir_dstu2", person);
-      if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
-        ca.uhn.fhir.model.dstu2.resource.Bundle bundle = FhirDstu2.convertToFHIR(person, stopTime);
-        IParser parser = FhirDstu2.getContext().newJsonParser().setPrettyPrint(false);
-        for (ca.uhn.fhir.model.dstu2.resource.Bundle.Entry entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceName() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
-        }
-      } else {
-        String bundleJson = FhirDstu2.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
-    }
-    if (Config.getAsBoolean("exporter.fhir.export")) {
-      File outDirectory = getOutputFolder("fhir", person);
-      if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
-        org.hl7.fhir.r4.model.Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
-        IParser parser = FhirR4.getContext().newJsonParser().setPrettyPrint(false);
-        for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-          String filename = entry.getResource().getResourceType().toString() + ".ndjson";
-          Path outFilePath = outDirectory.toPath().resolve(filename);
-          String entryJson = parser.encodeResourceToString(entry.getResource());
-          appendToFile(outFilePath, entryJson);
-        }
-      } else {
-        String bundleJson = FhirR4.convertToFHIRJson(person, stopTime);
-        Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
-        writeNewFile(outFilePath, bundleJson);
-      }
-      FhirGroupExporterR4.addPatient((String) person.attributes.get(Person.ID));
-    }
-    if (Config.getAsBoolean("exporter.ccda.export")) {
-      String ccdaXml = CCDAExporter.export(person, stopTime);
-      File outDirectory = getOutputFolder("ccda", person);
-      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "xml"));
-      writeNewFile(outFilePath, ccdaXml);
-    }
-    if (Config.getAsBoolean("exporter.csv.export")) {
-      try {
-        CSVExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    if (Config.getAsBoolean("exporter.cpcds.export")) {
-      try {
-        CPCDSExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    if (Config.getAsBoolean("exporter.text.export")) {
-      try {
-        TextExporter.exportAll(person, fileTag, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    if (Config.getAsBoolean("exporter.text.per_encounter_export")) {
-      try {
-        TextExporter.exportEncounter(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    if (Config.getAsBoolean("exporter.symptoms.csv.export")) {
-      try {
-        SymptomCSVExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
+    List<RecordSink> sinks = new ArrayList<RecordSink>();
+    for (RecordSink sink : SINKS) {
+      if (sink.isEnabled()) {
+        sinks.add(sink);
       }
     }
-    if (Config.getAsBoolean("exporter.symptoms.text.export")) {
-      try {
-        SymptomTextExporter.exportAll(person, fileTag, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    if (Config.getAsBoolean("exporter.cdw.export")) {
-      try {
-        CDWExporter.getInstance().export(person, stopTime);
-      } catch (IOException e) {
-        e.printStackTrace();
+    if (views != null && sinks.size() > 1) {
+      exportConcurrently(person, views, sinks, fileTag, stopTime, options);
+    } else {
+      for (RecordSink sink : sinks) {
+        exportTo(sink, person, fileTag, stopTime, options);
       }
     }
-    if (Config.getAsBoolean("exporter.clinical_note.export")) {
-      File outDirectory = getOutputFolder("notes", person);
-      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "txt"));
-      String consolidatedNotes = ClinicalNoteExporter.export(person);
-      writeNewFile(outFilePath, consolidatedNotes);
-    }
+
     if (options.isQueueEnabled()) {
       try {
         switch (options.queuedFhirVersion()) {
@@ -314,14 +266,196 @@ public abstract class Exporter {
     }
   }
 
+  private static void exportTo(RecordSink sink, Person person, String fileTag, long stopTime,
+      ExporterRuntimeOptions options) {
+    try {
+      sink.export(person, fileTag, stopTime, options);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Run the sinks for a record at the same time, each on its own view of the person, and
+   * wait for all of them to finish. The time a record takes is then that of the slowest sink,
+   * rather than the sum of them all.
+   */
+  private static void exportConcurrently(Person person, List<Person> views,
+      List<RecordSink> sinks, String fileTag, long stopTime, ExporterRuntimeOptions options) {
+    List<Future<?>> futures = new ArrayList<Future<?>>(sinks.size());
+    for (int i = 0; i < sinks.size(); i++) {
+      RecordSink sink = sinks.get(i);
+      Person view;
+      if (i == views.size()) {
+        // seeded from the person in sink order, so the IDs in each format are reproducible
+        view = person.exportView(person.randLong());
+        views.add(view);
+      } else {
+        view = views.get(i);
+        // pick up any attributes set on the person for this record, e.g. by fixed records
+        view.attributes.putAll(person.attributes);
+      }
+      view.record = person.record;
+      Person sinkView = view;
+      futures.add(getSinkPool().submit(
+          () -> exportTo(sink, sinkView, fileTag, stopTime, options)));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        e.getCause().printStackTrace();
+      }
+    }
+  }
+
+  private static synchronized ExecutorService getSinkPool() {
+    if (sinkPool == null) {
+      int threads = Integer.parseInt(Config.get("exporter.parallel_sinks.threads", "0"));
+      if (threads < 1) {
+        threads = Runtime.getRuntime().availableProcessors();
+      }
+      sinkPool = Executors.newFixedThreadPool(threads, task -> {
+        Thread thread = new Thread(task, "exporter-sink");
+        // the pool lives as long as the exporter, it must not keep the JVM running
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return sinkPool;
+  }
+
+  /**
+   * Add a sink that every record is exported to, after the built-in formats.
+   * @param sink The sink.
+   */
+  public static void addSink(RecordSink sink) {
+    SINKS.add(sink);
+  }
+
+  /**
+   * Remove a sink added with addSink, however many times it was added.
+   * @param sink The sink.
+   * @return true if the sink was removed.
+   */
+  public static boolean removeSink(RecordSink sink) {
+    return SINKS.removeIf(s -> s == sink);
+  }
+
+  /**
+   * A built-in format, enabled by a boolean configuration setting.
+   */
+  private static class ConfiguredSink implements RecordSink {
+    private final String setting;
+    private final RecordSink sink;
+
+    private ConfiguredSink(String setting, RecordSink sink) {
+      this.setting = setting;
+      this.sink = sink;
+    }
+
+    @Override
+    public boolean isEnabled() {
+      return Config.getAsBoolean(setting);
+    }
+
+    @Override
+    public void export(Person person, String fileTag, long stopTime,
+        ExporterRuntimeOptions options) throws IOException {
+      sink.export(person, fileTag, stopTime, options);
+    }
+  }
+
+  private static void exportFhirStu3(Person person, String fileTag, long stopTime,
+      ExporterRuntimeOptions options) {
+    File outDirectory = getOutputFolder("fhir_stu3", person);
+    if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+      org.hl7.fhir.dstu3.model.Bundle bundle = FhirStu3.convertToFHIR(person, stopTime);
+      IParser parser = FhirStu3.getContext().newJsonParser().setPrettyPrint(false);
+      for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+        String filename = entry.getResource().getResourceType().toString() + ".ndjson";
+        Path outFilePath = outDirectory.toPath().resolve(filename);
+        String entryJson = parser.encodeResourceToString(entry.getResource());
+        appendToFile(outFilePath, entryJson);
+      }
+    } else {
+      String bundleJson = FhirStu3.convertToFHIRJson(person, stopTime);
+      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+      writeNewFile(outFilePath, bundleJson, options.overwriteFiles);
+    }
+  }
+
+  private static void exportFhirDstu2(Person person, String fileTag, long stopTime,
+      ExporterRuntimeOptions options) {
+    File outDirectory = getOutputFolder("fhir_dstu2", person);
+    if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+      ca.uhn.fhir.model.dstu2.resource.Bundle bundle = FhirDstu2.convertToFHIR(person, stopTime);
+      IParser parser = FhirDstu2.getContext().newJsonParser().setPrettyPrint(false);
+      for (ca.uhn.fhir.model.dstu2.resource.Bundle.Entry entry : bundle.getEntry()) {
+        String filename = entry.getResource().getResourceName() + ".ndjson";
+        Path outFilePath = outDirectory.toPath().resolve(filename);
+        String entryJson = parser.encodeResourceToString(entry.getResource());
+        appendToFile(outFilePath, entryJson);
+      }
+    } else {
+      String bundleJson = FhirDstu2.convertToFHIRJson(person, stopTime);
+      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+      writeNewFile(outFilePath, bundleJson, options.overwriteFiles);
+    }
+  }
+
+  private static void exportFhirR4(Person person, String fileTag, long stopTime,
+      ExporterRuntimeOptions options) {
+    File outDirectory = getOutputFolder("fhir", person);
+    if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+      org.hl7.fhir.r4.model.Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
+      IParser parser = FhirR4.getContext().newJsonParser().setPrettyPrint(false);
+      for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+        String filename = entry.getResource().getResourceType().toString() + ".ndjson";
+        Path outFilePath = outDirectory.toPath().resolve(filename);
+        String entryJson = parser.encodeResourceToString(entry.getResource());
+        appendToFile(outFilePath, entryJson);
+      }
+    } else {
+      String bundleJson = FhirR4.convertToFHIRJson(person, stopTime);
+      Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
+      writeNewFile(outFilePath, bundleJson, options.overwriteFiles);
+    }
+    FhirGroupExporterR4.addPatient((String) person.attributes.get(Person.ID));
+  }
+
+  private static void exportCcda(Person person, String fileTag, long stopTime,
+      ExporterRuntimeOptions options) {
+    String ccdaXml = CCDAExporter.export(person, stopTime);
+    File outDirectory = getOutputFolder("ccda", person);
+    Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "xml"));
+    writeNewFile(outFilePath, ccdaXml, options.overwriteFiles);
+  }
+
+  private static void exportClinicalNotes(Person person, String fileTag, long stopTime,
+      ExporterRuntimeOptions options) {
+    File outDirectory = getOutputFolder("notes", person);
+    Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "txt"));
+    String consolidatedNotes = ClinicalNoteExporter.export(person);
+    writeNewFile(outFilePath, consolidatedNotes, options.overwriteFiles);
+  }
+
   /**
    * Write a new file with the given contents.
    * @param file Path to the new file.
    * @param contents The contents of the file.
+   * @param overwrite Whether to replace the file if it already exists.
    */
-  private static void writeNewFile(Path file, String contents) {
+  private static void writeNewFile(Path file, String contents, boolean overwrite) {
     try {
-      Files.write(file, Collections.singleton(contents), StandardOpenOption.CREATE_NEW);
+      if (overwrite) {
+        Files.write(file, Collections.singleton(contents));
+      } else {
+        Files.write(file, Collections.singleton(contents), StandardOpenOption.CREATE_NEW);
+      }
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -430,6 +564,9 @@ public abstract class Exporter {
       try {
         CSVExporter.getInstance().exportOrganizationsAndProviders();
         CSVExporter.getInstance().exportPayers();
+        if (generator.options.shardCount > 1) {
+          CSVExporter.getInstance().exportPayerTotals();
+        }
       } catch (IOException e) {
         e.printStackTrace();
       }
@@ -536,6 +673,54 @@ public abstract class Exporter {
     return record;
   }
 
+  /**
+   * Filter the patient's history to only what is new or has changed since the record was
+   * last exported: entries that started after the given time, or that stopped after it
+   * (for example a condition that has since resolved). Encounters are kept if they started
+   * after the given time or still hold any entries.
+   *
+   * @param original The Person to filter.
+   * @param since    The stop time the record was last exported with.
+   * @param endTime  The time the history ends.
+   * @return Modified Person with the previously exported history expunged.
+   */
+  public static Person filterForDelta(Person original, long since, long endTime) {
+    if (original.hasMultipleRecords) {
+      for (HealthRecord record : original.records.values()) {
+        filterForDelta(record, since, endTime);
+      }
+    } else {
+      filterForDelta(original.record, since, endTime);
+    }
+    return original;
+  }
+
+  private static void filterForDelta(HealthRecord record, long since, long endTime) {
+    for (Encounter encounter : record.encounters) {
+      List<HealthRecord.Entry> claimItems = encounter.claim.items;
+      filterEntries(encounter.conditions, claimItems, since, endTime, null);
+      filterEntries(encounter.allergies, claimItems, since, endTime, null);
+      filterEntries(encounter.observations, claimItems, since, endTime, null);
+      filterEntries(encounter.reports, claimItems, since, endTime, null);
+      filterEntries(encounter.procedures, claimItems, since, endTime, null);
+      filterEntries(encounter.medications, claimItems, since, endTime, null);
+      filterEntries(encounter.immunizations, claimItems, since, endTime, null);
+      filterEntries(encounter.careplans, claimItems, since, endTime, null);
+      filterEntries(encounter.imagingStudies, claimItems, since, endTime, null);
+      filterEntries(encounter.devices, claimItems, since, endTime, null);
+      filterEntries(encounter.supplies, claimItems, since, endTime, null);
+    }
+
+    Predicate<Encounter> encounterNotEmpty = e ->
+        !e.conditions.isEmpty() || !e.allergies.isEmpty()
+            || !e.observations.isEmpty() || !e.reports.isEmpty()
+            || !e.procedures.isEmpty() || !e.medications.isEmpty()
+            || !e.immunizations.isEmpty() || !e.careplans.isEmpty()
+            || !e.imagingStudies.isEmpty() || !e.devices.isEmpty()
+            || !e.supplies.isEmpty();
+    filterEntries(record.encounters, Collections.emptyList(), since, endTime, encounterNotEmpty);
+  }
+
   /**
    * Helper function to filter entries from a list. Entries are kept if their date range falls
    * within the provided range or if `keepFunction` is provided, and returns `true` for the given
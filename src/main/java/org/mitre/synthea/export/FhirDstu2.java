@@ -96,6 +96,7 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -193,16 +194,21 @@ public class FhirDstu2 {
     }
 
     Entry personEntry = basicInfo(person, bundle, stopTime);
+    // the fullUrl of each entry in this bundle. The record may be exported to other formats
+    // at the same time, so fullUrls are kept here rather than on the entries themselves.
+    Map<HealthRecord.Entry, String> fullUrls = new IdentityHashMap<>();
 
     for (Encounter encounter : person.record.encounters) {
       Entry encounterEntry = encounter(person, personEntry, bundle, encounter);
 
       for (HealthRecord.Entry condition : encounter.conditions) {
-        condition(person, personEntry, bundle, encounterEntry, condition);
+        fullUrls.put(condition,
+            condition(person, personEntry, bundle, encounterEntry, condition).getFullUrl());
       }
 
       for (HealthRecord.Entry allergy : encounter.allergies) {
-        allergy(person, personEntry, bundle, encounterEntry, allergy);
+        fullUrls.put(allergy,
+            allergy(person, personEntry, bundle, encounterEntry, allergy).getFullUrl());
       }
 
       for (Observation observation : encounter.observations) {
@@ -211,12 +217,14 @@ public class FhirDstu2 {
         if (observation.value instanceof Attachment) {
           media(person, personEntry, bundle, encounterEntry, observation);
         } else {
-          observation(person, personEntry, bundle, encounterEntry, observation);
+          fullUrls.put(observation,
+              observation(person, personEntry, bundle, encounterEntry, observation).getFullUrl());
         }
       }
 
       for (Procedure procedure : encounter.procedures) {
-        procedure(person, personEntry, bundle, encounterEntry, procedure);
+        fullUrls.put(procedure,
+            procedure(person, personEntry, bundle, encounterEntry, procedure).getFullUrl());
       }
 
       for (Medication medication : encounter.medications) {
@@ -224,11 +232,12 @@ public class FhirDstu2 {
       }
 
       for (HealthRecord.Entry immunization : encounter.immunizations) {
-        immunization(person, personEntry, bundle, encounterEntry, immunization);
+        fullUrls.put(immunization,
+            immunization(person, personEntry, bundle, encounterEntry, immunization).getFullUrl());
       }
 
       for (Report report : encounter.reports) {
-        report(person, personEntry, bundle, encounterEntry, report);
+        report(person, personEntry, bundle, encounterEntry, report, fullUrls);
       }
 
       for (CarePlan careplan : encounter.careplans) {
@@ -819,7 +828,6 @@ public class FhirDstu2 {
 
     Entry conditionEntry = newEntry(rand, bundle, conditionResource);
 
-    condition.fullUrl = conditionEntry.getFullUrl();
 
     return conditionEntry;
   }
@@ -861,7 +869,6 @@ public class FhirDstu2 {
     allergyResource.setSubstance(mapCodeToCodeableConcept(code, SNOMED_URI));
 
     Entry allergyEntry = newEntry(rand, bundle, allergyResource);
-    allergy.fullUrl = allergyEntry.getFullUrl();
     return allergyEntry;
   }
 
@@ -916,7 +923,6 @@ public class FhirDstu2 {
     observationResource.setIssued(new InstantDt(new Date(observation.start)));
 
     Entry entry = newEntry(rand, bundle, observationResource);
-    observation.fullUrl = entry.getFullUrl();
     return entry;
   }
 
@@ -1040,7 +1046,6 @@ public class FhirDstu2 {
     }
 
     Entry procedureEntry = newEntry(rand, bundle, procedureResource);
-    procedure.fullUrl = procedureEntry.getFullUrl();
 
     return procedureEntry;
   }
@@ -1056,7 +1061,6 @@ public class FhirDstu2 {
     immResource.setPatient(new ResourceReferenceDt(personEntry.getFullUrl()));
     immResource.setEncounter(new ResourceReferenceDt(encounterEntry.getFullUrl()));
     Entry immunizationEntry = newEntry(rand, bundle, immResource);
-    immunization.fullUrl = immunizationEntry.getFullUrl();
 
     return immunizationEntry;
   }
@@ -1244,10 +1248,12 @@ public class FhirDstu2 {
    *          Current Encounter entry
    * @param report
    *          The Report
+   * @param fullUrls
+   *          The fullUrls of the entries in the Bundle
    * @return The added Entry
    */
   private static Entry report(RandomNumberGenerator rand, Entry personEntry, Bundle bundle,
-          Entry encounterEntry, Report report) {
+          Entry encounterEntry, Report report, Map<HealthRecord.Entry, String> fullUrls) {
     DiagnosticReport reportResource = new DiagnosticReport();
     reportResource.setStatus(DiagnosticReportStatusEnum.FINAL);
     /*
@@ -1271,7 +1277,7 @@ public class FhirDstu2 {
     reportResource.setPerformer(encounter.getServiceProvider());
 
     for (Observation observation : report.observations) {
-      ResourceReferenceDt reference = new ResourceReferenceDt(observation.fullUrl);
+      ResourceReferenceDt reference = new ResourceReferenceDt(fullUrls.get(observation));
       reference.setDisplay(observation.codes.get(0).display);
       List<ResourceReferenceDt> result = new ArrayList<ResourceReferenceDt>();
       result.add(reference);
@@ -1778,7 +1784,8 @@ public class FhirDstu2 {
   private static CodeableConceptDt mapCodeToCodeableConcept(Code from, String system) {
     CodeableConceptDt to = new CodeableConceptDt();
     system = system == null ? null : ExportHelper.getSystemURI(system);
-    from.system = ExportHelper.getSystemURI(from.system);
+    // the code may be shared with other exports, so it's left as it is
+    String fromSystem = ExportHelper.getSystemURI(from.system);
 
     if (from.display != null) {
       to.setText(from.display);
@@ -1787,10 +1794,10 @@ public class FhirDstu2 {
     CodingDt coding = new CodingDt();
     coding.setCode(from.code);
     coding.setDisplay(from.display);
-    if (from.system == null) {
+    if (fromSystem == null) {
       coding.setSystem(system);
     } else {
-      coding.setSystem(from.system);
+      coding.setSystem(fromSystem);
     }
 
     to.addCoding(coding);
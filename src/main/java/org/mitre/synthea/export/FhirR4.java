@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -262,16 +263,21 @@ public class FhirR4 {
     }
 
     BundleEntryComponent personEntry = basicInfo(person, bundle, stopTime);
+    // the fullUrl of each entry in this bundle. The record may be exported to other formats
+    // at the same time, so fullUrls are kept here rather than on the entries themselves.
+    Map<HealthRecord.Entry, String> fullUrls = new IdentityHashMap<>();
 
     for (Encounter encounter : person.record.encounters) {
       BundleEntryComponent encounterEntry = encounter(person, personEntry, bundle, encounter);
 
       for (HealthRecord.Entry condition : encounter.conditions) {
-        condition(person, personEntry, bundle, encounterEntry, condition);
+        fullUrls.put(condition,
+            condition(person, personEntry, bundle, encounterEntry, condition).getFullUrl());
       }
 
       for (HealthRecord.Entry allergy : encounter.allergies) {
-        allergy(person, personEntry, bundle, encounterEntry, allergy);
+        fullUrls.put(allergy,
+            allergy(person, personEntry, bundle, encounterEntry, allergy).getFullUrl());
       }
 
       for (Observation observation : encounter.observations) {
@@ -280,12 +286,14 @@ public class FhirR4 {
         if (observation.value instanceof Attachment) {
           media(person, personEntry, bundle, encounterEntry, observation);
         } else {
-          observation(person, personEntry, bundle, encounterEntry, observation);
+          fullUrls.put(observation,
+              observation(person, personEntry, bundle, encounterEntry, observation).getFullUrl());
         }
       }
 
       for (Procedure procedure : encounter.procedures) {
-        procedure(person, personEntry, bundle, encounterEntry, procedure);
+        fullUrls.put(procedure,
+            procedure(person, personEntry, bundle, encounterEntry, procedure).getFullUrl());
       }
 
       for (HealthRecord.Device device : encounter.devices) {
@@ -301,11 +309,12 @@ public class FhirR4 {
       }
 
       for (HealthRecord.Entry immunization : encounter.immunizations) {
-        immunization(person, personEntry, bundle, encounterEntry, immunization);
+        fullUrls.put(immunization,
+            immunization(person, personEntry, bundle, encounterEntry, immunization).getFullUrl());
       }
 
       for (Report report : encounter.reports) {
-        report(person, personEntry, bundle, encounterEntry, report);
+        report(person, personEntry, bundle, encounterEntry, report, fullUrls);
       }
 
       for (CarePlan careplan : encounter.careplans) {
@@ -328,7 +337,8 @@ public class FhirR4 {
 
       // one claim per encounter
       BundleEntryComponent encounterClaim =
-          encounterClaim(person, personEntry, bundle, encounterEntry, encounter.claim);
+          encounterClaim(person, personEntry, bundle, encounterEntry, encounter.claim,
+              fullUrls);
 
       explanationOfBenefit(personEntry, bundle, encounterEntry, person,
           encounterClaim, encounter);
@@ -929,11 +939,13 @@ public class FhirR4 {
    * @param bundle         The Bundle to add to
    * @param encounterEntry The current Encounter
    * @param claim          the Claim object
+   * @param fullUrls       The fullUrls of the entries in the Bundle
    * @return the added Entry
    */
   private static BundleEntryComponent encounterClaim(
       Person person, BundleEntryComponent personEntry,
-      Bundle bundle, BundleEntryComponent encounterEntry, Claim claim) {
+      Bundle bundle, BundleEntryComponent encounterEntry, Claim claim,
+      Map<HealthRecord.Entry, String> fullUrls) {
     org.hl7.fhir.r4.model.Claim claimResource = new org.hl7.fhir.r4.model.Claim();
     org.hl7.fhir.r4.model.Encounter encounterResource =
         (org.hl7.fhir.r4.model.Encounter) encounterEntry.getResource();
@@ -996,14 +1008,14 @@ public class FhirR4 {
         claimResource.addItem(claimItem);
 
         if (item instanceof Procedure) {
-          Type procedureReference = new Reference(item.fullUrl);
+          Type procedureReference = new Reference(fullUrls.get(item));
           ProcedureComponent claimProcedure = new ProcedureComponent(
               new PositiveIntType(procedureSequence), procedureReference);
           claimResource.addProcedure(claimProcedure);
           claimItem.addProcedureSequence(procedureSequence);
           procedureSequence++;
         } else {
-          Reference informationReference = new Reference(item.fullUrl);
+          Reference informationReference = new Reference(fullUrls.get(item));
           SupportingInformationComponent informationComponent =
               new SupportingInformationComponent();
           informationComponent.setSequence(informationSequence);
@@ -1020,7 +1032,7 @@ public class FhirR4 {
       } else {
         // assume it's a Condition, we don't have a Condition class specifically
         // add diagnosisComponent to claim
-        Reference diagnosisReference = new Reference(item.fullUrl);
+        Reference diagnosisReference = new Reference(fullUrls.get(item));
         DiagnosisComponent diagnosisComponent =
             new DiagnosisComponent(
                 new PositiveIntType(conditionSequence), diagnosisReference);
@@ -1425,7 +1437,6 @@ public class FhirR4 {
 
     BundleEntryComponent conditionEntry = newEntry(rand, bundle, conditionResource);
 
-    condition.fullUrl = conditionEntry.getFullUrl();
 
     return conditionEntry;
   }
@@ -1480,7 +1491,6 @@ public class FhirR4 {
       allergyResource.setMeta(meta);
     }
     BundleEntryComponent allergyEntry = newEntry(rand, bundle, allergyResource);
-    allergy.fullUrl = allergyEntry.getFullUrl();
     return allergyEntry;
   }
 
@@ -1571,7 +1581,6 @@ public class FhirR4 {
     }
 
     BundleEntryComponent entry = newEntry(rand, bundle, observationResource);
-    observation.fullUrl = entry.getFullUrl();
     return entry;
   }
 
@@ -1708,7 +1717,6 @@ public class FhirR4 {
     }
 
     BundleEntryComponent procedureEntry = newEntry(rand, bundle, procedureResource);
-    procedure.fullUrl = procedureEntry.getFullUrl();
 
     return procedureEntry;
   }
@@ -1891,7 +1899,6 @@ public class FhirR4 {
     }
 
     BundleEntryComponent immunizationEntry = newEntry(rand, bundle, immResource);
-    immunization.fullUrl = immunizationEntry.getFullUrl();
 
     return immunizationEntry;
   }
@@ -2148,11 +2155,12 @@ public class FhirR4 {
    * @param bundle         Bundle to add the Report to
    * @param encounterEntry Current Encounter entry
    * @param report         The Report
+   * @param fullUrls       The fullUrls of the entries in the Bundle
    * @return The added Entry
    */
   private static BundleEntryComponent report(RandomNumberGenerator rand,
           BundleEntryComponent personEntry, Bundle bundle, BundleEntryComponent encounterEntry,
-          Report report) {
+          Report report, Map<HealthRecord.Entry, String> fullUrls) {
     DiagnosticReport reportResource = new DiagnosticReport();
     if (USE_US_CORE_IG) {
       Meta meta = new Meta();
@@ -2172,7 +2180,7 @@ public class FhirR4 {
     reportResource.setEffective(convertFhirDateTime(report.start, true));
     reportResource.setIssued(new Date(report.start));
     for (Observation observation : report.observations) {
-      Reference reference = new Reference(observation.fullUrl);
+      Reference reference = new Reference(fullUrls.get(observation));
       reference.setDisplay(observation.codes.get(0).display);
       reportResource.addResult(reference);
     }
@@ -2982,7 +2990,8 @@ public class FhirR4 {
   private static CodeableConcept mapCodeToCodeableConcept(Code from, String system) {
     CodeableConcept to = new CodeableConcept();
     system = system == null ? null : ExportHelper.getSystemURI(system);
-    from.system = ExportHelper.getSystemURI(from.system);
+    // the code may be shared with other exports, so it's left as it is
+    String fromSystem = ExportHelper.getSystemURI(from.system);
 
     if (from.display != null) {
       to.setText(from.display);
@@ -2991,10 +3000,10 @@ public class FhirR4 {
     Coding coding = new Coding();
     coding.setCode(from.code);
     coding.setDisplay(from.display);
-    if (from.system == null) {
+    if (fromSystem == null) {
       coding.setSystem(system);
     } else {
-      coding.setSystem(from.system);
+      coding.setSystem(fromSystem);
     }
 
     to.addCoding(coding);
@@ -0,0 +1,35 @@
+package org.mitre.synthea.export;
+
+import java.io.IOException;
+
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * A format that patient records are exported to. Exporter runs every enabled sink on each
+ * record: the built-in formats first, in a fixed order, then any sinks added with
+ * Exporter.addSink or listed in META-INF/services/org.mitre.synthea.export.RecordSink.
+ *
+ * <p>When exporter.parallel_sinks is enabled, the sinks for a record run at the same time,
+ * each on its own view of the person (see Person.exportView). A sink may change the
+ * attributes of the person it is given, but nothing else.
+ */
+public interface RecordSink {
+  /**
+   * Whether this sink is enabled. Checked for every record.
+   * @return true if records should be exported to this sink.
+   */
+  default boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * Export a record of a person.
+   * @param person The person, with Person.record set to the record to export.
+   * @param fileTag An identifier to tag files with, for people with several records.
+   * @param stopTime Time at which the simulation stopped.
+   * @param options Runtime exporter options.
+   * @throws IOException if the record can't be written.
+   */
+  void export(Person person, String fileTag, long stopTime,
+      Exporter.ExporterRuntimeOptions options) throws IOException;
+}
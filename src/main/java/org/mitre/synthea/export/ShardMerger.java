@@ -0,0 +1,380 @@
+package org.mitre.synthea.export;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Merges the output folders of several shards of one population (see the
+ * <code>--shard k/n</code> command line option) into a single output folder.
+ * Per-patient files are copied, per-patient rows (CSV, NDJSON) are concatenated
+ * in shard order keeping a single header, and the files written once per run are combined:
+ * <ul>
+ * <li>CSV organizations, providers and payers: utilization and cost columns are summed.
+ * Payer costs and QOLS_AVG are recomputed from the unrounded totals each shard writes to
+ * payer_totals.csv.</li>
+ * <li>FHIR hospital and practitioner bundles: entries are combined and their utilization
+ * extensions summed.</li>
+ * <li>FHIR R4 Group: members of all shards are combined into one Group.</li>
+ * </ul>
+ * Shards must be run with the same seed, population size, end time and configuration,
+ * and exporter.csv.folder_per_run must be false so that the folder layouts line up.
+ * The merged output holds the same records as an unsharded run, with these differences:
+ * <ul>
+ * <li>Per-patient rows are grouped by shard rather than in population order.</li>
+ * <li>Payer costs are sums of each shard's double precision totals, so they may differ from
+ * an unsharded run in the last cent.</li>
+ * <li>CDW output isn't supported, because its keys depend on the order records are exported.
+ * Runs with --shard reject exporter.cdw.export.</li>
+ * </ul>
+ */
+public class ShardMerger {
+  /** System-dependent string for a line break. (\n on Mac, *nix, \r\n on Windows) */
+  private static final String NEWLINE = System.lineSeparator();
+
+  /** Extensions with this in their URL hold counts that are summed across shards. */
+  private static final String UTILIZATION_EXTENSION = "/utilization-";
+
+  private static final Gson GSON =
+      new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+  /**
+   * Merge shard output folders from the command line.
+   * @param args The merged output folder, followed by the shard output folders in shard order.
+   * @throws Exception on any error.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("Usage: ShardMerger outputDir shard1Dir [shard2Dir ...]");
+      System.exit(1);
+    }
+    List<Path> shards = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      shards.add(new File(args[i]).toPath());
+    }
+    merge(shards, new File(args[0]).toPath());
+  }
+
+  /**
+   * Merge the output folders of several shards into one.
+   * @param shards The shard output folders, in shard order.
+   * @param output The folder to write the merged output into.
+   * @throws IOException if a file cannot be read or written, or if the shards conflict.
+   */
+  public static void merge(List<Path> shards, Path output) throws IOException {
+    // relative file path -> the copies of that file in each shard, in shard order
+    Map<Path, List<Path>> files = new TreeMap<>();
+    for (Path shard : shards) {
+      try (Stream<Path> walk = Files.walk(shard)) {
+        List<Path> shardFiles = walk.filter(Files::isRegularFile).sorted()
+            .collect(Collectors.toList());
+        for (Path file : shardFiles) {
+          files.computeIfAbsent(shard.relativize(file), k -> new ArrayList<>()).add(file);
+        }
+      }
+    }
+
+    for (Map.Entry<Path, List<Path>> entry : files.entrySet()) {
+      Path target = output.resolve(entry.getKey());
+      Files.createDirectories(target.getParent());
+      mergeFile(entry.getKey(), entry.getValue(), target);
+    }
+    System.out.println("Merged " + shards.size() + " shards (" + files.size()
+        + " files) into " + output);
+  }
+
+  /**
+   * Merge all the copies of a single file.
+   * @param relative The path of the file, relative to the output folders.
+   * @param sources The copies of the file from each shard that produced it.
+   * @param target The merged file to write.
+   * @throws IOException on any error.
+   */
+  private static void mergeFile(Path relative, List<Path> sources, Path target)
+      throws IOException {
+    String name = relative.getFileName().toString();
+    String folder = relative.getNameCount() > 1 ? relative.getName(0).toString() : "";
+
+    if (folder.equals("csv") && name.equals(CSVExporter.PAYER_TOTALS)) {
+      // only used to merge payers.csv
+      return;
+    } else if (sources.size() == 1) {
+      Files.copy(sources.get(0), target, StandardCopyOption.REPLACE_EXISTING);
+    } else if (name.endsWith(".csv")) {
+      if (folder.equals("csv") && name.equals("organizations.csv")) {
+        // Id,NAME,ADDRESS,CITY,STATE,ZIP,LAT,LON,PHONE,REVENUE,UTILIZATION
+        // REVENUE is written in full, the same way CSVExporter writes it
+        mergeAggregateCsv(sources, target, (a, b) -> {
+          a[9] = Double.toString(Double.parseDouble(a[9]) + Double.parseDouble(b[9]));
+          sumIntegers(a, b, 10, 10);
+          return a;
+        }, row -> row);
+      } else if (folder.equals("csv") && name.equals("providers.csv")) {
+        // Id,ORGANIZATION,NAME,GENDER,SPECIALITY,ADDRESS,CITY,STATE,ZIP,LAT,LON,UTILIZATION
+        mergeAggregateCsv(sources, target, (a, b) -> sumIntegers(a, b, 11, 11), row -> row);
+      } else if (folder.equals("csv") && name.equals("payers.csv")) {
+        mergePayers(sources, target);
+      } else {
+        concatenate(sources, target, true);
+      }
+    } else if (name.equals("Group.ndjson")) {
+      mergeGroups(sources, target, false);
+    } else if (name.endsWith(".ndjson")) {
+      concatenate(sources, target, false);
+    } else if (name.startsWith("groupInformation") && name.endsWith(".json")) {
+      mergeGroups(sources, target, true);
+    } else if ((name.startsWith("hospitalInformation")
+        || name.startsWith("practitionerInformation")) && name.endsWith(".json")) {
+      mergeUtilizationBundles(sources, target);
+    } else {
+      // per-patient files should never appear in more than one shard
+      byte[] first = Files.readAllBytes(sources.get(0));
+      for (Path source : sources.subList(1, sources.size())) {
+        if (!Arrays.equals(first, Files.readAllBytes(source))) {
+          throw new IOException("Conflicting copies of " + relative + " in shards "
+              + sources.get(0) + " and " + source);
+        }
+      }
+      Files.write(target, first);
+    }
+  }
+
+  /**
+   * Concatenate files, optionally keeping only the header line of the first file.
+   */
+  private static void concatenate(List<Path> sources, Path target, boolean hasHeader)
+      throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+      boolean first = true;
+      for (Path source : sources) {
+        List<String> lines = Files.readAllLines(source, StandardCharsets.UTF_8);
+        int start = (hasHeader && !first && !lines.isEmpty()) ? 1 : 0;
+        for (String line : lines.subList(start, lines.size())) {
+          writer.write(line);
+          writer.write(NEWLINE);
+        }
+        first = false;
+      }
+    }
+  }
+
+  /**
+   * Merge a CSV file with one row per ID, where some columns are totals for the shard.
+   * Rows are kept in the order they are first seen.
+   * @param merger Combines the row from a later shard into the row seen so far.
+   * @param finisher Completes each merged row before it is written.
+   */
+  private static void mergeAggregateCsv(List<Path> sources, Path target,
+      BinaryOperator<String[]> merger, UnaryOperator<String[]> finisher) throws IOException {
+    String header = null;
+    Map<String, String[]> rows = new LinkedHashMap<>();
+    for (Path source : sources) {
+      List<String> lines = Files.readAllLines(source, StandardCharsets.UTF_8);
+      if (lines.isEmpty()) {
+        continue;
+      }
+      header = lines.get(0);
+      for (String line : lines.subList(1, lines.size())) {
+        // the CSV exporter removes commas from values, so a plain split is safe
+        String[] row = line.split(",", -1);
+        rows.merge(row[0], row, merger);
+      }
+    }
+    try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+      if (header != null) {
+        writer.write(header);
+        writer.write(NEWLINE);
+      }
+      for (String[] row : rows.values()) {
+        writer.write(String.join(",", finisher.apply(row)));
+        writer.write(NEWLINE);
+      }
+    }
+  }
+
+  /**
+   * Sum the integer columns from first to last (inclusive) of b into a.
+   * @return a
+   */
+  private static String[] sumIntegers(String[] a, String[] b, int first, int last) {
+    for (int i = first; i <= last; i++) {
+      a[i] = Long.toString(Long.parseLong(a[i]) + Long.parseLong(b[i]));
+    }
+    return a;
+  }
+
+  /**
+   * Merge payers.csv.
+   * Id,NAME,ADDRESS,CITY,STATE_HEADQUARTERED,ZIP,PHONE,AMOUNT_COVERED,AMOUNT_UNCOVERED,REVENUE,
+   * COVERED_ENCOUNTERS,UNCOVERED_ENCOUNTERS,COVERED_MEDICATIONS,UNCOVERED_MEDICATIONS,
+   * COVERED_PROCEDURES,UNCOVERED_PROCEDURES,COVERED_IMMUNIZATIONS,UNCOVERED_IMMUNIZATIONS,
+   * UNIQUE_CUSTOMERS,QOLS_AVG,MEMBER_MONTHS
+   * The counts are summed. The costs are rounded and QOLS_AVG is averaged, so those are
+   * computed the way CSVExporter does from the totals in each shard's payer_totals.csv.
+   */
+  private static void mergePayers(List<Path> sources, Path target) throws IOException {
+    // Id -> AMOUNT_COVERED,AMOUNT_UNCOVERED,REVENUE,TOTAL_QOLS summed over the shards
+    Map<String, double[]> totals = new HashMap<>();
+    for (Path source : sources) {
+      Path totalsFile = source.resolveSibling(CSVExporter.PAYER_TOTALS);
+      if (!Files.exists(totalsFile)) {
+        throw new IOException("Missing " + totalsFile
+            + ". Payers can only be merged from runs with --shard.");
+      }
+      List<String> lines = Files.readAllLines(totalsFile, StandardCharsets.UTF_8);
+      for (String line : lines.subList(1, lines.size())) {
+        String[] row = line.split(",", -1);
+        double[] sum = totals.computeIfAbsent(row[0], k -> new double[4]);
+        for (int i = 0; i < sum.length; i++) {
+          sum[i] += Double.parseDouble(row[i + 1]);
+        }
+      }
+    }
+    mergeAggregateCsv(sources, target, (a, b) -> {
+      sumIntegers(a, b, 10, 18);
+      sumIntegers(a, b, 20, 20);
+      return a;
+    }, row -> {
+      double[] sum = totals.get(row[0]);
+      if (sum == null) {
+        throw new IllegalStateException("Missing totals for payer " + row[0]);
+      }
+      for (int i = 0; i < 3; i++) {
+        row[i + 7] = String.format(Locale.US, "%.2f", sum[i]);
+      }
+      // Payer.getQolsAverage(): total QOLS over member years
+      int numYears = (int) (Long.parseLong(row[20]) / 12);
+      row[19] = Double.toString((numYears == 0) ? 0.0 : sum[3] / numYears);
+      return row;
+    });
+  }
+
+  /**
+   * Merge FHIR Group resources into the first one, combining their members.
+   * @param pretty true if the file is a single pretty-printed resource, false for NDJSON.
+   */
+  private static void mergeGroups(List<Path> sources, Path target, boolean pretty)
+      throws IOException {
+    JsonObject group = null;
+    JsonArray members = new JsonArray();
+    for (Path source : sources) {
+      for (JsonObject resource : readResources(source, pretty)) {
+        if (group == null) {
+          group = resource;
+        }
+        if (resource.has("member")) {
+          members.addAll(resource.getAsJsonArray("member"));
+        }
+      }
+    }
+    if (group == null) {
+      Files.write(target, Collections.emptyList());
+      return;
+    }
+    group.add("member", members);
+    group.addProperty("quantity", members.size());
+    writeResource(group, target, pretty);
+  }
+
+  /**
+   * Merge the hospital or practitioner bundles of each shard. Each shard only includes the
+   * organizations and practitioners it used, with that shard's utilization counts.
+   */
+  private static void mergeUtilizationBundles(List<Path> sources, Path target)
+      throws IOException {
+    JsonObject bundle = null;
+    Map<String, JsonObject> entries = new LinkedHashMap<>();
+    for (Path source : sources) {
+      JsonObject shardBundle = readResources(source, true).get(0);
+      if (bundle == null) {
+        bundle = shardBundle;
+      }
+      if (!shardBundle.has("entry")) {
+        continue;
+      }
+      for (JsonElement element : shardBundle.getAsJsonArray("entry")) {
+        JsonObject entry = element.getAsJsonObject();
+        JsonObject resource = entry.getAsJsonObject("resource");
+        String key = entry.has("fullUrl") ? entry.get("fullUrl").getAsString()
+            : resource.get("id").getAsString();
+        JsonObject existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+          sumUtilization(existing.getAsJsonObject("resource"), resource);
+        }
+      }
+    }
+    JsonArray merged = new JsonArray();
+    entries.values().forEach(merged::add);
+    bundle.add("entry", merged);
+    writeResource(bundle, target, true);
+  }
+
+  /**
+   * Add the utilization extension values of b into those of a.
+   */
+  private static void sumUtilization(JsonObject a, JsonObject b) {
+    if (!a.has("extension") || !b.has("extension")) {
+      return;
+    }
+    for (JsonElement extA : a.getAsJsonArray("extension")) {
+      JsonObject objA = extA.getAsJsonObject();
+      String url = objA.get("url").getAsString();
+      if (!url.contains(UTILIZATION_EXTENSION) || !objA.has("valueInteger")) {
+        continue;
+      }
+      for (JsonElement extB : b.getAsJsonArray("extension")) {
+        JsonObject objB = extB.getAsJsonObject();
+        if (url.equals(objB.get("url").getAsString()) && objB.has("valueInteger")) {
+          objA.addProperty("valueInteger",
+              objA.get("valueInteger").getAsLong() + objB.get("valueInteger").getAsLong());
+        }
+      }
+    }
+  }
+
+  private static List<JsonObject> readResources(Path source, boolean pretty)
+      throws IOException {
+    List<JsonObject> resources = new ArrayList<>();
+    if (pretty) {
+      String json = new String(Files.readAllBytes(source), StandardCharsets.UTF_8);
+      resources.add(JsonParser.parseString(json).getAsJsonObject());
+    } else {
+      for (String line : Files.readAllLines(source, StandardCharsets.UTF_8)) {
+        if (!line.trim().isEmpty()) {
+          resources.add(JsonParser.parseString(line).getAsJsonObject());
+        }
+      }
+    }
+    return resources;
+  }
+
+  private static void writeResource(JsonObject resource, Path target, boolean pretty)
+      throws IOException {
+    String json = pretty ? GSON.toJson(resource) : resource.toString();
+    Files.write(target, Collections.singleton(json), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,323 @@
+package org.mitre.synthea.helpers;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An expression of only Decimal parameters, number literals, parentheses and the operators
+ * + - * / (and unary -), evaluated directly instead of through the CQL engine. Values are
+ * computed with BigDecimal exactly as the CQL engine computes them: results are truncated
+ * (rounded toward negative infinity) to 8 decimal places, and division by zero is null.
+ * Anything else, such as an expression with functions, other operators or more than one
+ * statement, is left to the CQL engine: parse returns null for it.
+ */
+final class ArithmeticExpression {
+  private static final int MAX_SCALE = 8;
+  private static final BigDecimal MAX_DECIMAL = new BigDecimal("99999999999999999999.99999999");
+  private static final BigDecimal MIN_DECIMAL = MAX_DECIMAL.negate();
+  private static final Pattern PARAMETER = Pattern.compile("#([dlbs]?)\\{(.+?)\\}");
+  private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+  private static final Pattern NUMBER = Pattern.compile("[0-9]+(\\.[0-9]+)?");
+
+  /**
+   * Thrown when a value falls outside the range of CQL Decimals, in which case the
+   * expression should be evaluated by the CQL engine instead.
+   */
+  static final class OutOfRangeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private static final OutOfRangeException INSTANCE = new OutOfRangeException();
+
+    private OutOfRangeException() {
+      super(null, null, false, false);
+    }
+  }
+
+  private final Node root;
+  private final String[] params;
+
+  private ArithmeticExpression(Node root, List<String> params) {
+    this.root = root;
+    this.params = params.toArray(new String[0]);
+  }
+
+  /**
+   * Parse the given expression.
+   * @param expression "CQL-lite" expression, with parameters wrapped in "#{ param }".
+   * @param isDecimal Whether the given parameter is declared as a CQL Decimal.
+   * @return the expression, or null if it isn't only arithmetic on Decimals.
+   */
+  static ArithmeticExpression parse(String expression, Predicate<String> isDecimal) {
+    Parser parser = new Parser(expression, isDecimal);
+    try {
+      Term term = parser.parseSum();
+      parser.skipWhitespace();
+      if (parser.position != expression.length() || term.isInteger()) {
+        // an Integer result would come from the CQL Integer operators
+        return null;
+      }
+      return new ArithmeticExpression(term.node, parser.params);
+    } catch (IllegalArgumentException | ArithmeticException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the parameter names, in the order their values are given to evaluate.
+   */
+  String[] getParams() {
+    return params;
+  }
+
+  /**
+   * Evaluate the expression.
+   * @param values The value of each parameter, in the order of getParams.
+   * @return the result, which may be null.
+   * @throws OutOfRangeException if any value is out of the range of CQL Decimals.
+   */
+  BigDecimal evaluate(BigDecimal[] values) {
+    return root.evaluate(values);
+  }
+
+  /** The same as the CQL engine's Value.verifyPrecision. */
+  private static BigDecimal verifyPrecision(BigDecimal value) {
+    if (value.scale() > MAX_SCALE) {
+      value = value.setScale(MAX_SCALE, RoundingMode.FLOOR);
+    }
+    if (value.compareTo(MAX_DECIMAL) > 0 || value.compareTo(MIN_DECIMAL) < 0) {
+      throw OutOfRangeException.INSTANCE;
+    }
+    return value;
+  }
+
+  private abstract static class Node {
+    abstract BigDecimal evaluate(BigDecimal[] values);
+  }
+
+  private static final class Constant extends Node {
+    private final BigDecimal value;
+
+    private Constant(BigDecimal value) {
+      this.value = value;
+    }
+
+    @Override
+    BigDecimal evaluate(BigDecimal[] values) {
+      return value;
+    }
+  }
+
+  private static final class Parameter extends Node {
+    private final int index;
+
+    private Parameter(int index) {
+      this.index = index;
+    }
+
+    @Override
+    BigDecimal evaluate(BigDecimal[] values) {
+      return values[index];
+    }
+  }
+
+  private static final class Negate extends Node {
+    private final Node operand;
+
+    private Negate(Node operand) {
+      this.operand = operand;
+    }
+
+    @Override
+    BigDecimal evaluate(BigDecimal[] values) {
+      BigDecimal value = operand.evaluate(values);
+      return (value == null) ? null : value.negate();
+    }
+  }
+
+  private static final class Operation extends Node {
+    private final char operator;
+    private final Node left;
+    private final Node right;
+
+    private Operation(char operator, Node left, Node right) {
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    BigDecimal evaluate(BigDecimal[] values) {
+      BigDecimal a = left.evaluate(values);
+      BigDecimal b = right.evaluate(values);
+      if (a == null || b == null) {
+        return null;
+      }
+      switch (operator) {
+        case '+':
+          return verifyPrecision(a.add(b));
+        case '-':
+          return verifyPrecision(a.subtract(b));
+        case '*':
+          return verifyPrecision(a.multiply(b));
+        default:
+          if (b.compareTo(BigDecimal.ZERO) == 0) {
+            return null;
+          }
+          try {
+            return verifyPrecision(a.divide(b));
+          } catch (ArithmeticException e) {
+            // the quotient doesn't have a terminating decimal expansion
+            return a.divide(b, MAX_SCALE, RoundingMode.FLOOR);
+          }
+      }
+    }
+  }
+
+  /**
+   * A parsed term: either a Decimal node, or an Integer computed from literals alone,
+   * which CQL converts to a Decimal only when it is combined with a Decimal.
+   */
+  private static final class Term {
+    private final Node node;
+    private final Integer integer;
+
+    private Term(Node node) {
+      this.node = node;
+      this.integer = null;
+    }
+
+    private Term(int integer) {
+      this.node = null;
+      this.integer = integer;
+    }
+
+    private boolean isInteger() {
+      return integer != null;
+    }
+
+    private Node toDecimal() {
+      return isInteger() ? new Constant(new BigDecimal(integer)) : node;
+    }
+  }
+
+  /**
+   * A recursive descent parser following the precedence of the CQL grammar: unary minus,
+   * then multiplication and division, then addition and subtraction, all left associative.
+   */
+  private static final class Parser {
+    private final String text;
+    private final Predicate<String> isDecimal;
+    private final List<String> params = new ArrayList<String>();
+    private int position;
+
+    private Parser(String text, Predicate<String> isDecimal) {
+      this.text = text;
+      this.isDecimal = isDecimal;
+    }
+
+    private void skipWhitespace() {
+      while (position < text.length() && (text.charAt(position) == ' '
+          || text.charAt(position) == '\t' || text.charAt(position) == '\r')) {
+        position++;
+      }
+    }
+
+    private char peek() {
+      skipWhitespace();
+      return position < text.length() ? text.charAt(position) : 0;
+    }
+
+    private Term parseSum() {
+      Term term = parseProduct();
+      char operator = peek();
+      while (operator == '+' || operator == '-') {
+        position++;
+        term = combine(operator, term, parseProduct());
+        operator = peek();
+      }
+      return term;
+    }
+
+    private Term parseProduct() {
+      Term term = parseUnary();
+      char operator = peek();
+      while (operator == '*' || operator == '/') {
+        position++;
+        term = combine(operator, term, parseUnary());
+        operator = peek();
+      }
+      return term;
+    }
+
+    private Term combine(char operator, Term left, Term right) {
+      if (left.isInteger() && right.isInteger() && operator != '/') {
+        // CQL Integer arithmetic on literals, which overflows with an ArithmeticException
+        switch (operator) {
+          case '+':
+            return new Term(Math.addExact(left.integer, right.integer));
+          case '-':
+            return new Term(Math.subtractExact(left.integer, right.integer));
+          default:
+            return new Term(Math.multiplyExact(left.integer, right.integer));
+        }
+      }
+      return new Term(new Operation(operator, left.toDecimal(), right.toDecimal()));
+    }
+
+    private Term parseUnary() {
+      if (peek() == '-') {
+        position++;
+        Term operand = parseUnary();
+        return operand.isInteger() ? new Term(Math.negateExact(operand.integer))
+            : new Term(new Negate(operand.node));
+      }
+      return parsePrimary();
+    }
+
+    private Term parsePrimary() {
+      char next = peek();
+      if (next == '(') {
+        position++;
+        Term term = parseSum();
+        if (peek() != ')') {
+          throw new IllegalArgumentException("Expected )");
+        }
+        position++;
+        return term;
+      }
+      if (next == '#') {
+        Matcher matcher = PARAMETER.matcher(text).region(position, text.length());
+        if (!matcher.lookingAt() || !isDecimal.test(matcher.group(2))
+            || !IDENTIFIER.matcher(matcher.group(2).replace(" ", "_")).matches()) {
+          throw new IllegalArgumentException("Not a Decimal parameter");
+        }
+        position = matcher.end();
+        String param = matcher.group(2);
+        int index = params.indexOf(param);
+        if (index < 0) {
+          index = params.size();
+          params.add(param);
+        }
+        return new Term(new Parameter(index));
+      }
+      Matcher matcher = NUMBER.matcher(text).region(position, text.length());
+      if (!matcher.lookingAt()) {
+        throw new IllegalArgumentException("Unsupported expression");
+      }
+      position = matcher.end();
+      if (position < text.length() && Character.isLetterOrDigit(text.charAt(position))) {
+        // for example a quantity such as 5 'mg', or an exponent
+        throw new IllegalArgumentException("Unsupported literal");
+      }
+      String literal = matcher.group();
+      if (matcher.group(1) != null) {
+        return new Term(new Constant(new BigDecimal(literal)));
+      }
+      return new Term(Integer.parseInt(literal));
+    }
+  }
+}
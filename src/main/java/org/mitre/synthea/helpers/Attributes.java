@@ -142,6 +142,28 @@ public class Attributes {
       }
     });
 
+    inventoryJavaModules(attributes);
+    
+    return attributes;
+  }
+
+  /**
+   * Get the Person attributes used by the modules written in Java. Unlike the full inventory,
+   * this does not need to read any module files.
+   * @return the inventory of the Java module attributes.
+   */
+  public static Map<String,Inventory> getJavaModuleInventory() {
+    Map<String,Inventory> attributes = new TreeMap<String,Inventory>();
+    inventoryJavaModules(attributes);
+    return attributes;
+  }
+
+  /**
+   * Catalog all attributes used by the modules written in Java into the given Table.
+   *
+   * @param attributes Table of attributes to add to
+   */
+  private static void inventoryJavaModules(Map<String,Inventory> attributes) {
     CardiovascularDiseaseModule.inventoryAttributes(attributes);
     DeathModule.inventoryAttributes(attributes);
     EncounterModule.inventoryAttributes(attributes);
@@ -149,8 +171,6 @@ public class Attributes {
     Immunizations.inventoryAttributes(attributes);
     LifecycleModule.inventoryAttributes(attributes);
     QualityOfLifeModule.inventoryAttributes(attributes);
-    
-    return attributes;
   }
   
   /**
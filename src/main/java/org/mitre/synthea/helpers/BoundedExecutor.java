@@ -0,0 +1,127 @@
+package org.mitre.synthea.helpers;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps an ExecutorService so that only a fixed number of tasks may be queued or running
+ * at any one time. Callers submitting beyond that bound block until a running task completes,
+ * which keeps the amount of pending work (and the memory it holds) proportional to the
+ * number of worker threads rather than the total number of tasks.
+ */
+public class BoundedExecutor {
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final int bound;
+  private final AtomicInteger maxOutstanding = new AtomicInteger();
+  private final AtomicLong blockedNanos = new AtomicLong();
+
+  /**
+   * Create a new BoundedExecutor.
+   * @param executor The underlying executor that runs the tasks.
+   * @param bound The maximum number of tasks that may be queued or running at once.
+   */
+  public BoundedExecutor(ExecutorService executor, int bound) {
+    if (bound < 1) {
+      throw new IllegalArgumentException("Bound must be a positive integer: " + bound);
+    }
+    this.executor = executor;
+    this.bound = bound;
+    this.permits = new Semaphore(bound);
+  }
+
+  /**
+   * Submit a task, blocking until there is room for it.
+   * @param task The task to run.
+   * @return a Future representing the pending completion of the task.
+   * @throws InterruptedException if interrupted while waiting for room.
+   */
+  public Future<?> submit(Runnable task) throws InterruptedException {
+    if (!permits.tryAcquire()) {
+      long start = System.nanoTime();
+      permits.acquire();
+      blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+    maxOutstanding.accumulateAndGet(getOutstanding(), Math::max);
+    try {
+      return executor.submit(() -> {
+        try {
+          task.run();
+        } finally {
+          permits.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Get the number of tasks currently queued or running.
+   * @return the number of outstanding tasks.
+   */
+  public int getOutstanding() {
+    return bound - permits.availablePermits();
+  }
+
+  /**
+   * Get the largest number of tasks that have been queued or running at once.
+   * @return the peak number of outstanding tasks.
+   */
+  public int getMaxOutstanding() {
+    return maxOutstanding.get();
+  }
+
+  /**
+   * Get the total time callers have spent blocked in submit, waiting for room.
+   * @return the blocked time, in milliseconds.
+   */
+  public long getBlockedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+  }
+
+  /**
+   * Get the maximum number of tasks that may be queued or running at once.
+   * @return the bound.
+   */
+  public int getBound() {
+    return bound;
+  }
+
+  /**
+   * Initiate an orderly shutdown of the underlying executor.
+   * No new tasks will be accepted.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Attempt to stop all executing tasks on the underlying executor.
+   */
+  public void shutdownNow() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Block until all tasks have completed after a shutdown request, or the timeout occurs.
+   * @param timeout The maximum time to wait.
+   * @param unit The time unit of the timeout argument.
+   * @return true if the executor terminated, false if the timeout elapsed first.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public String toString() {
+    return executor.toString() + "[Outstanding = " + getOutstanding() + "/" + bound + "]";
+  }
+}
@@ -18,6 +18,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -39,17 +40,22 @@ import org.simulator.math.odes.MultiTable.Block.Column;
 public class ExpressionProcessor {
   private static final String LIBRARY_NAME = "Synthea";
   private static final ModelManager modelManager = new ModelManager();
+  /** Compiled libraries, by the CQL they were compiled from, shared by every thread. */
+  private static final ConcurrentMap<String, Library> libraryCache =
+      new ConcurrentHashMap<String, Library>();
+  private static final boolean NATIVE_ARITHMETIC =
+      Config.getAsBoolean("generate.native_arithmetic_expressions", true);
   private static final ConcurrentMap<String, VitalSign> vitalSignCache =
       new ConcurrentHashMap<String, VitalSign>();
   private static final Set<String> attributeSet =
       Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
-  private final LibraryManager libraryManager = new LibraryManager(modelManager);
   private String expression;
   private Library library;
   private Context context;
-  private String elm;
   private Map<String,String> paramTypeMap;
   private BiMap<String,String> cqlParamMap;
+  /** The expression without the CQL engine, or null if it isn't simple arithmetic. */
+  private ArithmeticExpression arithmetic;
 
   /**
    * Evaluate the given expression, within the context of the given Person and timestamp.
@@ -65,7 +71,8 @@ public class ExpressionProcessor {
    * @return result of the expression
    */
 
-  private String cqlToElm(String cql) {
+  private static String cqlToElm(String cql) {
+    LibraryManager libraryManager = new LibraryManager(modelManager);
     CqlTranslator translator = CqlTranslator.fromText(cql, modelManager, libraryManager);
     
     if (translator.getErrors().size() > 0) {
@@ -101,20 +108,39 @@ public class ExpressionProcessor {
     String cleanExpression = replaceParameters(expression);
     String wrappedExpression = convertParameterizedExpressionToCql(cleanExpression);
 
-    // Compile our constructed CQL expression into elm once for execution
-    // The compiler isn't thread safe, so only allow one thread at a time
-    this.elm = cqlToElm(wrappedExpression);
-    synchronized (ExpressionProcessor.class) {
-      try {
-        this.library = CqlLibraryReader.read(new ByteArrayInputStream(
-            elm.getBytes(StandardCharsets.UTF_8)));
-      } catch (IOException | JAXBException ex) {
-        throw new RuntimeException(ex);
-      }
-    }
-
+    this.library = getLibrary(wrappedExpression);
     this.context = new Context(library);
     this.expression = expression;
+    if (NATIVE_ARITHMETIC) {
+      this.arithmetic = ArithmeticExpression.parse(expression,
+          param -> "Decimal".equals(paramTypeMap.getOrDefault(param, "Decimal")));
+    }
+  }
+
+  /**
+   * Get the compiled library for the given CQL, compiling it only if no other
+   * ExpressionProcessor has already.
+   */
+  private static Library getLibrary(String cql) {
+    Library library = libraryCache.get(cql);
+    if (library == null) {
+      // Compile our constructed CQL expression into elm once for execution
+      String elm = cqlToElm(cql);
+      // The compiler isn't thread safe, so only allow one thread at a time
+      synchronized (ExpressionProcessor.class) {
+        try {
+          library = CqlLibraryReader.read(new ByteArrayInputStream(
+              elm.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException | JAXBException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+      Library existing = libraryCache.putIfAbsent(cql, library);
+      if (existing != null) {
+        library = existing;
+      }
+    }
+    return library;
   }
   
   /**
@@ -273,6 +299,14 @@ public class ExpressionProcessor {
    * @return evaluation result
    */
   public Object evaluate(Person person, long time) {
+    if (arithmetic != null) {
+      BigDecimal[] values =
+          arithmeticValues(param -> getPersonValue(param, person, time, expression));
+      if (values != null) {
+        return evaluateArithmetic(values);
+      }
+    }
+
     Map<String,Object> params = new HashMap<String,Object>();
     
     for (String paramName : getParamNames()) {
@@ -289,12 +323,7 @@ public class ExpressionProcessor {
    */
   public Object evaluate(Map<String,Object> params) {
     // Keep track to make sure all parameters are set
-    Set<String> setParams = new HashSet<String>();
-    for (Entry<String,Object> entry : params.entrySet()) {
-      // Set the CQL compatible parameter name in the context
-      context.setParameter(null, cqlParamMap.get(entry.getKey()), entry.getValue());
-      setParams.add(entry.getKey());
-    }
+    Set<String> setParams = new HashSet<String>(params.keySet());
     
     Set<String> missing = Sets.difference(cqlParamMap.keySet(), setParams);
     Set<String> extra = Sets.difference(setParams, cqlParamMap.keySet());
@@ -309,6 +338,74 @@ public class ExpressionProcessor {
               new Object[]{expression, String.join(", ",extra)});
     }
     
+    if (arithmetic != null) {
+      BigDecimal[] values = arithmeticValues(params::get);
+      if (values != null) {
+        return evaluateArithmetic(values);
+      }
+    }
+    return evaluateCql(params);
+  }
+
+  /**
+   * Gets the values of the parameters of the arithmetic expression.
+   * @param getValue function from parameter name to value
+   * @return the values in order, or null if any value isn't a Decimal
+   */
+  private BigDecimal[] arithmeticValues(Function<String,Object> getValue) {
+    String[] names = arithmetic.getParams();
+    BigDecimal[] values = new BigDecimal[names.length];
+    for (int i = 0; i < names.length; i++) {
+      Object value = getValue.apply(names[i]);
+      if (!(value instanceof BigDecimal)) {
+        return null;
+      }
+      values[i] = (BigDecimal) value;
+    }
+    return values;
+  }
+
+  /**
+   * Evaluates the expression without the CQL engine, unless a value is out of the range
+   * of CQL Decimals.
+   * @param values parameter values, in the order of the arithmetic expression's parameters
+   * @return evaluation result
+   */
+  private Object evaluateArithmetic(BigDecimal[] values) {
+    try {
+      return arithmetic.evaluate(values);
+    } catch (ArithmeticExpression.OutOfRangeException e) {
+      return evaluateCql(arithmeticParams(values));
+    }
+  }
+
+  private Map<String,Object> arithmeticParams(BigDecimal[] values) {
+    Map<String,Object> params = new HashMap<String,Object>();
+    String[] names = arithmetic.getParams();
+    for (int i = 0; i < names.length; i++) {
+      params.put(names[i], values[i]);
+    }
+    return params;
+  }
+
+  /**
+   * Returns whether the expression is evaluated without the CQL engine.
+   */
+  boolean isNativeArithmetic() {
+    return arithmetic != null;
+  }
+
+  /**
+   * Evaluates the expression with the CQL engine, even if it could be evaluated without it.
+   * @param params parameters as a map of variable names to values
+   * @return evaluation result
+   */
+  Object evaluateCql(Map<String,Object> params) {
+    for (Entry<String,Object> entry : params.entrySet()) {
+      // Set the CQL compatible parameter name in the context
+      context.setParameter(null, cqlParamMap.get(entry.getKey()), entry.getValue());
+    }
+
     Object retVal = null;
 
     for (ExpressionDef statement : library.getStatements().getDef()) {
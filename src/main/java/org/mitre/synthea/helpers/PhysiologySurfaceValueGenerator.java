@@ -0,0 +1,180 @@
+package org.mitre.synthea.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.mitre.synthea.helpers.physiology.IoMapper;
+import org.mitre.synthea.helpers.physiology.PhysiologyGeneratorConfig;
+import org.mitre.synthea.helpers.physiology.ResponseSurface;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.VitalSign;
+
+/**
+ * A ValueGenerator for vital signs from a physiology model, interpolated from a precomputed
+ * ResponseSurface instead of simulating the model for each person.
+ */
+public class PhysiologySurfaceValueGenerator extends ValueGenerator {
+  private static final String SURFACES_FOLDER =
+      Config.get("physiology.generators.surfaces", "").trim();
+  private static final ConcurrentMap<String, Optional<ResponseSurface>> SURFACE_CACHE =
+      new ConcurrentHashMap<String, Optional<ResponseSurface>>();
+
+  private final SurfaceInputs inputs;
+  private final int output;
+  private final VitalSign vitalSign;
+  private double outputVariance;
+
+  /**
+   * The inputs of a surface for one person, shared by the generators of each output so that
+   * the input expressions are only evaluated once for each time.
+   */
+  private static class SurfaceInputs implements Serializable {
+    private final ResponseSurface surface;
+    private final List<IoMapper> mappers;
+    private final Person person;
+    private final Map<String, Double> modelInputs = new HashMap<String, Double>();
+    private final double[] values;
+    private long time = Long.MIN_VALUE;
+
+    private SurfaceInputs(ResponseSurface surface, PhysiologyGeneratorConfig config,
+        Person person) {
+      this.surface = surface;
+      this.mappers = config.getInputs();
+      this.person = person;
+      this.values = new double[mappers.size()];
+      for (IoMapper mapper : mappers) {
+        mapper.initialize();
+      }
+    }
+
+    private double[] at(long time) {
+      if (time != this.time) {
+        for (int i = 0; i < values.length; i++) {
+          values[i] = mappers.get(i).toModelInputs(person, time, modelInputs);
+        }
+        this.time = time;
+      }
+      return values;
+    }
+  }
+
+  /**
+   * A generator of VitalSign values from a physiology response surface.
+   * @param inputs The shared inputs of the surface for the person.
+   * @param mapper The output of the surface to generate.
+   */
+  private PhysiologySurfaceValueGenerator(SurfaceInputs inputs, IoMapper mapper) {
+    super(inputs.person);
+    this.inputs = inputs;
+    this.vitalSign = mapper.getVitalSignTarget();
+    this.output = inputs.surface.indexOfOutput(mapper.getTo());
+    this.outputVariance = mapper.getVariance();
+  }
+
+  /**
+   * Whether a folder of response surfaces is configured.
+   */
+  public static boolean isEnabled() {
+    return !SURFACES_FOLDER.isEmpty();
+  }
+
+  /**
+   * Loads the generators for every VitalSign output of every physiology generator
+   * configuration. Configurations that have an up to date response surface interpolate
+   * from it, and the others are simulated with a PhysiologyValueGenerator as usual.
+   * @param person Person to generate values for
+   * @return the generator for each VitalSign
+   */
+  public static Map<VitalSign, ValueGenerator> loadAll(Person person) {
+    Map<VitalSign, ValueGenerator> generators = new EnumMap<VitalSign, ValueGenerator>(
+        VitalSign.class);
+    Collection<File> configFiles = FileUtils.listFiles(
+        PhysiologyValueGenerator.GENERATORS_PATH.toFile(), new String[] {"yml"}, true);
+
+    for (File configFile : configFiles) {
+      PhysiologyGeneratorConfig config = PhysiologyValueGenerator.getConfig(configFile);
+      ResponseSurface surface = getSurface(configFile, config);
+      if (surface == null) {
+        for (PhysiologyValueGenerator generator
+            : PhysiologyValueGenerator.fromConfig(config, person)) {
+          generators.put(generator.getVitalSign(), generator);
+        }
+        continue;
+      }
+
+      // Set any patient attribute default values
+      if (config.getPersonAttributeDefaults() != null) {
+        for (Entry<String, Object> entry : config.getPersonAttributeDefaults().entrySet()) {
+          if (!person.attributes.containsKey(entry.getKey())) {
+            person.attributes.put(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+      SurfaceInputs inputs = new SurfaceInputs(surface, config, person);
+      for (IoMapper mapper : config.getOutputs()) {
+        if (mapper.getType() == IoMapper.IoType.VITAL_SIGN) {
+          generators.put(mapper.getVitalSignTarget(),
+              new PhysiologySurfaceValueGenerator(inputs, mapper));
+        }
+      }
+    }
+    return generators;
+  }
+
+  /**
+   * Gets the response surface of a generator configuration, reading it the first time.
+   * @param configFile The generator configuration file.
+   * @param config The generator configuration.
+   * @return the surface, or null if there isn't an up to date one.
+   */
+  private static ResponseSurface getSurface(File configFile, PhysiologyGeneratorConfig config) {
+    return SURFACE_CACHE.computeIfAbsent(configFile.getAbsolutePath(), path -> {
+      File surfaceFile = ResponseSurface.getSurfaceFile(new File(SURFACES_FOLDER), configFile);
+      ResponseSurface surface;
+      try {
+        surface = ResponseSurface.read(surfaceFile,
+            ResponseSurface.fingerprint(configFile, config));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      if (surface == null) {
+        System.out.println("No physiology response surface for \"" + config.getModel()
+            + "\", simulating it instead. Build one with ./gradlew physiologySurfaces");
+      }
+      return Optional.ofNullable(surface);
+    }).orElse(null);
+  }
+
+  /**
+   * Returns the VitalSign this generator targets.
+   * @return VitalSign target
+   */
+  public VitalSign getVitalSign() {
+    return vitalSign;
+  }
+
+  @Override
+  public double getValue(long time) {
+    double result = inputs.surface.interpolate(output, inputs.at(time));
+    return result + (person.rand() - 0.5) * outputVariance;
+  }
+
+  /**
+   * Sets the amount of variance to generate for the output VitalSign.
+   * @param variance amount of variance
+   */
+  public void setOutputVariance(double variance) {
+    outputVariance = variance;
+  }
+}
@@ -13,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Calendar;
+import java.util.Random;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
@@ -424,6 +425,45 @@ public class Utilities {
     throw new IllegalArgumentException("Cannot parse value for class " + clazz);
   }
 
+  /** Multiplier of the java.util.Random linear congruential generator. */
+  private static final long RANDOM_MULTIPLIER = 0x5DEECE66DL;
+  /** Addend of the java.util.Random linear congruential generator. */
+  private static final long RANDOM_ADDEND = 0xBL;
+  /** java.util.Random keeps 48 bits of state. */
+  private static final long RANDOM_MASK = (1L << 48) - 1;
+
+  /**
+   * Create a java.util.Random that is in exactly the same state as <code>new Random(seed)</code>
+   * would be after <code>nextLongCalls</code> calls to <code>nextLong()</code>, without making
+   * those calls. java.util.Random is a linear congruential generator, so jumping ahead n steps
+   * takes O(log n) time.
+   *
+   * @param seed The seed the Random was originally created with.
+   * @param nextLongCalls The number of nextLong() values to skip.
+   * @return a Random whose next nextLong() is the (nextLongCalls + 1)th value of the sequence.
+   */
+  public static Random skipAheadRandom(long seed, long nextLongCalls) {
+    // each nextLong() advances the generator twice, see java.util.Random#nextLong()
+    long steps = 2 * nextLongCalls;
+    long state = (seed ^ RANDOM_MULTIPLIER) & RANDOM_MASK;
+    long accMult = 1L;
+    long accAdd = 0L;
+    long curMult = RANDOM_MULTIPLIER;
+    long curAdd = RANDOM_ADDEND;
+    while (steps > 0) {
+      if ((steps & 1L) != 0) {
+        accMult = accMult * curMult;
+        accAdd = accAdd * curMult + curAdd;
+      }
+      curAdd = (curMult + 1) * curAdd;
+      curMult = curMult * curMult;
+      steps >>>= 1;
+    }
+    state = (accMult * state + accAdd) & RANDOM_MASK;
+    // the Random constructor scrambles the seed with the multiplier, so undo that here
+    return new Random(state ^ RANDOM_MULTIPLIER);
+  }
+
   /**
    * Walk the directory structure of the modules, and apply the given function for every module.
    * 
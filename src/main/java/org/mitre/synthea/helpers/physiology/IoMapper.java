@@ -23,24 +23,20 @@ public class IoMapper implements Serializable {
   private String fromList;
   private String fromExp;
   private double variance;
+  private Range range;
   private VitalSign vitalSign;
   
   // ExpressionProcessor instances are not thread safe, so we need
   // to have a separate processor for each thread
-  private transient ThreadLocal<ExpressionProcessor> threadExpProcessor;
+  private final transient ThreadLocal<ExpressionProcessor> threadExpProcessor =
+      new ThreadLocal<ExpressionProcessor>();
   private PreGenerator preGenerator;
   
   private ExpressionProcessor getThreadExpProcessor() {
-    if (threadExpProcessor == null) {
-      threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
-    }
     return threadExpProcessor.get();
   }
   
   private void setThreadExpProcessor(ExpressionProcessor exp) {
-    if (threadExpProcessor == null) {
-      threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
-    }
     threadExpProcessor.set(exp);
   }
 
@@ -56,9 +52,63 @@ public class IoMapper implements Serializable {
     fromList = other.fromList;
     to = other.to;
     fromExp = other.fromExp;
+    range = other.range;
     setThreadExpProcessor(other.getThreadExpProcessor());
   }
+
+  /**
+   * Replace a deserialized mapper with a copy, since the thread local processors
+   * are transient and would otherwise be null.
+   * @return a copy of this mapper
+   */
+  private Object readResolve() {
+    IoMapper mapper = new IoMapper();
+    mapper.type = type;
+    mapper.from = from;
+    mapper.to = to;
+    mapper.fromList = fromList;
+    mapper.fromExp = fromExp;
+    mapper.variance = variance;
+    mapper.range = range;
+    mapper.vitalSign = vitalSign;
+    mapper.preGenerator = preGenerator;
+    return mapper;
+  }
   
+  /**
+   * The range of values an input is expected to take, which is swept when building a
+   * ResponseSurface. If no step is given, the variance of the input is used.
+   */
+  public static class Range implements Serializable {
+    private double min;
+    private double max;
+    private double step;
+
+    public double getMin() {
+      return min;
+    }
+
+    public void setMin(double min) {
+      this.min = min;
+    }
+
+    public double getMax() {
+      return max;
+    }
+
+    public void setMax(double max) {
+      this.max = max;
+    }
+
+    public double getStep() {
+      return step;
+    }
+
+    public void setStep(double step) {
+      this.step = step;
+    }
+  }
+
   public enum IoType {
     @SerializedName("Attribute") ATTRIBUTE, 
     @SerializedName("Vital Sign") VITAL_SIGN
@@ -112,6 +162,14 @@ public class IoMapper implements Serializable {
     this.variance = varianceThreshold;
   }
 
+  public Range getRange() {
+    return range;
+  }
+
+  public void setRange(Range range) {
+    this.range = range;
+  }
+
   public PreGenerator getPreGenerator() {
     return preGenerator;
   }
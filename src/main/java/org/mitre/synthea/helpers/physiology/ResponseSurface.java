@@ -0,0 +1,380 @@
+package org.mitre.synthea.helpers.physiology;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.math.ode.DerivativeException;
+import org.mitre.synthea.engine.PhysiologySimulator;
+import org.mitre.synthea.helpers.PhysiologyValueGenerator;
+import org.simulator.math.odes.MultiTable;
+
+/**
+ * A table of the vital sign outputs of a physiology generator, precomputed by simulating the
+ * model at every point of a regular grid over the configured input ranges. Values between
+ * the grid points are linearly interpolated in every input, and inputs outside of their
+ * ranges are clamped to the nearest edge. Attribute outputs are not included.
+ *
+ * <p>Tables are built by running this class, and are tied to the generator configuration
+ * and SBML model they were built from by a fingerprint of both files.
+ */
+public final class ResponseSurface implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final String MAGIC = "SYNTHEA-PHYSIOLOGY-SURFACE";
+  private static final int VERSION = 1;
+  /** The extension of surface files, which replaces the .yml of the generator config. */
+  public static final String EXTENSION = ".surface";
+
+  private final String fingerprint;
+  private final String[] inputs;
+  private final double[] min;
+  private final double[] step;
+  private final int[] points;
+  private final String[] outputs;
+  /** Output values at each grid point, with the last input varying fastest. */
+  private final double[][] values;
+
+  ResponseSurface(String fingerprint, String[] inputs, double[] min, double[] step,
+      int[] points, String[] outputs, double[][] values) {
+    this.fingerprint = fingerprint;
+    this.inputs = inputs;
+    this.min = min;
+    this.step = step;
+    this.points = points;
+    this.outputs = outputs;
+    this.values = values;
+  }
+
+  /**
+   * Compute the fingerprint of a generator configuration and its model.
+   * @param configFile The generator configuration file.
+   * @param config The generator configuration read from the file.
+   * @return a hex string that changes whenever either file changes.
+   * @throws IOException if either file can't be read.
+   */
+  public static String fingerprint(File configFile, PhysiologyGeneratorConfig config)
+      throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update((MAGIC + VERSION).getBytes(StandardCharsets.UTF_8));
+    digest.update(Files.readAllBytes(configFile.toPath()));
+    digest.update(Files.readAllBytes(PhysiologySimulator.getModelFile(config.getModel())));
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Build the surface of a generator configuration by simulating its model at every grid
+   * point. Every input must have a range.
+   * @param config The generator configuration.
+   * @param fingerprint The fingerprint of the configuration, from fingerprint().
+   * @param threads The number of simulations to run at once.
+   * @return the surface
+   */
+  public static ResponseSurface build(PhysiologyGeneratorConfig config, String fingerprint,
+      int threads) {
+    List<IoMapper> inputMappers = config.getInputs();
+    int dimensions = inputMappers.size();
+    String[] inputs = new String[dimensions];
+    double[] min = new double[dimensions];
+    double[] step = new double[dimensions];
+    int[] points = new int[dimensions];
+    int size = 1;
+    for (int i = 0; i < dimensions; i++) {
+      IoMapper mapper = inputMappers.get(i);
+      IoMapper.Range range = mapper.getRange();
+      if (range == null) {
+        throw new IllegalArgumentException("Input \"" + mapper.getTo()
+            + "\" needs a range to build a response surface for " + config.getModel());
+      }
+      inputs[i] = mapper.getTo();
+      min[i] = range.getMin();
+      step[i] = range.getStep() > 0.0 ? range.getStep() : mapper.getVariance();
+      if (step[i] <= 0.0 || range.getMax() < range.getMin()) {
+        throw new IllegalArgumentException("Input \"" + mapper.getTo()
+            + "\" needs a positive step or variance and a max of at least its min");
+      }
+      // one more point than the number of whole steps, so that the grid covers the max
+      points[i] = (int) Math.ceil((range.getMax() - range.getMin()) / step[i] - 1e-9) + 1;
+      size = Math.multiplyExact(size, points[i]);
+    }
+
+    List<IoMapper> outputMappers = new ArrayList<IoMapper>();
+    for (IoMapper mapper : config.getOutputs()) {
+      if (mapper.getType() == IoMapper.IoType.VITAL_SIGN) {
+        outputMappers.add(mapper);
+      }
+    }
+    String[] outputs = new String[outputMappers.size()];
+    for (int i = 0; i < outputs.length; i++) {
+      outputs[i] = outputMappers.get(i).getTo();
+    }
+
+    PhysiologySimulator simulator = new PhysiologySimulator(config.getModel(),
+        config.getSolver(), config.getStepSize(), config.getSimDuration());
+    Map<String, String> paramTypes = new HashMap<String, String>();
+    for (String param : simulator.getParameters()) {
+      paramTypes.put(param, "List<Decimal>");
+    }
+
+    // copies of the output mappers for each pool thread, initialized on first use
+    ThreadLocal<List<IoMapper>> outputCopies = ThreadLocal.withInitial(() -> {
+      List<IoMapper> copies = new ArrayList<IoMapper>(outputMappers.size());
+      for (IoMapper mapper : outputMappers) {
+        IoMapper copy = new IoMapper(mapper);
+        copy.initialize(paramTypes);
+        copies.add(copy);
+      }
+      return copies;
+    });
+    double[][] values = new double[outputs.length][size];
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>(size);
+      for (int index = 0; index < size; index++) {
+        final int gridIndex = index;
+        futures.add(executor.submit(() -> {
+          Map<String, Double> modelInputs = new HashMap<String, Double>();
+          int remainder = gridIndex;
+          for (int i = dimensions - 1; i >= 0; i--) {
+            modelInputs.put(inputs[i], min[i] + (remainder % points[i]) * step[i]);
+            remainder /= points[i];
+          }
+          MultiTable results;
+          try {
+            results = simulator.run(modelInputs);
+          } catch (DerivativeException e) {
+            throw new IllegalStateException("Unable to solve simulation \""
+                + config.getModel() + "\" for inputs " + modelInputs
+                + ". Narrow the input ranges to values the model can solve.", e);
+          }
+          for (int o = 0; o < outputs.length; o++) {
+            // each task works on its own copy, since the mappers are shared with the
+            // generator, and expression processors are kept per thread
+            IoMapper mapper = outputCopies.get().get(o);
+            values[o][gridIndex] = (double) mapper.getOutputResult(results, config.getLeadTime());
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return new ResponseSurface(fingerprint, inputs, min, step, points, outputs, values);
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * Get the index of an output.
+   * @param output The output "to" name, such as the vital sign.
+   * @return the index of the output, or -1 if the surface doesn't include it.
+   */
+  public int indexOfOutput(String output) {
+    for (int i = 0; i < outputs.length; i++) {
+      if (outputs[i].equals(output)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Interpolate an output at the given inputs.
+   * @param output The index of the output, from indexOfOutput().
+   * @param x The value of each input, in the order of the generator configuration.
+   * @return the interpolated output value.
+   */
+  public double interpolate(int output, double[] x) {
+    int dimensions = inputs.length;
+    int base = 0;
+    int[] stride = new int[dimensions];
+    double[] fraction = new double[dimensions];
+    int s = 1;
+    for (int i = dimensions - 1; i >= 0; i--) {
+      stride[i] = s;
+      double t = (x[i] - min[i]) / step[i];
+      t = Math.max(0.0, Math.min(t, points[i] - 1));
+      int cell = Math.min((int) t, Math.max(points[i] - 2, 0));
+      fraction[i] = t - cell;
+      base += cell * s;
+      s *= points[i];
+    }
+
+    double[] table = values[output];
+    double result = 0.0;
+    // add each corner of the surrounding cell, weighted by its share of the volume
+    for (int corner = 0; corner < (1 << dimensions); corner++) {
+      double weight = 1.0;
+      int index = base;
+      for (int i = 0; i < dimensions && weight != 0.0; i++) {
+        if ((corner & (1 << i)) != 0) {
+          weight *= fraction[i];
+          index += stride[i];
+        } else {
+          weight *= 1.0 - fraction[i];
+        }
+      }
+      if (weight != 0.0) {
+        result += weight * table[index];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Write the surface to a file.
+   * @param file The file to write.
+   * @throws IOException if the file can't be written.
+   */
+  public void write(File file) throws IOException {
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(fingerprint);
+      out.writeInt(inputs.length);
+      for (int i = 0; i < inputs.length; i++) {
+        out.writeUTF(inputs[i]);
+        out.writeDouble(min[i]);
+        out.writeDouble(step[i]);
+        out.writeInt(points[i]);
+      }
+      out.writeInt(outputs.length);
+      for (int o = 0; o < outputs.length; o++) {
+        out.writeUTF(outputs[o]);
+        for (double value : values[o]) {
+          out.writeDouble(value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a surface from a file.
+   * @param file The file to read.
+   * @param fingerprint The fingerprint of the current generator configuration and model.
+   * @return the surface, or null if the file doesn't exist, was built from a different
+   *     configuration or model, or can't be read.
+   */
+  public static ResponseSurface read(File file, String fingerprint) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION
+          || !fingerprint.equals(in.readUTF())) {
+        System.out.format("Physiology response surface %s is out of date.\n", file);
+        return null;
+      }
+      int dimensions = in.readInt();
+      String[] inputs = new String[dimensions];
+      double[] min = new double[dimensions];
+      double[] step = new double[dimensions];
+      int[] points = new int[dimensions];
+      int size = 1;
+      for (int i = 0; i < dimensions; i++) {
+        inputs[i] = in.readUTF();
+        min[i] = in.readDouble();
+        step[i] = in.readDouble();
+        points[i] = in.readInt();
+        size = Math.multiplyExact(size, points[i]);
+      }
+      String[] outputs = new String[in.readInt()];
+      double[][] values = new double[outputs.length][size];
+      for (int o = 0; o < outputs.length; o++) {
+        outputs[o] = in.readUTF();
+        for (int index = 0; index < size; index++) {
+          values[o][index] = in.readDouble();
+        }
+      }
+      return new ResponseSurface(fingerprint, inputs, min, step, points, outputs, values);
+    } catch (IOException | RuntimeException e) {
+      System.out.format("Unable to read physiology response surface %s: %s\n", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Get the surface file of a generator configuration.
+   * @param surfacesFolder The folder of surface files.
+   * @param configFile The generator configuration file.
+   * @return the surface file, at the same path under the surfaces folder as the
+   *     configuration is under the generators folder.
+   */
+  public static File getSurfaceFile(File surfacesFolder, File configFile) {
+    String relativePath = PhysiologyValueGenerator.GENERATORS_PATH.toUri()
+        .relativize(configFile.toURI()).getPath();
+    return new File(surfacesFolder, relativePath.replaceAll("\\.yml$", EXTENSION));
+  }
+
+  /**
+   * Build the response surface of every physiology generator configuration.
+   * @param args The folder to write surfaces to, and optionally the number of threads.
+   * @throws IOException if a configuration can't be read or a surface can't be written.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args[0].isEmpty()) {
+      throw new IllegalArgumentException("Response surface output folder must be provided.");
+    }
+    File surfacesFolder = new File(args[0]);
+    int threads = args.length > 1 ? Integer.parseInt(args[1])
+        : Runtime.getRuntime().availableProcessors();
+
+    Collection<File> configFiles = FileUtils.listFiles(
+        PhysiologyValueGenerator.GENERATORS_PATH.toFile(), new String[] {"yml"}, true);
+    for (File configFile : configFiles) {
+      PhysiologyGeneratorConfig config = PhysiologyValueGenerator.getConfig(configFile);
+      String fingerprint = fingerprint(configFile, config);
+      File surfaceFile = getSurfaceFile(surfacesFolder, configFile);
+      if (read(surfaceFile, fingerprint) != null) {
+        System.out.println("Physiology response surface " + surfaceFile + " is up to date.");
+        continue;
+      }
+      long start = System.currentTimeMillis();
+      ResponseSurface surface = build(config, fingerprint, threads);
+      surface.write(surfaceFile);
+      System.out.format("Wrote physiology response surface %s (%d simulations, %d ms)\n",
+          surfaceFile, surface.values.length > 0 ? surface.values[0].length : 0,
+          System.currentTimeMillis() - start);
+    }
+  }
+}
@@ -21,6 +21,7 @@ public class SimRunner {
   private Map<String,Double> prevInputs = new HashMap<String, Double>();
   private Map<VitalSign,Double> vitalSignResults = new HashMap<VitalSign,Double>();
   private Map<String,Double> modelInputs = new HashMap<String,Double>();
+  private String simulationId;
   boolean firstExecution;
   
   /**
@@ -52,6 +53,15 @@ public class SimRunner {
     for (IoMapper mapper : config.getOutputs()) {
       mapper.initialize(paramTypes);
     }
+
+    // Identifies the simulation and the order of its inputs in the SimulationCache
+    StringBuilder id = new StringBuilder(config.getModel()).append('|')
+        .append(config.getSolver()).append('|').append(config.getStepSize()).append('|')
+        .append(config.getSimDuration());
+    for (IoMapper mapper : config.getInputs()) {
+      id.append('|').append(mapper.getTo());
+    }
+    simulationId = id.toString();
   }
   
   /**
@@ -111,7 +121,12 @@ public class SimRunner {
   public void execute(long time) {
     // Copy our input parameters for future threshold checks
     prevInputs = new HashMap<String,Double>(modelInputs);
-    MultiTable results = runSim(time, modelInputs);
+    MultiTable results;
+    if (SimulationCache.isEnabled()) {
+      results = runCachedSim(time);
+    } else {
+      results = runSim(time, modelInputs);
+    }
     
     firstExecution = true;
     
@@ -137,6 +152,36 @@ public class SimRunner {
     }
   }
   
+  /**
+   * Looks up the simulation results in the shared SimulationCache, running the simulation
+   * with the representative inputs of each bucket if they aren't there.
+   * @param time simulation time
+   * @return simulation results
+   */
+  private MultiTable runCachedSim(long time) {
+    List<IoMapper> inputs = config.getInputs();
+    long[] buckets = new long[inputs.size()];
+    for (int i = 0; i < buckets.length; i++) {
+      IoMapper mapper = inputs.get(i);
+      buckets[i] = SimulationCache.bucket(modelInputs.get(mapper.getTo()), mapper.getVariance());
+    }
+    SimulationCache.Key key = new SimulationCache.Key(simulationId, buckets);
+    MultiTable results = SimulationCache.get(key);
+    if (results == null) {
+      Map<String,Double> representativeInputs = new HashMap<String,Double>(modelInputs);
+      for (int i = 0; i < buckets.length; i++) {
+        IoMapper mapper = inputs.get(i);
+        representativeInputs.put(mapper.getTo(),
+            SimulationCache.representative(buckets[i], mapper.getVariance()));
+      }
+      results = runSim(time, representativeInputs);
+      if (results != null) {
+        SimulationCache.put(key, results);
+      }
+    }
+    return results;
+  }
+
   /**
    * Runs the simulation and returns the results.
    * @param time simulation time
@@ -0,0 +1,171 @@
+package org.mitre.synthea.helpers.physiology;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mitre.synthea.helpers.Config;
+import org.simulator.math.odes.MultiTable;
+
+/**
+ * A cache of physiology simulation results, shared by the whole population. Each input is
+ * quantized to a bucket the width of its variance, which is the change that the SimRunner
+ * already treats as too small to simulate again, and a simulation is only run for the
+ * first person whose inputs fall into each combination of buckets. The simulation is run
+ * with the inputs at the centre of their buckets, so that the cached results don't depend
+ * on which person happened to be simulated first. Inputs with no variance are not
+ * quantized. The least recently used results are dropped once the cache is full.
+ */
+public final class SimulationCache {
+  private static final boolean ENABLED =
+      Config.getAsBoolean("physiology.generators.cache.enabled", false);
+  private static final int MAX_SIZE =
+      Integer.parseInt(Config.get("physiology.generators.cache.max_size", "10000"));
+
+  private static final Map<Key, MultiTable> cache =
+      new LinkedHashMap<Key, MultiTable>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, MultiTable> eldest) {
+          if (size() > MAX_SIZE) {
+            evictions.incrementAndGet();
+            return true;
+          }
+          return false;
+        }
+      };
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+
+  private SimulationCache() {}
+
+  /**
+   * Whether simulation results should be cached.
+   */
+  public static boolean isEnabled() {
+    return ENABLED && MAX_SIZE > 0;
+  }
+
+  /**
+   * Get the bucket of an input value.
+   * @param value The input value.
+   * @param variance The variance of the input.
+   * @return the bucket number.
+   */
+  static long bucket(double value, double variance) {
+    if (variance > 0.0) {
+      return (long) Math.floor(value / variance);
+    }
+    return Double.doubleToLongBits(value);
+  }
+
+  /**
+   * Get the input value that represents every value in a bucket.
+   * @param bucket The bucket number, from bucket().
+   * @param variance The variance of the input.
+   * @return the value at the centre of the bucket.
+   */
+  static double representative(long bucket, double variance) {
+    if (variance > 0.0) {
+      return (bucket + 0.5) * variance;
+    }
+    return Double.longBitsToDouble(bucket);
+  }
+
+  /**
+   * Get cached simulation results.
+   * @param key The simulation and input buckets.
+   * @return the results, or null if they have not been cached.
+   */
+  static MultiTable get(Key key) {
+    MultiTable results;
+    synchronized (cache) {
+      results = cache.get(key);
+    }
+    if (results == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return results;
+  }
+
+  /**
+   * Cache simulation results. The results must not be modified afterwards.
+   * @param key The simulation and input buckets.
+   * @param results The results.
+   */
+  static void put(Key key, MultiTable results) {
+    synchronized (cache) {
+      cache.put(key, results);
+    }
+  }
+
+  public static long getHits() {
+    return hits.get();
+  }
+
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  public static long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Print the cache hit and miss counts, if the cache has been used.
+   */
+  public static void printStats() {
+    long lookups = hits.get() + misses.get();
+    if (lookups > 0) {
+      System.out.printf("Physiology simulation cache: hits=%d, misses=%d (%.1f%% hits), "
+          + "evictions=%d\n", hits.get(), misses.get(), 100.0 * hits.get() / lookups,
+          evictions.get());
+    }
+  }
+
+  /**
+   * Clear the cache and its statistics.
+   */
+  public static void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+  }
+
+  /**
+   * Identifies a simulation and the buckets of its inputs.
+   */
+  static final class Key {
+    private final String simulation;
+    private final long[] buckets;
+    private final int hash;
+
+    Key(String simulation, long[] buckets) {
+      this.simulation = simulation;
+      this.buckets = buckets;
+      this.hash = 31 * simulation.hashCode() + Arrays.hashCode(buckets);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) obj;
+      return simulation.equals(that.simulation) && Arrays.equals(buckets, that.buckets);
+    }
+  }
+}
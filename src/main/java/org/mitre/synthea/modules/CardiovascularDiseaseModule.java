@@ -367,7 +367,7 @@ public final class CardiovascularDiseaseModule extends Module {
       risk = risk_chd_f.get(framinghamPoints);
     }
 
-    person.attributes.put("cardio_risk",
+    person.setDoubleAttribute("cardio_risk",
         Utilities.convertRiskToTimestep(risk, TimeUnit.DAYS.toMillis(3650)));
   }
 
@@ -382,7 +382,7 @@ public final class CardiovascularDiseaseModule extends Module {
       return;
     }
 
-    double cardioRisk = (double) person.attributes.getOrDefault("cardio_risk", -1.0);
+    double cardioRisk = person.getDoubleAttribute("cardio_risk", -1.0);
     if (person.rand() < cardioRisk) {
       person.attributes.put("coronary_heart_disease", true);
     }
@@ -513,7 +513,7 @@ public final class CardiovascularDiseaseModule extends Module {
     afScore = bound(afScore, 0, 10);
 
     double afRisk = risk_af_table[afScore]; // 10-yr risk
-    person.attributes.put("atrial_fibrillation_risk",
+    person.setDoubleAttribute("atrial_fibrillation_risk",
         Utilities.convertRiskToTimestep(afRisk, TimeUnit.DAYS.toMillis(3650)));
   }
 
@@ -527,7 +527,7 @@ public final class CardiovascularDiseaseModule extends Module {
   private static void getAtrialFibrillation(Person person, long time) {
     if (!person.attributes.containsKey("atrial_fibrillation")
         && person.attributes.containsKey("atrial_fibrillation_risk")
-        && person.rand() < (Double) person.attributes.get("atrial_fibrillation_risk")) {
+        && person.rand() < person.getDoubleAttribute("atrial_fibrillation_risk", 0.0)) {
       person.attributes.put("atrial_fibrillation", true);
     }
   }
@@ -606,12 +606,12 @@ public final class CardiovascularDiseaseModule extends Module {
       return;
     } else if (age < 40) {
       double rate = stroke_rate_20_39[genderIndex];
-      person.attributes.put("stroke_risk",
+      person.setDoubleAttribute("stroke_risk",
           Utilities.convertRiskToTimestep(rate, TimeUnit.DAYS.toMillis(3650)));
       return;
     } else if (age < 55) {
       double rate = stroke_rate_40_59[genderIndex];
-      person.attributes.put("stroke_risk",
+      person.setDoubleAttribute("stroke_risk",
           Utilities.convertRiskToTimestep(rate, TimeUnit.DAYS.toMillis(3650)));
       return;
     }
@@ -657,7 +657,7 @@ public final class CardiovascularDiseaseModule extends Module {
     }
 
     // divide 10 year risk by 365 * 10 to get daily risk.
-    person.attributes.put("stroke_risk",
+    person.setDoubleAttribute("stroke_risk",
         Utilities.convertRiskToTimestep(tenStrokeRisk, TimeUnit.DAYS.toMillis(3650)));
     person.attributes.put("stroke_points", strokePoints);
   }
@@ -670,7 +670,7 @@ public final class CardiovascularDiseaseModule extends Module {
    */
   private static void getStroke(Person person, long time) {
     if (person.attributes.containsKey("stroke_risk")
-        && person.rand() < (Double) person.attributes.get("stroke_risk")) {
+        && person.rand() < person.getDoubleAttribute("stroke_risk", 0.0)) {
       // Make sure the Emergency Encounter has started...
       Code code = LOOKUP.get("stroke");
       beginOrContinueEmergency(person, time, code);
@@ -1,6 +1,9 @@
 package org.mitre.synthea.modules;
 
+import java.time.Period;
+import java.util.Calendar;
 import java.util.Map;
+import java.util.TimeZone;
 
 import org.mitre.synthea.engine.Module;
 import org.mitre.synthea.helpers.Attributes;
@@ -77,6 +80,24 @@ public class HealthInsuranceModule extends Module {
     return false;
   }
 
+  /**
+   * Insurance is only chosen just after each birthday, and premiums are only paid once per
+   * calendar month, so there is nothing to do until the next birthday or the start of the
+   * next month, whichever comes first.
+   */
+  @Override
+  public long nextEventTime(Person person, long time) {
+    Long nextBirthday = person.timeAtAge(Period.ofYears(person.ageInYears(time) + 1));
+    if (nextBirthday == null) {
+      return time;
+    }
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.setTimeInMillis(time);
+    calendar.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1, 1, 0, 0, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    return Math.min(nextBirthday, calendar.getTimeInMillis());
+  }
+
   /**
    * Determine what insurance a person will get based on their attributes.
    *
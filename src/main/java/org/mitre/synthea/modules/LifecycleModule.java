@@ -15,6 +15,7 @@ import org.mitre.synthea.engine.Module;
 import org.mitre.synthea.helpers.Attributes;
 import org.mitre.synthea.helpers.Attributes.Inventory;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.PhysiologySurfaceValueGenerator;
 import org.mitre.synthea.helpers.PhysiologyValueGenerator;
 import org.mitre.synthea.helpers.RandomCollection;
 import org.mitre.synthea.helpers.SimpleCSV;
@@ -263,7 +264,9 @@ public final class LifecycleModule extends Module {
     person.setVitalSign(VitalSign.DIASTOLIC_BLOOD_PRESSURE,
         new BloodPressureValueGenerator(person, SysDias.DIASTOLIC));
 
-    if (ENABLE_PHYSIOLOGY_GENERATORS) {
+    if (ENABLE_PHYSIOLOGY_GENERATORS && PhysiologySurfaceValueGenerator.isEnabled()) {
+      PhysiologySurfaceValueGenerator.loadAll(person).forEach(person::setVitalSign);
+    } else if (ENABLE_PHYSIOLOGY_GENERATORS) {
       List<PhysiologyValueGenerator> physioGenerators = PhysiologyValueGenerator.loadAll(person);
       
       for (PhysiologyValueGenerator physioGenerator : physioGenerators) {
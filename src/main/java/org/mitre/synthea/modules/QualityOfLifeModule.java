@@ -1,11 +1,13 @@
 package org.mitre.synthea.modules;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 import org.mitre.synthea.engine.Module;
@@ -63,14 +65,27 @@ public class QualityOfLifeModule extends Module {
       dalys.put(year, values[0]);
       qalys.put(year, values[1]);
       qols.put(year, values[2]);
-      person.attributes.put("most-recent-daly", values[0]);
-      person.attributes.put("most-recent-qaly", values[1]);
+      person.setDoubleAttribute("most-recent-daly", values[0]);
+      person.setDoubleAttribute("most-recent-qaly", values[1]);
 
     }
     // java modules will never "finish"
     return false;
   }
 
+  /**
+   * QALY, DALY and QOLS are calculated once per calendar year, so there is nothing to do
+   * until the start of the next year.
+   */
+  @Override
+  public long nextEventTime(Person person, long time) {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.setTimeInMillis(time);
+    calendar.set(calendar.get(Calendar.YEAR) + 1, Calendar.JANUARY, 1, 0, 0, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    return calendar.getTimeInMillis();
+  }
+
   /**
    * Load the disability weights from the gbd_disability_weights.csv file.
    * @return Map of clinical terminology codes (e.g. "44054006") to DisabilityWeight objects.
@@ -0,0 +1,374 @@
+package org.mitre.synthea.world.agents;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The attributes of a Person. Attributes that are well-known to the AttributeRegistry are kept
+ * in arrays indexed by their slot, with double values stored unboxed, and any other attribute,
+ * such as those created by generic modules, is kept in a plain map.
+ *
+ * <p>A person is only ever simulated by one thread at a time, so unlike the ConcurrentHashMap
+ * this replaces, the map is not thread-safe. It does keep ConcurrentHashMap's refusal of null
+ * keys and values, and its weakly consistent iterators: attributes may be added, replaced or
+ * removed while iterating, and the iterator never throws ConcurrentModificationException.
+ * Like ConcurrentHashMap, an iterator may or may not return attributes added after it was
+ * created.
+ */
+public class AttributeMap extends AbstractMap<String, Object> implements Serializable {
+  private static final long serialVersionUID = -1318529418410358367L;
+
+  /** Marks a slot whose value is the double in the numbers array. */
+  private static final Object NUMBER = new Object();
+
+  private transient Object[] values;
+  private transient double[] numbers;
+  /** The number of registered attributes when this map last checked the registry. */
+  private transient int registered;
+  private transient int slotCount;
+  /** The attributes without slots, in a map whose iterators are weakly consistent. */
+  private transient ConcurrentHashMap<String, Object> others;
+  private transient Set<Map.Entry<String, Object>> entrySet;
+
+  /**
+   * Create an empty map of attributes.
+   */
+  public AttributeMap() {
+    registered = AttributeRegistry.size();
+    values = new Object[registered];
+    numbers = new double[registered];
+    others = new ConcurrentHashMap<String, Object>();
+  }
+
+  /**
+   * Move any attributes that have been registered since this map last checked the registry
+   * out of the plain map and into their slots.
+   */
+  private void checkRegistry() {
+    int size = AttributeRegistry.size();
+    if (size == registered) {
+      return;
+    }
+    registered = size;
+    ensureSlot(size - 1);
+    Iterator<Map.Entry<String, Object>> iterator = others.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Object> entry = iterator.next();
+      int slot = AttributeRegistry.slotOf(entry.getKey());
+      if (slot >= 0) {
+        iterator.remove();
+        values[slot] = entry.getValue();
+        slotCount++;
+      }
+    }
+  }
+
+  /**
+   * Make sure the arrays can hold the given slot, which may have been registered after this map
+   * was created.
+   */
+  private void ensureSlot(int slot) {
+    if (slot >= values.length) {
+      int length = Math.max(slot + 1, AttributeRegistry.size());
+      values = Arrays.copyOf(values, length);
+      numbers = Arrays.copyOf(numbers, length);
+    }
+  }
+
+  private Object valueAt(int slot) {
+    Object value = values[slot];
+    return (value == NUMBER) ? Double.valueOf(numbers[slot]) : value;
+  }
+
+  @Override
+  public int size() {
+    checkRegistry();
+    return slotCount + others.size();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    checkRegistry();
+    if (!(key instanceof String)) {
+      return false;
+    }
+    int slot = AttributeRegistry.slotOf((String) key);
+    if (slot < 0) {
+      return others.containsKey(key);
+    }
+    return slot < values.length && values[slot] != null;
+  }
+
+  @Override
+  public Object get(Object key) {
+    checkRegistry();
+    if (!(key instanceof String)) {
+      return null;
+    }
+    int slot = AttributeRegistry.slotOf((String) key);
+    if (slot < 0) {
+      return others.get(key);
+    }
+    return (slot < values.length) ? valueAt(slot) : null;
+  }
+
+  @Override
+  public Object getOrDefault(Object key, Object defaultValue) {
+    Object value = get(key);
+    return (value == null) ? defaultValue : value;
+  }
+
+  /**
+   * Get a numeric attribute without boxing it, if it was stored with putDouble
+   * or as a Double.
+   * @param key The attribute name.
+   * @param defaultValue The value to return if the attribute is not set.
+   * @return the value of the attribute as a double.
+   */
+  public double getDouble(String key, double defaultValue) {
+    checkRegistry();
+    int slot = AttributeRegistry.slotOf(key);
+    if (slot >= 0 && slot < values.length && values[slot] == NUMBER) {
+      return numbers[slot];
+    }
+    Object value = get(key);
+    return (value == null) ? defaultValue : ((Number) value).doubleValue();
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    checkRegistry();
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+    int slot = AttributeRegistry.slotOf(key);
+    if (slot < 0) {
+      return others.put(key, value);
+    }
+    if (value instanceof Double) {
+      return putDouble(slot, (Double) value);
+    }
+    ensureSlot(slot);
+    Object previous = valueAt(slot);
+    if (previous == null) {
+      slotCount++;
+    }
+    values[slot] = value;
+    return previous;
+  }
+
+  /**
+   * Set a numeric attribute without boxing it, if it is well-known.
+   * @param key The attribute name.
+   * @param value The value.
+   */
+  public void putDouble(String key, double value) {
+    checkRegistry();
+    int slot = AttributeRegistry.slotOf(key);
+    if (slot < 0) {
+      put(key, value);
+    } else {
+      putDouble(slot, value);
+    }
+  }
+
+  private Object putDouble(int slot, double value) {
+    ensureSlot(slot);
+    Object previous = valueAt(slot);
+    if (previous == null) {
+      slotCount++;
+    }
+    values[slot] = NUMBER;
+    numbers[slot] = value;
+    return previous;
+  }
+
+  @Override
+  public Object remove(Object key) {
+    checkRegistry();
+    if (!(key instanceof String)) {
+      return null;
+    }
+    int slot = AttributeRegistry.slotOf((String) key);
+    if (slot < 0) {
+      return others.remove(key);
+    }
+    if (slot >= values.length || values[slot] == null) {
+      return null;
+    }
+    Object previous = valueAt(slot);
+    values[slot] = null;
+    slotCount--;
+    return previous;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(values, null);
+    slotCount = 0;
+    others.clear();
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    if (entrySet == null) {
+      entrySet = new EntrySet();
+    }
+    return entrySet;
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+    @Override
+    public Iterator<Map.Entry<String, Object>> iterator() {
+      checkRegistry();
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return AttributeMap.this.size();
+    }
+
+    @Override
+    public void clear() {
+      AttributeMap.this.clear();
+    }
+  }
+
+  /**
+   * Iterates over the well-known attributes in slot order, then the other attributes. Each
+   * entry holds the value of the attribute when the iterator reached it.
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+    private int nextSlot;
+    private final Iterator<Map.Entry<String, Object>> othersIterator =
+        others.entrySet().iterator();
+    private Map.Entry<String, Object> next;
+    private Map.Entry<String, Object> last;
+
+    private EntryIterator() {
+      advance();
+    }
+
+    private void advance() {
+      next = null;
+      while (nextSlot < values.length) {
+        int slot = nextSlot++;
+        if (values[slot] != null) {
+          next = new SlotEntry(slot, valueAt(slot));
+          return;
+        }
+      }
+      if (othersIterator.hasNext()) {
+        next = othersIterator.next();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, Object> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      advance();
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      AttributeMap.this.remove(last.getKey());
+      last = null;
+    }
+  }
+
+  /**
+   * An entry for a well-known attribute. Setting the value writes through to the map.
+   */
+  private final class SlotEntry implements Map.Entry<String, Object> {
+    private final int slot;
+    private Object value;
+
+    private SlotEntry(int slot, Object value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    public String getKey() {
+      return AttributeRegistry.nameOf(slot);
+    }
+
+    @Override
+    public Object getValue() {
+      return value;
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      Object previous = this.value;
+      put(getKey(), value);
+      this.value = value;
+      return previous;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return getKey().equals(e.getKey()) && value.equals(e.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return getKey().hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + "=" + value;
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size());
+    for (Map.Entry<String, Object> entry : entrySet()) {
+      out.writeObject(entry.getKey());
+      out.writeObject(entry.getValue());
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // slots may differ between runs, so attributes are always read back by name
+    registered = AttributeRegistry.size();
+    values = new Object[registered];
+    numbers = new double[registered];
+    others = new ConcurrentHashMap<String, Object>();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      String key = (String) in.readObject();
+      put(key, in.readObject());
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package org.mitre.synthea.world.agents;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the well-known Person attribute names, each of which is given a fixed slot
+ * number for the life of the JVM. The registry starts with the attribute name constants on
+ * Person, and the Java modules add the attributes they use (see Attributes.getJavaModuleInventory)
+ * when the modules are loaded. Slot numbers are never written out: serialized attributes are
+ * always stored by name.
+ */
+public final class AttributeRegistry {
+  private static final Map<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+  /** Attribute names by slot. Replaced, never modified, when a name is registered. */
+  private static volatile String[] names = new String[0];
+
+  static {
+    for (Field field : Person.class.getFields()) {
+      int modifiers = field.getModifiers();
+      if (Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers)
+          && field.getType() == String.class) {
+        try {
+          register((String) field.get(null));
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+  }
+
+  private AttributeRegistry() {}
+
+  /**
+   * Give the attribute a slot, if it doesn't have one already.
+   * @param name The attribute name.
+   * @return the slot of the attribute.
+   */
+  public static synchronized int register(String name) {
+    Integer slot = slots.get(name);
+    if (slot == null) {
+      slot = names.length;
+      String[] expanded = Arrays.copyOf(names, slot + 1);
+      expanded[slot] = name;
+      names = expanded;
+      slots.put(name, slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Give each of the attributes a slot, if they don't have one already.
+   * @param names The attribute names.
+   */
+  public static synchronized void registerAll(Collection<String> names) {
+    for (String name : names) {
+      register(name);
+    }
+  }
+
+  /**
+   * Get the slot of the given attribute.
+   * @param name The attribute name.
+   * @return the slot, or -1 if the attribute isn't well-known.
+   */
+  public static int slotOf(String name) {
+    Integer slot = slots.get(name);
+    return (slot == null) ? -1 : slot;
+  }
+
+  /**
+   * Get the attribute name that has the given slot.
+   * @param slot The slot, as returned by register or slotOf.
+   * @return the attribute name.
+   */
+  public static String nameOf(int slot) {
+    return names[slot];
+  }
+
+  /**
+   * Get the number of slots that have been given out so far.
+   */
+  public static int size() {
+    return names.length;
+  }
+}
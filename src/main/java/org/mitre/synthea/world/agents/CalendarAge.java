@@ -0,0 +1,155 @@
+package org.mitre.synthea.world.agents;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * The age of a person throughout one local calendar day, in years, months and days exactly as
+ * Period.between(birthdate, date) computes it. Ages only change at local midnight, so Person
+ * keeps the most recent CalendarAge and reuses it for every other time on the same day, such as
+ * the many age checks made by modules within one time step.
+ *
+ * <p>Dates are handled as epoch days (days since 1970-01-01) and their year, month and day, so
+ * that computing an age doesn't need any java.time objects unless the time zone observes daylight
+ * saving time. Instances are immutable, so they can be shared between threads.
+ */
+final class CalendarAge {
+  private static final long DAY = 86400000L;
+
+  /** The birthdate, in milliseconds, that this age was computed from. */
+  private final long birthdate;
+  private final long birthEpochDay;
+  private final int birthYear;
+  private final int birthMonth;
+  private final int birthDay;
+
+  /** The times this age applies to: from dayStart (inclusive) to dayEnd (exclusive). */
+  private final long dayStart;
+  private final long dayEnd;
+
+  final int years;
+  final int months;
+  final int days;
+
+  private CalendarAge(long birthdate, long birthEpochDay, long dayStart, long dayEnd,
+      long epochDay) {
+    this.birthdate = birthdate;
+    this.birthEpochDay = birthEpochDay;
+    int[] birth = civilFromDays(birthEpochDay);
+    this.birthYear = birth[0];
+    this.birthMonth = birth[1];
+    this.birthDay = birth[2];
+    this.dayStart = dayStart;
+    this.dayEnd = dayEnd;
+
+    // the same steps as LocalDate.until(ChronoLocalDate), which Period.between uses
+    int[] date = civilFromDays(epochDay);
+    long totalMonths = (date[0] * 12L + date[1]) - (birthYear * 12L + birthMonth);
+    int dayDifference = date[2] - birthDay;
+    if (totalMonths > 0 && dayDifference < 0) {
+      totalMonths--;
+      long calcMonth = birthYear * 12L + (birthMonth - 1) + totalMonths;
+      int calcYear = (int) Math.floorDiv(calcMonth, 12L);
+      int calcMonthOfYear = (int) Math.floorMod(calcMonth, 12L) + 1;
+      int calcDay = Math.min(birthDay, lengthOfMonth(calcYear, calcMonthOfYear));
+      dayDifference = (int) (epochDay - daysFromCivil(calcYear, calcMonthOfYear, calcDay));
+    } else if (totalMonths < 0 && dayDifference > 0) {
+      totalMonths++;
+      dayDifference -= lengthOfMonth(date[0], date[1]);
+    }
+    this.years = (int) (totalMonths / 12);
+    this.months = (int) (totalMonths % 12);
+    this.days = dayDifference;
+  }
+
+  /**
+   * Whether this age is the age of a person with the given birthdate at the given time.
+   */
+  boolean appliesTo(long birthdate, long time) {
+    return this.birthdate == birthdate && time >= dayStart && time < dayEnd;
+  }
+
+  /**
+   * Compute the age at the given time of a person with the given birthdate.
+   * @param previous The previously computed age of this person, whose birthdate calendar
+   *     fields are reused if the birthdate hasn't changed. May be null.
+   * @param birthdate The birthdate in milliseconds.
+   * @param time The time at which to compute the age.
+   * @param zone The time zone that dates are taken in.
+   */
+  static CalendarAge of(CalendarAge previous, long birthdate, long time, ZoneId zone) {
+    long birthEpochDay = (previous != null && previous.birthdate == birthdate)
+        ? previous.birthEpochDay : epochDay(birthdate, zone);
+
+    ZoneRules rules = zone.getRules();
+    long epochDay;
+    long dayStart;
+    long dayEnd;
+    if (rules.isFixedOffset()) {
+      long offset = rules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000L;
+      epochDay = Math.floorDiv(time + offset, DAY);
+      dayStart = epochDay * DAY - offset;
+      dayEnd = dayStart + DAY;
+    } else {
+      LocalDate date = Instant.ofEpochMilli(time).atZone(zone).toLocalDate();
+      epochDay = date.toEpochDay();
+      dayStart = date.atStartOfDay(zone).toInstant().toEpochMilli();
+      dayEnd = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+      ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochMilli(dayStart));
+      if (dayStart > time || (transition != null
+          && transition.getInstant().toEpochMilli() < dayEnd)) {
+        // the offset changes during this day, so only trust the date at exactly this time
+        dayStart = time;
+        dayEnd = time + 1;
+      }
+    }
+    return new CalendarAge(birthdate, birthEpochDay, dayStart, dayEnd, epochDay);
+  }
+
+  private static long epochDay(long time, ZoneId zone) {
+    ZoneRules rules = zone.getRules();
+    if (rules.isFixedOffset()) {
+      long offset = rules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000L;
+      return Math.floorDiv(time + offset, DAY);
+    }
+    return Instant.ofEpochMilli(time).atZone(zone).toLocalDate().toEpochDay();
+  }
+
+  private static int lengthOfMonth(int year, int month) {
+    return Month.of(month).length(Year.isLeap(year));
+  }
+
+  /**
+   * Convert an epoch day into a proleptic Gregorian year, month (1-12) and day of month,
+   * using the algorithm from http://howardhinnant.github.io/date_algorithms.html.
+   */
+  private static int[] civilFromDays(long epochDay) {
+    long days = epochDay + 719468;
+    long era = Math.floorDiv(days, 146097);
+    long dayOfEra = days - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long monthIndex = (5 * dayOfYear + 2) / 153;
+    int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+    int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+    int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+    return new int[] { year, month, day };
+  }
+
+  /**
+   * Convert a proleptic Gregorian year, month (1-12) and day of month into an epoch day.
+   */
+  private static long daysFromCivil(int year, int month, int day) {
+    long y = (month <= 2) ? year - 1 : year;
+    long era = Math.floorDiv(y, 400);
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+}
@@ -593,6 +593,13 @@ public class Payer implements Serializable {
     this.totalQOLS += qols;
   }
 
+  /**
+   * Returns the total of the quality of life scores of this payer's customers.
+   */
+  public double getTotalQols() {
+    return this.totalQOLS;
+  }
+
   /**
    * Returns the total amount of money recieved from patients.
    * Consists of monthly premium payments.
@@ -701,10 +708,14 @@ public class Payer implements Serializable {
   }
 
   /**
-   * Returns the average of the payer's QOLS of customers over the number of years covered.
+   * Returns the average of the payer's QOLS of customers over the number of years covered,
+   * or 0 if the payer hasn't covered anyone for a whole year.
    */
   public double getQolsAverage() {
     int numYears = this.getNumYearsCovered();
+    if (numYears == 0) {
+      return 0.0;
+    }
     return this.totalQOLS / numYears;
   }
 
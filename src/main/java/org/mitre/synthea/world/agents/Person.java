@@ -22,6 +22,7 @@ import org.mitre.synthea.engine.ExpressedConditionRecord;
 import org.mitre.synthea.engine.ExpressedSymptom;
 import org.mitre.synthea.engine.Module;
 import org.mitre.synthea.engine.State;
+import org.mitre.synthea.engine.StateHistory;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.ConstantValueGenerator;
 import org.mitre.synthea.helpers.RandomNumberGenerator;
@@ -93,6 +94,8 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
   public static final String CURRENT_WEIGHT_LENGTH_PERCENTILE = "current_weight_length_percentile";
   public static final String RECORD_GROUP = "record_group";
   public static final String LINK_ID = "link_id";
+  /** The stop time the person's record was last exported with. */
+  public static final String EXPORTED_UNTIL = "exported_until";
   private static final String DEDUCTIBLE = "deductible";
   private static final String LAST_MONTH_PAID = "last_month_paid";
 
@@ -107,7 +110,10 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
    * Tracks the remaining modules for a person over a serialize/deserialize.
    */
   public List<Module> currentModules;
+  /** The attributes of the person, an AttributeMap unless replaced by the caller. */
   public Map<String, Object> attributes;
+  /** The most recently computed age, reused for other times on the same day. */
+  private transient CalendarAge cachedAge;
   public Map<VitalSign, ValueGenerator> vitalSigns;
   /** Data structure for storing symptoms faced by a person.
    * Adding the Long keyset to keep track of the time a symptom is set. */
@@ -150,7 +156,7 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
   public Person(long seed) {
     this.seed = seed;
     random = new Random(seed);
-    attributes = new ConcurrentHashMap<String, Object>();
+    attributes = new AttributeMap();
     vitalSigns = new ConcurrentHashMap<VitalSign, ValueGenerator>();
     symptoms = new ConcurrentHashMap<String, ExpressedSymptom>();
     /* initialized the onsetConditions field */
@@ -176,6 +182,73 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
     annualHealthCoverage = new HashMap<Integer, Double>();
   }
 
+  /**
+   * Create a view of a person for an exporter, so that several exporters can read the same
+   * person at once. Exporters store working values in the attributes and draw resource IDs
+   * from the random number generator, so the view has its own copy of the attributes and its
+   * own generator, and shares everything else with the person. The attributes are a snapshot
+   * taken when the view is created: attributes the person sets or removes afterwards aren't
+   * seen by the view, so views should be created once the person is no longer changing.
+   * Exporters must not modify the shared health records.
+   * @param viewSeed Seed for the random number generator of the view.
+   * @return the view.
+   */
+  public Person exportView(long viewSeed) {
+    return new Person(this, viewSeed);
+  }
+
+  private Person(Person original, long viewSeed) {
+    seed = original.seed;
+    random = new Random(viewSeed);
+    populationSeed = original.populationSeed;
+    lastUpdated = original.lastUpdated;
+    currentModules = original.currentModules;
+    attributes = new AttributeMap();
+    attributes.putAll(original.attributes);
+    vitalSigns = original.vitalSigns;
+    symptoms = original.symptoms;
+    onsetConditionRecord = original.onsetConditionRecord;
+    chronicMedications = original.chronicMedications;
+    record = original.record;
+    defaultRecord = original.defaultRecord;
+    lossOfCareRecord = original.lossOfCareRecord;
+    lossOfCareEnabled = original.lossOfCareEnabled;
+    records = original.records;
+    hasMultipleRecords = original.hasMultipleRecords;
+    history = original.history;
+    payerHistory = original.payerHistory;
+    payerOwnerHistory = original.payerOwnerHistory;
+    annualHealthExpenses = original.annualHealthExpenses;
+    annualHealthCoverage = original.annualHealthCoverage;
+  }
+
+  /**
+   * Get a numeric attribute, without boxing it if it is well-known.
+   * @param key The attribute name.
+   * @param defaultValue The value to return if the attribute is not set.
+   * @return the value of the attribute as a double.
+   */
+  public double getDoubleAttribute(String key, double defaultValue) {
+    if (attributes instanceof AttributeMap) {
+      return ((AttributeMap) attributes).getDouble(key, defaultValue);
+    }
+    Object value = attributes.get(key);
+    return (value == null) ? defaultValue : ((Number) value).doubleValue();
+  }
+
+  /**
+   * Set a numeric attribute, without boxing it if it is well-known.
+   * @param key The attribute name.
+   * @param value The value.
+   */
+  public void setDoubleAttribute(String key, double value) {
+    if (attributes instanceof AttributeMap) {
+      ((AttributeMap) attributes).putDouble(key, value);
+    } else {
+      attributes.put(key, value);
+    }
+  }
+
   /**
    * Returns a random double.
    */
@@ -229,17 +302,50 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
    * Returns a person's age in Period form.
    */
   public Period age(long time) {
-    Period age = Period.ZERO;
+    CalendarAge age = calendarAge(time);
+    if (age == null) {
+      return Period.ZERO;
+    }
+    return Period.of(age.years, age.months, age.days);
+  }
 
-    if (attributes.containsKey(BIRTHDATE)) {
-      LocalDate now = Instant.ofEpochMilli(time).atZone(timeZone).toLocalDate();
-      LocalDate birthdate = Instant.ofEpochMilli((long) attributes.get(BIRTHDATE))
-          .atZone(timeZone).toLocalDate();
-      age = Period.between(birthdate, now);
+  /**
+   * Returns a person's age at the given time, reusing the previously computed age if it
+   * was for the same day.
+   * @return the age, or null if the person has no birthdate.
+   */
+  private CalendarAge calendarAge(long time) {
+    Object birthdate = attributes.get(BIRTHDATE);
+    if (birthdate == null) {
+      return null;
+    }
+    long birth = (long) birthdate;
+    CalendarAge age = cachedAge;
+    if (age == null || !age.appliesTo(birth, time)) {
+      age = CalendarAge.of(age, birth, time, timeZone);
+      cachedAge = age;
     }
     return age;
   }
 
+  /**
+   * Returns the start of the day on which the person reaches the given age, in the same
+   * calendar that age(time) uses. The person is never the given age before the returned time,
+   * although around month ends the returned time may be slightly earlier than the first time at
+   * which age(time) actually reports the given age.
+   *
+   * @param age The age to reach.
+   * @return the time at which the age is reached, or null if the person has no birthdate.
+   */
+  public Long timeAtAge(Period age) {
+    if (!attributes.containsKey(BIRTHDATE)) {
+      return null;
+    }
+    LocalDate birthdate = Instant.ofEpochMilli((long) attributes.get(BIRTHDATE))
+        .atZone(timeZone).toLocalDate();
+    return birthdate.plus(age).atStartOfDay(timeZone).toInstant().toEpochMilli();
+  }
+
   /**
    * Returns a person's age in decimal years. (ex. 7.5 ~ 7 years 6 months old)
    *
@@ -247,10 +353,12 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
    * @return decimal age in years
    */
   public double ageInDecimalYears(long time) {
-    Period agePeriod = age(time);
-    
-    double years = agePeriod.getYears() + agePeriod.getMonths() / 12.0
-        + agePeriod.getDays() / 365.2425;
+    CalendarAge age = calendarAge(time);
+    if (age == null) {
+      return 0;
+    }
+
+    double years = age.years + age.months / 12.0 + age.days / 365.2425;
     
     if (years < 0) {
       years = 0;
@@ -267,7 +375,11 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
    *         before they were born.
    */
   public int ageInMonths(long time) {
-    int months = (int) age(time).toTotalMonths();
+    CalendarAge age = calendarAge(time);
+    if (age == null) {
+      return 0;
+    }
+    int months = age.years * 12 + age.months;
     if (months < 0) {
       months = 0;
     }
@@ -282,7 +394,11 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
    *         before they were born.
    */
   public int ageInYears(long time) {
-    int years = age(time).getYears();
+    CalendarAge age = calendarAge(time);
+    if (age == null) {
+      return 0;
+    }
+    int years = age.years;
     if (years < 0) {
       years = 0;
     }
@@ -498,6 +614,9 @@ public class Person implements Serializable, RandomNumberGenerator, QuadTreeElem
     if (history == null) {
       return false;
     }
+    if (history instanceof StateHistory) {
+      return ((StateHistory) history).hadPriorState(name, since, within);
+    }
     for (State state : history) {
       if (within != null && state.exited != null && state.exited <= within) {
         return false;
@@ -13,6 +13,8 @@ import java.math.RoundingMode;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,6 +24,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 import org.mitre.synthea.helpers.RandomNumberGenerator;
 import org.mitre.synthea.helpers.Utilities;
@@ -122,6 +126,7 @@ public class HealthRecord implements Serializable {
   public class Entry implements Serializable {
     /** reference to the HealthRecord this entry belongs to. */
     HealthRecord record = HealthRecord.this;
+    /** unused: the FHIR exporters keep the fullUrl of each entry per bundle. */
     public String fullUrl;
     public String name;
     public long start;
@@ -511,6 +516,33 @@ public class HealthRecord implements Serializable {
     // Track if we renewed meds at this encounter. Used in State.java encounter state.
     public boolean chronicMedsRenewed;
     public String clinicalNote;
+    /** Position of this encounter in the record's encounters, once the record has indexed it. */
+    private transient int position = -1;
+
+    /**
+     * The observations of an encounter, which report changes to the record's index of the
+     * latest observations.
+     */
+    private final class ObservationList extends ReportingList<Observation> {
+      @Override
+      void appended(Observation observation) {
+        observationAdded(Encounter.this, observation);
+      }
+
+      @Override
+      void removed(Observation observation) {
+        observationRemoved(Encounter.this, observation);
+      }
+
+      @Override
+      void changed() {
+        latestObservations = null;
+      }
+
+      private boolean reportsTo(Encounter encounter) {
+        return encounter == Encounter.this;
+      }
+    }
 
     /**
      * Construct an encounter.
@@ -531,7 +563,7 @@ public class HealthRecord implements Serializable {
       }
       ended = false;
       chronicMedsRenewed = false;
-      observations = new ArrayList<Observation>();
+      observations = new ObservationList();
       reports = new ArrayList<Report>();
       conditions = new ArrayList<Entry>();
       allergies = new ArrayList<Entry>();
@@ -556,10 +588,18 @@ public class HealthRecord implements Serializable {
      */
     public Observation addObservation(long time, String type, Object value) {
       Observation observation = new Observation(time, type, value);
-      this.observations.add(observation);
+      addObservation(observation);
       return observation;
     }
 
+    /**
+     * Add an existing observation to the end of the encounter.
+     * @param observation The observation.
+     */
+    public void addObservation(Observation observation) {
+      this.observations.add(observation);
+    }
+
     /**
      * Add an observation to the encounter and uses the type to set the first code.
      * @param time The time of the observation
@@ -570,8 +610,8 @@ public class HealthRecord implements Serializable {
      */
     public Observation addObservation(long time, String type, Object value, String display) {
       Observation observation = new Observation(time, type, value);
-      this.observations.add(observation);
       observation.codes.add(new Code("LOINC", type, display));
+      addObservation(observation);
       return observation;
     }
 
@@ -613,13 +653,176 @@ public class HealthRecord implements Serializable {
   /** recorded death date/time. */
   public Long death;
 
+  /**
+   * The latest observation of each type, as found by scanning the encounters from last to first.
+   * Built when first needed. The lists of encounters and of each encounter's observations
+   * report every change made through them: appended encounters and observations are indexed,
+   * removed observations are dropped from the index, and any other change, such as sorting
+   * or inserting, has it rebuilt when next needed. If one of those lists is replaced by a list
+   * that doesn't report changes, the index is rebuilt every time it is used.
+   */
+  private transient Map<String, LatestObservation> latestObservations;
+  /** The encounters latestObservations was built from, or null if changes can't be seen. */
+  private transient List<Encounter> indexedList;
+  /** The most recent wellness encounter, when latestObservations has been built. */
+  private transient Encounter lastWellnessEncounter;
+
+  /**
+   * The first observation of a type within the latest encounter that has one, and the
+   * same for the encounters before that one.
+   */
+  private static class LatestObservation {
+    private final Encounter encounter;
+    private Observation observation;
+    private LatestObservation previous;
+
+    private LatestObservation(Encounter encounter, Observation observation,
+        LatestObservation previous) {
+      this.encounter = encounter;
+      this.observation = observation;
+      this.previous = previous;
+    }
+  }
+
+  /**
+   * A list that reports changes made through it. Appending calls appended, removing a single
+   * element calls removed, and every other change calls changed.
+   */
+  private abstract static class ReportingList<E> extends ArrayList<E> {
+    abstract void appended(E element);
+
+    void removed(E element) {
+      changed();
+    }
+
+    abstract void changed();
+
+    @Override
+    public boolean add(E element) {
+      super.add(element);
+      appended(element);
+      return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> elements) {
+      for (E element : elements) {
+        add(element);
+      }
+      return !elements.isEmpty();
+    }
+
+    @Override
+    public E remove(int index) {
+      E element = super.remove(index);
+      removed(element);
+      return element;
+    }
+
+    @Override
+    public boolean remove(Object element) {
+      int index = indexOf(element);
+      if (index < 0) {
+        return false;
+      }
+      remove(index);
+      return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+      super.add(index, element);
+      changed();
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends E> elements) {
+      changed();
+      return super.addAll(index, elements);
+    }
+
+    @Override
+    public E set(int index, E element) {
+      changed();
+      return super.set(index, element);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> elements) {
+      changed();
+      return super.removeAll(elements);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> elements) {
+      changed();
+      return super.retainAll(elements);
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super E> filter) {
+      changed();
+      return super.removeIf(filter);
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+      changed();
+      super.removeRange(fromIndex, toIndex);
+    }
+
+    @Override
+    public void clear() {
+      changed();
+      super.clear();
+    }
+
+    @Override
+    public void replaceAll(UnaryOperator<E> operator) {
+      changed();
+      super.replaceAll(operator);
+    }
+
+    @Override
+    public void sort(Comparator<? super E> comparator) {
+      changed();
+      super.sort(comparator);
+    }
+
+    @Override
+    public List<E> subList(int fromIndex, int toIndex) {
+      // a view can set elements without going through this list
+      changed();
+      return super.subList(fromIndex, toIndex);
+    }
+  }
+
+  /**
+   * The encounters of a record, which report changes to its index of the latest observations.
+   */
+  private final class EncounterList extends ReportingList<Encounter> {
+    @Override
+    void appended(Encounter encounter) {
+      encounterAdded(encounter);
+    }
+
+    @Override
+    void changed() {
+      latestObservations = null;
+    }
+
+    private boolean reportsTo(HealthRecord record) {
+      return record == HealthRecord.this;
+    }
+  }
+
   /**
    * Construct a health record for the supplied person.
    * @param person the person.
    */
   public HealthRecord(Person person) {
     this.person = person;
-    encounters = new ArrayList<Encounter>();
+    encounters = new EncounterList();
     present = new HashMap<String, Entry>();
   }
 
@@ -688,11 +891,136 @@ public class HealthRecord implements Serializable {
     } else {
       encounter = new Encounter(time, EncounterType.WELLNESS.toString());
       encounter.name = "First Wellness";
-      encounters.add(encounter);
+      addEncounter(encounter);
     }
     return encounter;
   }
 
+  /**
+   * Add the encounter to the end of the record.
+   */
+  private void addEncounter(Encounter encounter) {
+    encounters.add(encounter);
+  }
+
+  /**
+   * Whether the index of the latest observations is up to date.
+   */
+  private boolean isIndexed() {
+    return latestObservations != null && indexedList == encounters;
+  }
+
+  /**
+   * Make sure the index of the latest observations is up to date, building it from scratch if
+   * it isn't.
+   */
+  private void ensureIndexed() {
+    if (isIndexed()) {
+      return;
+    }
+    latestObservations = new HashMap<String, LatestObservation>();
+    lastWellnessEncounter = null;
+    indexedList = (encounters instanceof EncounterList
+        && ((EncounterList) encounters).reportsTo(this)) ? encounters : null;
+    for (int i = 0; i < encounters.size(); i++) {
+      indexEncounter(i, encounters.get(i));
+    }
+  }
+
+  private void indexEncounter(int position, Encounter encounter) {
+    encounter.position = position;
+    if (!(encounter.observations instanceof Encounter.ObservationList
+        && ((Encounter.ObservationList) encounter.observations).reportsTo(encounter))) {
+      // changes to these observations can't be seen
+      indexedList = null;
+    }
+    if (encounter.type.equals(EncounterType.WELLNESS.toString())) {
+      lastWellnessEncounter = encounter;
+    }
+    for (Observation observation : encounter.observations) {
+      if (observation != null) {
+        indexObservation(encounter, observation);
+      }
+    }
+  }
+
+  private void indexObservation(Encounter encounter, Observation observation) {
+    LatestObservation latest = latestObservations.get(observation.type);
+    if (latest == null || encounter.position > latest.encounter.position) {
+      latestObservations.put(observation.type,
+          new LatestObservation(encounter, observation, latest));
+      return;
+    }
+    // an earlier encounter, which only matters if the later ones lose this type of observation
+    LatestObservation later = latest;
+    while (later.previous != null && later.previous.encounter.position > encounter.position) {
+      later = later.previous;
+    }
+    if (later.encounter.position != encounter.position && (later.previous == null
+        || later.previous.encounter.position != encounter.position)) {
+      later.previous = new LatestObservation(encounter, observation, later.previous);
+    }
+  }
+
+  /**
+   * Whether the given encounter is in the record at the position the index has for it.
+   */
+  private boolean isIndexed(Encounter encounter) {
+    return encounter.position >= 0 && encounter.position < encounters.size()
+        && encounters.get(encounter.position) == encounter;
+  }
+
+  /**
+   * Keep the index of the latest observations up to date with an encounter that was just
+   * added to the end of the record.
+   */
+  private void encounterAdded(Encounter encounter) {
+    if (isIndexed()) {
+      indexEncounter(encounters.size() - 1, encounter);
+    }
+  }
+
+  /**
+   * Keep the index of the latest observations up to date with an observation that was
+   * just added to the end of the given encounter.
+   */
+  private void observationAdded(Encounter encounter, Observation observation) {
+    if (observation != null && isIndexed() && isIndexed(encounter)) {
+      indexObservation(encounter, observation);
+    }
+  }
+
+  /**
+   * Keep the index of the latest observations up to date with an observation that was just
+   * removed from the given encounter.
+   */
+  private void observationRemoved(Encounter encounter, Observation observation) {
+    if (observation == null || !isIndexed() || !isIndexed(encounter)) {
+      return;
+    }
+    LatestObservation later = null;
+    LatestObservation latest = latestObservations.get(observation.type);
+    while (latest != null && latest.encounter != encounter) {
+      later = latest;
+      latest = latest.previous;
+    }
+    if (latest == null || latest.observation != observation) {
+      return;
+    }
+    latest.observation = encounter.findObservation(observation.type);
+    if (latest.observation != null) {
+      return;
+    }
+    // the encounter has no more observations of this type
+    if (later != null) {
+      later.previous = latest.previous;
+    } else if (latest.previous != null) {
+      latestObservations.put(observation.type, latest.previous);
+    } else {
+      latestObservations.remove(observation.type);
+    }
+  }
+
   /**
    * Return the time between the supplied time and the time of the last wellness encounter.
    * If there are no wellness encounter return Long.MAX_VALUE.
@@ -700,11 +1028,9 @@ public class HealthRecord implements Serializable {
    * @return the time difference, negative if time is before the first wellness encounter).
    */
   public long timeSinceLastWellnessEncounter(long time) {
-    for (int i = encounters.size() - 1; i >= 0; i--) {
-      Encounter encounter = encounters.get(i);
-      if (encounter.type.equals(EncounterType.WELLNESS.toString())) {
-        return (time - encounter.start);
-      }
+    ensureIndexed();
+    if (lastWellnessEncounter != null) {
+      return (time - lastWellnessEncounter.start);
     }
     return Long.MAX_VALUE;
   }
@@ -742,7 +1068,7 @@ public class HealthRecord implements Serializable {
         count--;
       }
     }
-    encounter.observations.add(observation);
+    encounter.addObservation(observation);
     return observation;
   }
 
@@ -752,14 +1078,9 @@ public class HealthRecord implements Serializable {
    * @return the latest observation or null if none exists.
    */
   public Observation getLatestObservation(String type) {
-    for (int i = encounters.size() - 1; i >= 0; i--) {
-      Encounter encounter = encounters.get(i);
-      Observation obs = encounter.findObservation(type);
-      if (obs != null) {
-        return obs;
-      }
-    }
-    return null;
+    ensureIndexed();
+    LatestObservation latest = latestObservations.get(type);
+    return (latest == null) ? null : latest.observation;
   }
 
   /**
@@ -963,12 +1284,10 @@ public class HealthRecord implements Serializable {
   public Report report(long time, String type, int numberOfObservations) {
     Encounter encounter = currentEncounter(time);
     List<Observation> observations = new ArrayList<Observation>();
-    if (encounter.observations.size() > numberOfObservations) {
-      int fromIndex = encounter.observations.size() - numberOfObservations;
-      int toIndex = encounter.observations.size();
-      observations.addAll(encounter.observations.subList(fromIndex, toIndex));
-    } else {
-      observations.addAll(encounter.observations);
+    // copied one by one, since taking a sublist has the latest observations reindexed
+    int fromIndex = Math.max(0, encounter.observations.size() - numberOfObservations);
+    for (int i = fromIndex; i < encounter.observations.size(); i++) {
+      observations.add(encounter.observations.get(i));
     }
     Report report = new Report(time, type, observations);
     encounter.reports.add(report);
@@ -985,7 +1304,7 @@ public class HealthRecord implements Serializable {
    */
   public Encounter encounterStart(long time, EncounterType type) {
     Encounter encounter = new Encounter(time, type.toString());
-    encounters.add(encounter);
+    addEncounter(encounter);
     return encounter;
   }
 
@@ -1,37 +1,59 @@
 package org.mitre.synthea.engine;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import org.mitre.synthea.TestHelper;
 import org.mitre.synthea.export.Exporter;
 import org.mitre.synthea.export.Exporter.SupportedFhirVersion;
+import org.mitre.synthea.export.FhirGroupExporterR4;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Payer;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.agents.Provider;
+import org.mitre.synthea.world.concepts.HealthRecord;
 import org.mitre.synthea.world.geography.Location;
 
 public class GeneratorTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
 
   /**
    * Configure settings across these tests.
@@ -344,4 +366,379 @@ public class GeneratorTest {
       generator.updatePerson(p);
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * A generator that keeps a summary of every record it generates, so that runs with
+   * different options can be compared person by person.
+   */
+  private static class RecordingGenerator extends Generator {
+    /** The summary of every attempt at each person, by index, in the order they were made. */
+    final Map<Integer, List<String>> people = new ConcurrentSkipListMap<>();
+
+    RecordingGenerator(GeneratorOptions opts) {
+      super(opts);
+    }
+
+    @Override
+    public void recordPerson(Person person, int index) {
+      // summarize before recording, since exporting may prune the record
+      String summary = summarize(person);
+      people.computeIfAbsent(index, k -> Collections.synchronizedList(new ArrayList<>()))
+          .add(summary);
+      super.recordPerson(person, index);
+    }
+  }
+
+  /**
+   * Summarize a person: their seed, demographics and the size of their record.
+   */
+  private static String summarize(Person person) {
+    int observations = 0;
+    int conditions = 0;
+    int procedures = 0;
+    int medications = 0;
+    for (HealthRecord.Encounter encounter : person.record.encounters) {
+      observations += encounter.observations.size();
+      conditions += encounter.conditions.size();
+      procedures += encounter.procedures.size();
+      medications += encounter.medications.size();
+    }
+    return String.join("|", Long.toString(person.seed),
+        String.valueOf(person.attributes.get(Person.ID)),
+        String.valueOf(person.attributes.get(Person.NAME)),
+        String.valueOf(person.attributes.get(Person.BIRTHDATE)),
+        String.valueOf(person.attributes.get(Person.GENDER)),
+        String.valueOf(person.attributes.get(Person.RACE)),
+        String.valueOf(person.attributes.get(Person.ETHNICITY)),
+        Long.toString(person.lastUpdated),
+        Integer.toString(person.record.encounters.size()),
+        Integer.toString(observations), Integer.toString(conditions),
+        Integer.toString(procedures), Integer.toString(medications));
+  }
+
+  /**
+   * Options for a run of a fixed population, ending at a fixed time.
+   */
+  private static Generator.GeneratorOptions fixedRun(int population, long seed, long endTime) {
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = population;
+    opts.seed = seed;
+    opts.clinicianSeed = seed;
+    opts.endTime = endTime;
+    return opts;
+  }
+
+  @Test
+  public void testThreadPoolSizeDoesNotChangeResults() throws Exception {
+    int numberOfPeople = 6;
+    long seed = 1234L;
+    long endTime = System.currentTimeMillis();
+    Map<Integer, List<String>> expected = null;
+    for (int threads : new int[] {1, 3}) {
+      for (boolean workStealing : new boolean[] {false, true}) {
+        Generator.GeneratorOptions opts = fixedRun(numberOfPeople, seed, endTime);
+        opts.threadPoolSize = threads;
+        opts.queueDepthPerThread = 1;
+        opts.workStealing = workStealing;
+        RecordingGenerator generator = new RecordingGenerator(opts);
+        generator.run();
+        if (expected == null) {
+          expected = generator.people;
+          assertEquals(numberOfPeople, expected.size());
+        } else {
+          assertEquals(expected, generator.people);
+        }
+        Provider.clear();
+        Payer.clear();
+      }
+    }
+  }
+
+  @Test
+  public void testLongestJobFirstDoesNotChangeResults() throws Exception {
+    int numberOfPeople = 6;
+    long seed = 4321L;
+    long endTime = System.currentTimeMillis();
+    Map<Integer, List<String>> expected = null;
+    for (boolean longestJobFirst : new boolean[] {false, true}) {
+      Generator.GeneratorOptions opts = fixedRun(numberOfPeople, seed, endTime);
+      opts.longestJobFirst = longestJobFirst;
+      opts.schedulingWindow = 4;
+      RecordingGenerator generator = new RecordingGenerator(opts);
+      generator.run();
+      if (expected == null) {
+        expected = generator.people;
+        assertEquals(numberOfPeople, expected.size());
+      } else {
+        assertEquals(expected, generator.people);
+      }
+      Provider.clear();
+      Payer.clear();
+    }
+  }
+
+  @Test
+  public void testExportPoolDoesNotChangeResults() throws Exception {
+    int numberOfPeople = 6;
+    long seed = 9876L;
+    long endTime = System.currentTimeMillis();
+    String baseDirectory = Config.get("exporter.baseDirectory");
+    Config.set("exporter.text.export", "true");
+    Map<String, String> expectedFiles = null;
+    List<String> expectedJournal = null;
+    Map<Integer, List<String>> expectedPeople = null;
+    try {
+      for (int exportThreads : new int[] {0, 2}) {
+        File output = tempFolder.newFolder();
+        Config.set("exporter.baseDirectory", output.toString());
+        Generator.GeneratorOptions opts = fixedRun(numberOfPeople, seed, endTime);
+        opts.exportThreadPoolSize = exportThreads;
+        opts.exportQueueDepthPerThread = 1;
+        opts.runJournalPath = new File(output, "run.journal");
+        RecordingGenerator generator = new RecordingGenerator(opts);
+        generator.run();
+
+        List<String> journal = Files.readAllLines(opts.runJournalPath.toPath());
+        // every record of a person is committed before the person is marked done
+        Set<String> done = new HashSet<>();
+        for (String line : journal) {
+          String[] fields = line.split("\t");
+          if (fields[0].equals("E")) {
+            assertFalse(line, done.contains(fields[1]));
+          } else if (fields[0].equals("D")) {
+            done.add(fields[1]);
+          }
+        }
+        assertEquals(numberOfPeople, done.size());
+        // the same records are committed, in whatever order the exports finished
+        List<String> commits = journal.stream()
+            .filter(line -> line.startsWith("E\t") || line.startsWith("D\t"))
+            .map(line -> line.split("\t"))
+            .map(fields -> fields[0] + "\t" + fields[1] + "\t" + fields[2])
+            .sorted().collect(Collectors.toList());
+        Map<String, String> files = readFiles(new File(output, "text"));
+        if (expectedJournal == null) {
+          expectedJournal = commits;
+          expectedFiles = files;
+          expectedPeople = generator.people;
+          assertFalse(files.isEmpty());
+        } else {
+          assertEquals(expectedJournal, commits);
+          assertEquals(expectedFiles, files);
+          assertEquals(expectedPeople, generator.people);
+        }
+        Provider.clear();
+        Payer.clear();
+      }
+    } finally {
+      Config.set("exporter.text.export", "false");
+      Config.set("exporter.baseDirectory", baseDirectory);
+    }
+  }
+
+  /**
+   * Read every file under a folder.
+   * @param folder The folder.
+   * @return the contents of each file, by its path relative to the folder.
+   */
+  private static Map<String, String> readFiles(File folder) throws IOException {
+    Map<String, String> files = new TreeMap<>();
+    try (Stream<Path> paths = Files.walk(folder.toPath())) {
+      for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        files.put(folder.toPath().relativize(path).toString(),
+            new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+      }
+    }
+    return files;
+  }
+
+  @Test
+  public void testShardsMatchUnshardedRun() throws Exception {
+    int numberOfPeople = 7;
+    long seed = 2468L;
+    long endTime = System.currentTimeMillis();
+    Map<Integer, List<String>> expected = null;
+    Map<Integer, List<String>> sharded = new TreeMap<>();
+    for (int shardCount : new int[] {1, 3}) {
+      for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+        Generator.GeneratorOptions opts = fixedRun(numberOfPeople, seed, endTime);
+        opts.shardIndex = shardIndex;
+        opts.shardCount = shardCount;
+        RecordingGenerator generator = new RecordingGenerator(opts);
+        generator.run();
+        if (shardCount == 1) {
+          expected = generator.people;
+        } else {
+          // each shard generates a disjoint range of the indices
+          for (Integer index : generator.people.keySet()) {
+            assertFalse(sharded.containsKey(index));
+          }
+          sharded.putAll(generator.people);
+        }
+        // every shard finishes with the generator in the same state as an unsharded run
+        assertEquals(Utilities.skipAheadRandom(seed, numberOfPeople).nextLong(),
+            generator.randLong());
+        Provider.clear();
+        Payer.clear();
+      }
+    }
+    assertEquals(numberOfPeople, expected.size());
+    assertEquals(expected, sharded);
+  }
+
+  @Test
+  public void testResumeCountsPeopleDoneBefore() throws Exception {
+    String baseDirectory = Config.get("exporter.baseDirectory");
+    File output = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", output.toString());
+    Config.set("exporter.fhir.export", "true");
+    Config.set("exporter.fhir.bulk_data", "true");
+    Config.set("exporter.groups.fhir.export", "true");
+    File group = new File(output, "fhir/Group.ndjson");
+    try {
+      Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+      opts.population = 4;
+      opts.seed = 8642L;
+      opts.clinicianSeed = 8642L;
+      opts.runJournalPath = new File(tempFolder.getRoot(), "run.journal");
+      FhirGroupExporterR4.resetPatientList();
+      Generator generator = new Generator(opts);
+      generator.run();
+      int alive = generator.stats.get("alive").get();
+      int dead = generator.stats.get("dead").get();
+      List<String> members = groupMembers(group);
+      assertEquals(alive + dead, members.size());
+
+      // stop the run once the second person is done
+      List<String> journal = Files.readAllLines(opts.runJournalPath.toPath());
+      int kept = 0;
+      for (int done = 0; done < 2; kept++) {
+        if (journal.get(kept).startsWith("D\t")) {
+          done++;
+        }
+      }
+      Files.write(opts.runJournalPath.toPath(), (String.join("\n", journal.subList(0, kept))
+          + "\n").getBytes(StandardCharsets.UTF_8));
+      Provider.clear();
+      Payer.clear();
+
+      opts.resume = true;
+      FhirGroupExporterR4.resetPatientList();
+      generator = new Generator(opts);
+      generator.run();
+      assertEquals(alive, generator.stats.get("alive").get());
+      assertEquals(dead, generator.stats.get("dead").get());
+      assertEquals(members, groupMembers(group));
+    } finally {
+      Config.set("exporter.fhir.export", "false");
+      Config.set("exporter.fhir.bulk_data", "false");
+      Config.set("exporter.groups.fhir.export", "false");
+      Config.set("exporter.csv.append_mode", "false");
+      Config.set("exporter.baseDirectory", baseDirectory);
+      FhirGroupExporterR4.resetPatientList();
+    }
+  }
+
+  private static List<String> groupMembers(File group) throws IOException {
+    JsonObject resource = JsonParser.parseString(new String(
+        Files.readAllBytes(group.toPath()), StandardCharsets.UTF_8)).getAsJsonObject();
+    List<String> members = new ArrayList<>();
+    for (JsonElement member : resource.getAsJsonArray("member")) {
+      members.add(member.getAsJsonObject().getAsJsonObject("entity")
+          .get("reference").getAsString());
+    }
+    Collections.sort(members);
+    return members;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testShardsRejectCdwExport() throws Exception {
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.shardIndex = 1;
+    opts.shardCount = 2;
+    Config.set("exporter.cdw.export", "true");
+    try {
+      new Generator(opts);
+    } finally {
+      Config.set("exporter.cdw.export", "false");
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSingleFileSnapshotRejected() throws Exception {
+    // older versions wrote the snapshot as one serialized list of people
+    File snapshot = tempFolder.newFile("population.snapshot");
+    try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(snapshot))) {
+      out.writeObject(new ArrayList<Person>());
+    }
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.initialPopulationSnapshotPath = snapshot;
+    new Generator(opts);
+  }
+
+  @Test
+  public void testExportOnlyFromSnapshot() throws Exception {
+    File snapshot = new File(tempFolder.getRoot(), "snapshot");
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 4;
+    opts.seed = 1357L;
+    opts.clinicianSeed = 1357L;
+    opts.updatedPopulationSnapshotPath = snapshot;
+    Generator generator = new Generator(opts);
+    generator.internalStore = Collections.synchronizedList(new LinkedList<>());
+    generator.run();
+    Map<Long, Long> expected = generator.internalStore.stream()
+        .collect(Collectors.toMap(p -> p.seed, p -> p.lastUpdated));
+    Provider.clear();
+    Payer.clear();
+
+    opts = new Generator.GeneratorOptions();
+    opts.initialPopulationSnapshotPath = snapshot;
+    opts.exportOnly = true;
+    // would move the population forward a year if it were simulated
+    opts.daysToTravelForward = 365;
+    generator = new Generator(opts);
+    generator.internalStore = Collections.synchronizedList(new LinkedList<>());
+    generator.run();
+    Map<Long, Long> replayed = generator.internalStore.stream()
+        .collect(Collectors.toMap(p -> p.seed, p -> p.lastUpdated));
+    assertEquals(expected, replayed);
+  }
+
+  @Test
+  public void testEventDrivenMatchesTimestepLoop() throws Exception {
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 1;
+    opts.minAge = 50;
+    opts.maxAge = 80;
+    opts.ageSpecified = true;
+    long personSeed = 13579L;
+    Person[] people = new Person[2];
+    for (int i = 0; i < people.length; i++) {
+      Config.set("generate.event_driven", Boolean.toString(i == 1));
+      Generator generator = new Generator(opts);
+      Map<String, Object> demoAttributes =
+          generator.randomDemographics(new Random(personSeed));
+      people[i] = generator.createPerson(personSeed, demoAttributes);
+      Provider.clear();
+      Payer.clear();
+    }
+    Config.set("generate.event_driven", "false");
+
+    Person expected = people[0];
+    Person actual = people[1];
+    assertEquals(expected.attributes.get(Person.NAME), actual.attributes.get(Person.NAME));
+    assertEquals(expected.record.encounters.size(), actual.record.encounters.size());
+    for (int i = 0; i < expected.record.encounters.size(); i++) {
+      HealthRecord.Encounter e = expected.record.encounters.get(i);
+      HealthRecord.Encounter a = actual.record.encounters.get(i);
+      assertEquals(e.start, a.start);
+      assertEquals(e.type, a.type);
+      assertEquals(e.conditions.size(), a.conditions.size());
+      assertEquals(e.medications.size(), a.medications.size());
+      assertEquals(e.observations.size(), a.observations.size());
+      assertEquals(e.procedures.size(), a.procedures.size());
+    }
+    assertEquals(expected.alive(expected.lastUpdated), actual.alive(actual.lastUpdated));
+  }
+}
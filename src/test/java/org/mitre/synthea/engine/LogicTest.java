@@ -14,6 +14,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.Period;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
@@ -194,6 +195,73 @@ public class LogicTest {
     assertTrue(doTest("isHalloween2007Test"));
   }
 
+  @Test
+  public void test_compiled_logic_matches_interpreter() {
+    String[] testNames = { "ageLt40Test", "ageLte40Test", "ageEq40Test", "ageGte40Test",
+        "ageGt40Test", "ageNe40Test", "before2016Test", "after2000Test", "beforeSeptemberTest",
+        "afterAprilTest", "inJulyTest", "beforeChristmas2016Test", "afterIndependenceDay2000Test",
+        "isHalloween2007Test", "genderIsMaleTest", "ageGte40AndAfter2000Test",
+        "ageGte40OrAfter2000Test", "ageGte40OrGenderTest", "andAllTrueTest", "andOneFalseTest",
+        "orOneTrueTest", "orAllFalseTest", "atLeast3_3TrueTest", "atLeast3_2TrueTest",
+        "atMost2_3TrueTest", "atMost2_2TrueTest", "notTrueTest", "notFalseTest" };
+    person.attributes.put(Person.GENDER, "M");
+    person.attributes.put(Person.BIRTHDATE, TestHelper.timestamp(1965, 2, 28, 0, 0, 0));
+    long day = Utilities.convertTime("days", 1);
+    for (String testName : testNames) {
+      JsonObject definition = tests.getAsJsonObject(testName);
+      Logic interpreted = Utilities.getGson().fromJson(definition, Logic.class);
+      Logic compiled = Utilities.getGson().fromJson(definition, Logic.class);
+      compiled.compile();
+      // step across year and month boundaries, and the 40th birthday
+      for (time = TestHelper.timestamp(1999, 12, 25, 0, 0, 0);
+          time < TestHelper.timestamp(2017, 1, 5, 0, 0, 0); time += 7 * day - 1) {
+        assertEquals(testName, interpreted.test(person, time), compiled.test(person, time));
+      }
+    }
+  }
+
+  private long doEarliestPassTime(String testName) {
+    JsonObject definition = tests.getAsJsonObject(testName);
+    Logic logic = Utilities.getGson().fromJson(definition, Logic.class);
+    logic.compile();
+
+    return logic.earliestPassTime(person, time);
+  }
+
+  @Test
+  public void test_earliest_pass_time() {
+    time = TestHelper.timestamp(1990, 6, 15, 0, 0, 0);
+    person.attributes.put(Person.BIRTHDATE, TestHelper.timestamp(1970, 3, 10, 0, 0, 0));
+    long fortieth = person.timeAtAge(Period.ofYears(40));
+    long year2000 = TestHelper.timestamp(2000, 1, 1, 0, 0, 0);
+
+    // the guard can't pass any earlier than the reported time, but does pass soon after
+    long day = Utilities.convertTime("days", 1);
+    assertEquals(fortieth, doEarliestPassTime("ageGte40Test"));
+    assertEquals(39, person.ageInYears(fortieth - day));
+    assertEquals(40, person.ageInYears(fortieth + day));
+    assertTrue(doEarliestPassTime("ageGt40Test") > fortieth);
+    assertEquals(year2000, doEarliestPassTime("after2000Test"));
+    assertEquals(TestHelper.timestamp(2000, 7, 4, 0, 0, 0),
+        doEarliestPassTime("afterIndependenceDay2000Test"));
+
+    // conditions that can pass at any time
+    assertEquals(time, doEarliestPassTime("ageLt40Test"));
+    assertEquals(time, doEarliestPassTime("before2016Test"));
+    assertEquals(time, doEarliestPassTime("inJulyTest"));
+    assertEquals(time, doEarliestPassTime("genderIsMaleTest"));
+    assertEquals(time, doEarliestPassTime("ageGte40OrGenderTest"));
+
+    // grouped conditions
+    assertEquals(fortieth, doEarliestPassTime("ageGte40AndAfter2000Test"));
+    assertEquals(year2000, doEarliestPassTime("ageGte40OrAfter2000Test"));
+
+    // once the time has been reached, the condition can pass right away
+    time = fortieth;
+    assertEquals(time, doEarliestPassTime("ageGte40Test"));
+    assertTrue(doTest("ageGte40AndAfter2000Test"));
+  }
+
   @Test
   public void test_attribute() {
     String attribute = "Test_Attribute_Key";
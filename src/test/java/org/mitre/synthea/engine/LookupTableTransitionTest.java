@@ -616,6 +616,34 @@ public class LookupTableTransitionTest {
     assertFalse(extremeLookuptablitis.test(person, conditionTime + 100));
   }
 
+  @Test
+  public void sharedTableTimeRangeBounds() throws Exception {
+    // A second copy of the module shares the lookup table loaded by the first.
+    TestHelper.getFixture("lookuptable_timerangetest.json");
+    Module lookuptableTestModule = TestHelper.getFixture("lookuptable_timerangetest.json");
+
+    long[] times = { 0L, 999L, 1000L, 1999L, 2000L };
+    ActiveCondition[] expected = { moderateLookuptablitis, moderateLookuptablitis,
+        extremeLookuptablitis, extremeLookuptablitis, extremeLookuptablitis };
+    for (int i = 0; i < times.length; i++) {
+      Person person = new Person(0L);
+      person.attributes.put(Person.BIRTHDATE, 0L);
+      person.attributes.put(Person.GENDER, "M");
+      person.attributes.put(Person.STATE, "Massachusetts");
+      lookuptableTestModule.process(person, times[i]);
+      assertTrue(expected[i].test(person, times[i] + 100));
+    }
+
+    // The row ranges are inclusive, and outside of them the default applies.
+    Person person = new Person(0L);
+    person.attributes.put(Person.BIRTHDATE, 0L);
+    person.attributes.put(Person.GENDER, "F");
+    person.attributes.put(Person.STATE, "Massachusetts");
+    lookuptableTestModule.process(person, 2000L);
+    assertTrue(extremeLookuptablitis.test(person, 2100L));
+    assertFalse(moderateLookuptablitis.test(person, 2100L));
+  }
+
   @Test
   public void invalidCsvAgeRange() {
     try {
@@ -0,0 +1,95 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.TestHelper;
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.agents.Person;
+
+public class ModuleCacheTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private String lookupTables;
+
+  @Before
+  public void setup() {
+    lookupTables = Config.get("generate.lookup_tables");
+    Config.set("generate.lookup_tables", "generic/lookup_tables/");
+  }
+
+  @After
+  public void reset() {
+    Config.set("generate.lookup_tables", lookupTables);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Map<String, Module> modules = new HashMap<String, Module>();
+    modules.put("lookuptable_timerangetest",
+        TestHelper.getFixture("lookuptable_timerangetest.json"));
+    modules.put("recursively_calls_submodules",
+        TestHelper.getFixture("recursively_calls_submodules.json"));
+    File cache = new File(tempFolder.getRoot(), "modules.cache");
+    ModuleCache.write(cache, "fingerprint", modules);
+
+    assertNull(ModuleCache.read(cache, "another fingerprint"));
+    Map<String, Module> cached = ModuleCache.read(cache, "fingerprint");
+    assertNotNull(cached);
+    assertEquals(modules.keySet(), cached.keySet());
+    for (String path : modules.keySet()) {
+      assertEquals(modules.get(path).name, cached.get(path).name);
+      assertEquals(modules.get(path).submodule, cached.get(path).submodule);
+      assertEquals(modules.get(path).getStateNames(), cached.get(path).getStateNames());
+    }
+
+    // the lookup table is cached along with the module
+    Person person = new Person(0L);
+    person.attributes.put(Person.BIRTHDATE, 0L);
+    person.attributes.put(Person.GENDER, "M");
+    person.attributes.put(Person.STATE, "Massachusetts");
+    cached.get("lookuptable_timerangetest").process(person, 1500L);
+    assertTrue(person.hadPriorState("Extreme_Lookuptablitis"));
+    assertFalse(person.hadPriorState("Moderate_Lookuptablitis"));
+  }
+
+  @Test
+  public void testUnreadableCache() throws Exception {
+    File cache = tempFolder.newFile("modules.cache");
+    Files.write(cache.toPath(), "not a cache".getBytes(StandardCharsets.UTF_8));
+    assertNull(ModuleCache.read(cache, "fingerprint"));
+    assertNull(ModuleCache.read(new File(tempFolder.getRoot(), "missing"), "fingerprint"));
+  }
+
+  @Test
+  public void testFingerprintChangesWithModules() throws Exception {
+    File folder = tempFolder.newFolder("modules");
+    File module = new File(folder, "example.json");
+    Files.write(module.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+    String fingerprint = ModuleCache.fingerprint(folder.toPath(), null);
+    assertEquals(fingerprint, ModuleCache.fingerprint(folder.toPath(), null));
+
+    Files.write(module.toPath(), "{ }".getBytes(StandardCharsets.UTF_8));
+    String changed = ModuleCache.fingerprint(folder.toPath(), null);
+    assertNotEquals(fingerprint, changed);
+
+    File overrides = tempFolder.newFile("overrides.properties");
+    assertNotEquals(changed, ModuleCache.fingerprint(folder.toPath(), overrides.getPath()));
+  }
+}
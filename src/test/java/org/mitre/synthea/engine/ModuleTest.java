@@ -19,6 +19,7 @@ import java.lang.reflect.Field;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +34,7 @@ import java.util.stream.Collectors;
 
 import org.junit.Test;
 import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
 import org.powermock.reflect.Whitebox;
 
 public class ModuleTest {
@@ -52,6 +54,36 @@ public class ModuleTest {
     assertFalse(someModules.stream().anyMatch(filterOnModuleName("COPD")));
   }
 
+  @Test
+  public void getModulesLoadsCalledSubmodules() throws Exception {
+    Field modulesField = Whitebox.getField(Module.class, "modules");
+    modulesField.setAccessible(true);
+    @SuppressWarnings("unchecked")
+    Map<String, Module.ModuleSupplier> modules =
+            (Map<String, Module.ModuleSupplier>)modulesField.get(null);
+    List<String> paths = Arrays.asList("lazy_caller", "lazy_submodules/called",
+        "lazy_submodules/transitive", "lazy_submodules/uncalled");
+    try {
+      // a fresh module tree, which nothing has loaded yet
+      Module.addModules(new File("src/test/resources/submodule_tree"));
+      List<String> unloaded = Module.getUnloadedSubmodulePaths();
+      assertTrue(unloaded.contains("lazy_submodules/called"));
+      assertTrue(unloaded.contains("lazy_submodules/transitive"));
+      assertTrue(unloaded.contains("lazy_submodules/uncalled"));
+
+      List<Module> someModules = Module.getModules(path -> path.equals("lazy_caller"));
+      assertTrue(someModules.stream().anyMatch(filterOnModuleName("Lazy Caller")));
+
+      // the called submodule and the one it calls are loaded, but not the uncalled one
+      unloaded = Module.getUnloadedSubmodulePaths();
+      assertFalse(unloaded.contains("lazy_submodules/called"));
+      assertFalse(unloaded.contains("lazy_submodules/transitive"));
+      assertTrue(unloaded.contains("lazy_submodules/uncalled"));
+    } finally {
+      modules.keySet().removeAll(paths);
+    }
+  }
+
   /** Manually compare lists since the Modules are clones and not originals. */
   private boolean contains(List<Module> superset, List<Module> subset) {
     for (Module subsetModule : subset) {
@@ -168,6 +200,26 @@ public class ModuleTest {
     assertEquals("COPD Module", module.name);
   }
   
+  @Test
+  public void getModuleByPath_sharedBetweenPeople() {
+    Module module = Module.getModuleByPath("copd");
+    assertSame(module, Module.getModuleByPath("copd"));
+    assertSame(module, module.clone());
+
+    // processing people must only ever touch clones of the shared states
+    long time = System.currentTimeMillis();
+    for (long seed = 0; seed < 3; seed++) {
+      Person person = new Person(seed);
+      person.attributes.put(Person.BIRTHDATE, time - Utilities.convertTime("years", 10));
+      module.process(person, time);
+      assertNotNull(person.attributes.get(module.name));
+    }
+    for (String stateName : module.getStateNames()) {
+      assertNull(module.getState(stateName).entered);
+      assertNull(module.getState(stateName).exited);
+    }
+  }
+
   @Test
   public void addLocalModules() {
     Module.addModules(new File("src/test/resources/module"));
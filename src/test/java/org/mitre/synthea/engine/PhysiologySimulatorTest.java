@@ -16,6 +16,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.math.ode.DerivativeException;
@@ -142,6 +145,33 @@ public class PhysiologySimulatorTest {
     assertEquals(4, pngCount);
   }
   
+  @Test
+  public void testConcurrentRuns() throws Exception {
+    PhysiologySimulator physio = new PhysiologySimulator(
+        "circulation/Smith2004_CVS_human.xml", "runge_kutta", 0.01, 1);
+    Map<String,Double> inputs = new HashMap<String,Double>();
+    inputs.put("R_sys", 1.814);
+    MultiTable expected = physio.run(inputs);
+    int lastRow = expected.getRowCount() - 1;
+    double expectedPao = expected.getColumn("P_ao").getValue(lastRow);
+
+    // Each thread runs the shared simulator with its own interpreter and solver
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<MultiTable>> futures = new ArrayList<Future<MultiTable>>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(() -> physio.run(inputs)));
+      }
+      for (Future<MultiTable> future : futures) {
+        MultiTable results = future.get();
+        assertEquals(expected.getRowCount(), results.getRowCount());
+        assertEquals(expectedPao, results.getColumn("P_ao").getValue(lastRow), 0.0);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void testGetSolvers() {
     Set<String> solvers = PhysiologySimulator.getSolvers();
@@ -0,0 +1,88 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.world.agents.Person;
+
+public class PopulationSnapshotTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testWriteAndReadChunks() throws Exception {
+    File folder = new File(tempFolder.getRoot(), "snapshot");
+    try (PopulationSnapshot.Writer writer = new PopulationSnapshot.Writer(folder, 2)) {
+      for (int i = 0; i < 5; i++) {
+        Person person = new Person(i);
+        person.attributes.put(Person.NAME, "Person " + i);
+        writer.write(person, 10 + i);
+      }
+    }
+    assertTrue(PopulationSnapshot.isChunked(folder));
+    List<File> chunks = PopulationSnapshot.getChunks(folder);
+    assertEquals(3, chunks.size());
+    assertEquals("Person 0",
+        PopulationSnapshot.readFirst(chunks.get(0)).attributes.get(Person.NAME));
+
+    Map<Integer, String> names = new TreeMap<Integer, String>();
+    for (File chunk : chunks) {
+      PopulationSnapshot.read(chunk, (person, index) ->
+          names.put(index, (String) person.attributes.get(Person.NAME)));
+    }
+    assertEquals(5, names.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals("Person " + i, names.get(10 + i));
+    }
+  }
+
+  @Test
+  public void testIncompleteChunk() throws Exception {
+    File folder = new File(tempFolder.getRoot(), "snapshot");
+    try (PopulationSnapshot.Writer writer = new PopulationSnapshot.Writer(folder, 10)) {
+      writer.write(new Person(1L), 0);
+      writer.write(new Person(2L), 1);
+    }
+    File chunk = PopulationSnapshot.getChunks(folder).get(0);
+    // cut the chunk off partway through the last record, as if the run had been killed
+    try (RandomAccessFile file = new RandomAccessFile(chunk, "rw")) {
+      file.setLength(file.length() - 10);
+    }
+    int[] count = new int[1];
+    PopulationSnapshot.read(chunk, (person, index) -> count[0]++);
+    assertEquals(1, count[0]);
+    assertFalse(PopulationSnapshot.isChunked(chunk));
+  }
+
+  @Test
+  public void testOtherVersionRejected() throws Exception {
+    File folder = tempFolder.newFolder("snapshot");
+    File chunk = new File(folder, "chunk-00000.bin");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(chunk))) {
+      out.writeUTF("SYNTHEA-POPULATION-SNAPSHOT");
+      out.writeInt(1);
+      out.writeInt(-1);
+    }
+    assertEquals(1, PopulationSnapshot.getChunks(folder).size());
+    try {
+      PopulationSnapshot.read(chunk, (person, index) -> { });
+      fail("a chunk from another version should be rejected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("version 1"));
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.TestHelper;
+import org.mitre.synthea.export.Exporter;
+import org.mitre.synthea.helpers.Config;
+
+public class RunJournalTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File patients;
+
+  /**
+   * Export bulk R4 FHIR only, to a temporary folder.
+   */
+  @Before
+  public void setup() throws Exception {
+    TestHelper.loadTestProperties();
+    Config.set("exporter.baseDirectory", tempFolder.newFolder().toString());
+    Config.set("exporter.csv.export", "false");
+    Config.set("exporter.fhir.export", "true");
+    Config.set("exporter.fhir_stu3.export", "false");
+    Config.set("exporter.fhir_dstu2.export", "false");
+    Config.set("exporter.fhir.bulk_data", "true");
+    patients = new File(Exporter.getOutputFolder("fhir", null), "Patient.ndjson");
+  }
+
+  private static void append(File file, String contents) {
+    try {
+      Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8),
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    append(patients, "existing\n");
+    File journalFile = new File(tempFolder.getRoot(), "run.journal");
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.seed = 42L;
+    options.population = 3;
+
+    try (RunJournal journal = RunJournal.create(journalFile, options)) {
+      journal.export(0, 10L, "p0", true, () -> append(patients, "zero\n"));
+      journal.done(0, 10L);
+      // a dead attempt at the next person, then the run is killed part way through the second
+      journal.export(1, 20L, "p1a", false, () -> append(patients, "one died\n"));
+    }
+    append(patients, "one ali");
+    File conditions = new File(patients.getParentFile(), "Condition.ndjson");
+    append(conditions, "condition of one\n");
+    append(journalFile, "E\t1\t21\tp1b\talive\t" + patients.getAbsolutePath());
+
+    try (RunJournal journal = RunJournal.resume(journalFile, options)) {
+      assertEquals("existing\nzero\none died\n", read(patients));
+      assertFalse(conditions.exists());
+      assertEquals(1, journal.getDoneCount());
+      assertTrue(journal.isDone(0));
+      assertFalse(journal.isDone(1));
+      List<String[]> doneRecords = journal.getDoneRecords();
+      assertEquals(1, doneRecords.size());
+      assertArrayEquals(new String[] {"p0", "alive"}, doneRecords.get(0));
+
+      // the dead attempt is already in the output, so it isn't exported again
+      assertFalse(journal.export(1, 20L, "p1a", false, () -> append(patients, "one died\n")));
+      assertTrue(journal.export(1, 21L, "p1b", true, () -> append(patients, "one alive\n")));
+      journal.done(1, 21L);
+    } finally {
+      Config.set("exporter.csv.append_mode", "false");
+    }
+    assertEquals("existing\nzero\none died\none alive\n", read(patients));
+  }
+
+  @Test
+  public void testDoneWaitsForSubmittedExports() throws Exception {
+    File journalFile = new File(tempFolder.getRoot(), "run.journal");
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.seed = 42L;
+    options.population = 1;
+
+    try (RunJournal journal = RunJournal.create(journalFile, options)) {
+      journal.submitted(0);
+      journal.submitted(0);
+      // the last attempt finishes exporting before the dead attempt before it
+      journal.export(0, 11L, "p0b", true, () -> append(patients, "zero alive\n"));
+      journal.done(0, 11L);
+      assertFalse(read(journalFile).contains("D\t"));
+      journal.export(0, 10L, "p0a", false, () -> append(patients, "zero died\n"));
+    }
+    String[] lines = read(journalFile).split("\n");
+    assertTrue(lines[lines.length - 2].startsWith("E\t0\t10\t"));
+    assertEquals("D\t0\t11", lines[lines.length - 1]);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testResumeDifferentRun() throws Exception {
+    File journalFile = new File(tempFolder.getRoot(), "run.journal");
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.seed = 42L;
+    RunJournal.create(journalFile, options).close();
+    options.seed = 43L;
+    RunJournal.resume(journalFile, options);
+  }
+}
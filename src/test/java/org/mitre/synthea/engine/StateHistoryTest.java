@@ -0,0 +1,91 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mitre.synthea.world.agents.Person;
+
+public class StateHistoryTest {
+
+  private static State state(String name, Long exited) {
+    State state = new State.Simple();
+    state.name = name;
+    state.exited = exited;
+    return state;
+  }
+
+  @Test
+  public void testMostRecentFirst() {
+    StateHistory history = new StateHistory(3);
+    for (int i = 0; i < 5; i++) {
+      history.add(0, state("S" + i, (long) i));
+    }
+    assertEquals(3, history.size());
+    assertEquals(5, history.getTotalVisits());
+    assertTrue(history.isTruncated());
+    assertEquals("S4", history.get(0).name);
+    assertEquals("S3", history.get(1).name);
+    assertEquals("S2", history.get(2).name);
+  }
+
+  @Test
+  public void testAddAllKeepsOrder() {
+    StateHistory history = new StateHistory(0);
+    history.add(0, state("Initial", 0L));
+    StateHistory submodule = new StateHistory(0);
+    submodule.add(0, state("A", 1L));
+    submodule.add(0, state("B", 2L));
+    history.addAll(0, submodule);
+    history.add(0, state("Call", 3L));
+
+    assertEquals(4, history.size());
+    assertEquals(Arrays.asList("Call", "B", "A", "Initial"),
+        Arrays.asList(history.get(0).name, history.get(1).name,
+            history.get(2).name, history.get(3).name));
+    assertTrue(history.hadPriorState("A", "Initial", null));
+    assertFalse(history.hadPriorState("Initial", "A", null));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testAddOnlyAtFront() {
+    StateHistory history = new StateHistory(0);
+    history.add(0, state("Initial", 0L));
+    history.add(1, state("Other", 1L));
+  }
+
+  @Test
+  public void testPriorStateMatchesFullHistory() {
+    Random random = new Random(42L);
+    Person bounded = new Person(0L);
+    Person full = new Person(0L);
+    bounded.history = new StateHistory(10);
+    full.history = new LinkedList<State>();
+
+    long time = 0;
+    for (int i = 0; i < 500; i++) {
+      time += random.nextInt(3);
+      State state = state("S" + random.nextInt(12), time);
+      bounded.history.add(0, state);
+      full.history.add(0, state);
+
+      for (int check = 0; check < 5; check++) {
+        String name = "S" + random.nextInt(13);
+        String since = random.nextBoolean() ? null : "S" + random.nextInt(13);
+        Long within = random.nextBoolean() ? null : (long) random.nextInt((int) time + 1);
+        assertEquals(full.hadPriorState(name, since, within),
+            bounded.hadPriorState(name, since, within));
+      }
+    }
+    List<State> tail = full.history.subList(0, 10);
+    assertEquals(tail, bounded.history);
+    assertSame(full.history.get(0), bounded.history.get(0));
+  }
+}
@@ -142,6 +142,40 @@ public class StateTest {
     assertFalse(guard.process(person, time));
   }
 
+  @Test
+  public void guard_skips_logic_until_it_could_pass() throws Exception {
+    assertFalse(Config.getAsBoolean("generate.event_driven", false));
+    Module module = TestHelper.getFixture("age_guard.json");
+    State guard = module.getState("Age_Guard");
+    final Logic allow = Whitebox.getInternalState(guard, "allow");
+    final int[] tests = new int[1];
+    Whitebox.setInternalState(guard, "allow", new Logic() {
+      @Override
+      public boolean test(Person person, long time) {
+        tests[0]++;
+        return allow.test(person, time);
+      }
+
+      @Override
+      public long earliestPassTime(Person person, long time) {
+        return allow.earliestPassTime(person, time);
+      }
+    });
+
+    // step a 35 year old forward weekly until they turn 40
+    long step = Utilities.convertTime("days", 7);
+    long passed = 0L;
+    for (long t = time; passed == 0L && t < time + Utilities.convertTime("years", 6); t += step) {
+      if (guard.process(person, t)) {
+        passed = t;
+      }
+    }
+    assertEquals(40, person.ageInYears(passed));
+    assertTrue(person.ageInYears(passed - step) < 40);
+    // the condition is only evaluated once the person could be old enough
+    assertEquals(1, tests[0]);
+  }
+
   @Test
   public void counter() throws Exception {
     Module module = TestHelper.getFixture("counter.json");
@@ -10,6 +10,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mitre.synthea.TestHelper;
 import org.mitre.synthea.world.agents.Person;
+import org.powermock.reflect.Whitebox;
 
 public class TransitionTest {
 
@@ -92,4 +93,35 @@ public class TransitionTest {
     assertEquals(0, counts.get("Terminal2").intValue());
     assertEquals(100, counts.get("Terminal3").intValue());
   }
+
+  @Test
+  public void testCompiledTransitionsMatchNamedTransitions() throws Exception {
+    String[] fixtures = { "direct_transition.json", "distributed_transition.json",
+        "distributed_transition_with_attrs.json", "conditional_transition.json",
+        "complex_transition.json" };
+    for (String fixture : fixtures) {
+      Module module = TestHelper.getFixture(fixture);
+      State[] stateTable = Whitebox.getInternalState(module, "stateTable");
+      for (String gender : new String[] { "M", "F" }) {
+        // two identical people, so both transitions see the same random numbers
+        Person byName = new Person(19L);
+        Person byIndex = new Person(19L);
+        for (Person person : new Person[] { byName, byIndex }) {
+          person.attributes.put(Person.BIRTHDATE, 0L);
+          person.attributes.put(Person.GENDER, gender);
+        }
+        for (int i = 0; i < 100; i++) {
+          for (String stateName : module.getStateNames()) {
+            State state = module.getState(stateName);
+            if (state.getTransition() == null) {
+              continue;
+            }
+            String expected = state.transition(byName, 0L);
+            int next = state.transitionIndex(byIndex, 0L);
+            assertEquals(fixture, expected, stateTable[next].name);
+          }
+        }
+      }
+    }
+  }
 }
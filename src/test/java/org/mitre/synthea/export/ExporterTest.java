@@ -1,11 +1,31 @@
 package org.mitre.synthea.export;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mitre.synthea.TestHelper.years;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mitre.synthea.TestHelper;
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.helpers.Config;
@@ -29,6 +49,11 @@ public class ExporterTest {
   private HealthRecord record;
   
   private static final HealthRecord.Code DUMMY_CODE = new HealthRecord.Code("", "", "");
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private RecordSink sink;
   
   /**
    * Setup test data.
@@ -56,6 +81,17 @@ public class ExporterTest {
     }
   }
 
+  /**
+   * Remove any sink a test added, and export sinks one at a time again.
+   */
+  @After
+  public void tearDown() {
+    if (sink != null) {
+      Exporter.removeSink(sink);
+    }
+    Config.set("exporter.parallel_sinks", "false");
+  }
+
   @Test
   public void testExportFilterSimpleCutoff() {
     record.encounterStart(time - years(8), EncounterType.WELLNESS);
@@ -75,6 +111,129 @@ public class ExporterTest {
     assertEquals(128, encounter.observations.get(0).value);
   }
 
+  @Test
+  public void testDeltaFilterKeepsNewAndChangedEntries() {
+    long since = time - years(1);
+    Encounter old = record.encounterStart(time - years(3), EncounterType.AMBULATORY);
+    record.observation(time - years(3), "height", 64);
+    record.medicationStart(time - years(3), "fakeitol", true);
+    record.medicationStart(time - years(3), "placebitol", true);
+    record.medicationEnd(time - years(3), "placebitol", DUMMY_CODE);
+    record.medicationStart(time - years(3), "dimoxinil", true);
+    // ended after the record was last exported, so it has changed
+    record.medicationEnd(since + 1000, "dimoxinil", DUMMY_CODE);
+
+    record.encounterStart(time - years(2), EncounterType.WELLNESS);
+    record.observation(time - years(2), "weight", 120);
+
+    Encounter latest = record.encounterStart(since + 2000, EncounterType.WELLNESS);
+    record.observation(since + 2000, "weight", 128);
+
+    Person filtered = Exporter.filterForDelta(patient, since, endTime);
+
+    assertEquals(2, filtered.record.encounters.size());
+    assertEquals(old, filtered.record.encounters.get(0));
+    assertEquals(0, old.observations.size());
+    assertEquals(1, old.medications.size());
+    assertEquals("dimoxinil", old.medications.get(0).type);
+    assertEquals(latest, filtered.record.encounters.get(1));
+    assertEquals(1, latest.observations.size());
+    assertEquals(128, latest.observations.get(0).value);
+  }
+
+  @Test
+  public void testParallelSinksExportViews() {
+    TestHelper.exportOff();
+    Config.set("exporter.clinical_note.export", "false");
+    List<Person> exported = Collections.synchronizedList(new ArrayList<Person>());
+    sink = (person, fileTag, stopTime, options) -> {
+      person.attributes.put("ehr_scratch", person.randLong());
+      exported.add(person);
+    };
+    Exporter.addSink(sink);
+    Exporter.addSink(sink);
+    Config.set("exporter.parallel_sinks", "true");
+    Exporter.export(patient, time);
+
+    assertEquals(2, exported.size());
+    for (Person view : exported) {
+      assertNotSame(patient, view);
+      assertSame(patient.record, view.record);
+      assertEquals(patient.attributes.get(Person.BIRTHDATE),
+          view.attributes.get(Person.BIRTHDATE));
+    }
+    assertNotSame(exported.get(0), exported.get(1));
+    assertFalse(patient.attributes.containsKey("ehr_scratch"));
+  }
+
+  @Test
+  public void testParallelSinksFhirReferencesResolve() throws Exception {
+    TestHelper.exportOff();
+    Config.set("exporter.baseDirectory", tempFolder.newFolder().toString());
+    Config.set("exporter.clinical_note.export", "false");
+    Config.set("exporter.fhir.bulk_data", "false");
+    Config.set("exporter.parallel_sinks", "true");
+    int numberOfPeople = 3;
+    Generator generator = new Generator(numberOfPeople);
+    generator.options.overflow = false;
+    for (int i = 0; i < numberOfPeople; i++) {
+      TestHelper.exportOff();
+      Person person = generator.generatePerson(i);
+      // the R4 and STU3 exports convert the same record at the same time
+      Config.set("exporter.fhir.export", "true");
+      Config.set("exporter.fhir_stu3.export", "true");
+      Exporter.export(person, System.currentTimeMillis());
+    }
+
+    int bundles = 0;
+    for (String folder : new String[] {"fhir", "fhir_stu3"}) {
+      for (File file : Exporter.getOutputFolder(folder, null).listFiles()) {
+        if (!file.getName().endsWith(".json")) {
+          continue;
+        }
+        JsonObject bundle = JsonParser.parseString(new String(
+            Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).getAsJsonObject();
+        Set<String> fullUrls = new HashSet<String>();
+        for (JsonElement entry : bundle.getAsJsonArray("entry")) {
+          fullUrls.add(entry.getAsJsonObject().get("fullUrl").getAsString());
+        }
+        for (JsonElement entry : bundle.getAsJsonArray("entry")) {
+          JsonObject resource = entry.getAsJsonObject().getAsJsonObject("resource");
+          String type = resource.get("resourceType").getAsString();
+          if (type.equals("Claim") || type.equals("ExplanationOfBenefit")
+              || type.equals("DiagnosticReport")) {
+            List<String> references = new ArrayList<String>();
+            collectReferences(resource, references);
+            for (String reference : references) {
+              if (reference.startsWith("urn:uuid:")) {
+                assertTrue(folder + "/" + file.getName() + ": " + type + " references "
+                    + reference + " outside the bundle", fullUrls.contains(reference));
+              }
+            }
+          }
+        }
+        bundles++;
+      }
+    }
+    assertEquals(2 * numberOfPeople, bundles);
+  }
+
+  private static void collectReferences(JsonElement element, List<String> references) {
+    if (element.isJsonArray()) {
+      for (JsonElement item : element.getAsJsonArray()) {
+        collectReferences(item, references);
+      }
+    } else if (element.isJsonObject()) {
+      for (Map.Entry<String, JsonElement> field : element.getAsJsonObject().entrySet()) {
+        if (field.getKey().equals("reference") && field.getValue().isJsonPrimitive()) {
+          references.add(field.getValue().getAsString());
+        } else {
+          collectReferences(field.getValue(), references);
+        }
+      }
+    }
+  }
+
   @Test
   public void testExportFilterShouldKeepOldActiveMedication() {
 
@@ -0,0 +1,208 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.TestHelper;
+import org.mitre.synthea.engine.Generator;
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.agents.Payer;
+import org.mitre.synthea.world.agents.Provider;
+
+public class ShardMergerTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private static final String ORGANIZATIONS_HEADER =
+      "Id,NAME,ADDRESS,CITY,STATE,ZIP,LAT,LON,PHONE,REVENUE,UTILIZATION";
+  private static final String PAYERS_HEADER = "Id,NAME,ADDRESS,CITY,STATE_HEADQUARTERED,ZIP,"
+      + "PHONE,AMOUNT_COVERED,AMOUNT_UNCOVERED,REVENUE,COVERED_ENCOUNTERS,UNCOVERED_ENCOUNTERS,"
+      + "COVERED_MEDICATIONS,UNCOVERED_MEDICATIONS,COVERED_PROCEDURES,UNCOVERED_PROCEDURES,"
+      + "COVERED_IMMUNIZATIONS,UNCOVERED_IMMUNIZATIONS,UNIQUE_CUSTOMERS,QOLS_AVG,MEMBER_MONTHS";
+  private static final String PAYER_TOTALS_HEADER =
+      "Id,AMOUNT_COVERED,AMOUNT_UNCOVERED,REVENUE,TOTAL_QOLS";
+
+  private Path shard(String name) throws Exception {
+    File shard = tempFolder.newFolder(name);
+    new File(shard, "csv").mkdirs();
+    new File(shard, "cdw").mkdirs();
+    new File(shard, "fhir").mkdirs();
+    return shard.toPath();
+  }
+
+  private static void write(Path file, String... lines) throws Exception {
+    Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    Path shard1 = shard("shard1");
+    Path shard2 = shard("shard2");
+    Path output = tempFolder.newFolder("merged").toPath();
+
+    write(shard1.resolve("csv/patients.csv"), "Id,BIRTHDATE", "p1,2000-01-01");
+    write(shard2.resolve("csv/patients.csv"), "Id,BIRTHDATE", "p2,2001-01-01");
+    write(shard1.resolve("csv/organizations.csv"), ORGANIZATIONS_HEADER,
+        "o1,Org One,1 Main St,Bedford,MA,01730,42.0,-71.0,555-1234,100.5,3");
+    write(shard2.resolve("csv/organizations.csv"), ORGANIZATIONS_HEADER,
+        "o2,Org Two,2 Main St,Bedford,MA,01730,42.0,-71.0,555-1234,10.0,1",
+        "o1,Org One,1 Main St,Bedford,MA,01730,42.0,-71.0,555-1234,20.0,2");
+    write(shard1.resolve("csv/payers.csv"), PAYERS_HEADER,
+        "y1,Payer,,,,,,0.67,0.00,0.33,1,0,0,0,0,0,0,0,1,0.5,24",
+        "y2,Short Payer,,,,,,5.00,0.00,0.00,1,0,0,0,0,0,0,0,1,0.0,0");
+    write(shard2.resolve("csv/payers.csv"), PAYERS_HEADER,
+        "y1,Payer,,,,,,0.67,0.00,0.33,1,0,0,0,0,0,0,0,1,0.25,12",
+        "y2,Short Payer,,,,,,0.00,0.00,0.00,0,0,0,0,0,0,0,0,0,0.0,0");
+    write(shard1.resolve("csv/payer_totals.csv"), PAYER_TOTALS_HEADER, "y1,0.666,0.0,0.333,1.0",
+        "y2,5.0,0.0,0.0,0.5");
+    write(shard2.resolve("csv/payer_totals.csv"), PAYER_TOTALS_HEADER, "y1,0.666,0.0,0.333,0.25",
+        "y2,0.0,0.0,0.0,0.0");
+    write(shard1.resolve("fhir/groupInformation1.json"), "{\"resourceType\": \"Group\","
+        + " \"quantity\": 1, \"member\": [{\"entity\": {\"reference\": \"Patient/p1\"}}]}");
+    write(shard2.resolve("fhir/groupInformation1.json"), "{\"resourceType\": \"Group\","
+        + " \"quantity\": 1, \"member\": [{\"entity\": {\"reference\": \"Patient/p2\"}}]}");
+    write(shard1.resolve("fhir/p1.json"), "{}");
+
+    ShardMerger.merge(Arrays.asList(shard1, shard2), output);
+
+    List<String> patients = Files.readAllLines(output.resolve("csv/patients.csv"));
+    assertEquals(Arrays.asList("Id,BIRTHDATE", "p1,2000-01-01", "p2,2001-01-01"), patients);
+
+    List<String> organizations = Files.readAllLines(output.resolve("csv/organizations.csv"));
+    assertEquals(3, organizations.size());
+    assertEquals(ORGANIZATIONS_HEADER, organizations.get(0));
+    assertTrue(organizations.get(1).startsWith("o1,"));
+    assertTrue(organizations.get(1).endsWith(",120.5,5"));
+    assertTrue(organizations.get(2).startsWith("o2,"));
+
+    // costs are rounded from the unrounded totals, and QOLS_AVG is total QOLS per member year,
+    // or 0 for a payer without a whole member year
+    List<String> payers = Files.readAllLines(output.resolve("csv/payers.csv"));
+    assertEquals(Arrays.asList(PAYERS_HEADER,
+        "y1,Payer,,,,,,1.33,0.00,0.67,2,0,0,0,0,0,0,0,2,0.4166666666666667,36",
+        "y2,Short Payer,,,,,,5.00,0.00,0.00,1,0,0,0,0,0,0,0,1,0.0,0"), payers);
+    assertFalse(Files.exists(output.resolve("csv/payer_totals.csv")));
+
+    String groupJson = new String(Files.readAllBytes(
+        output.resolve("fhir/groupInformation1.json")), StandardCharsets.UTF_8);
+    JsonObject group = JsonParser.parseString(groupJson).getAsJsonObject();
+    assertEquals(2, group.get("quantity").getAsInt());
+    assertEquals(2, group.getAsJsonArray("member").size());
+
+    assertTrue(Files.exists(output.resolve("fhir/p1.json")));
+  }
+
+  @Test(expected = java.io.IOException.class)
+  public void testPayersWithoutTotals() throws Exception {
+    Path shard1 = shard("shard1");
+    Path shard2 = shard("shard2");
+    write(shard1.resolve("csv/payers.csv"), PAYERS_HEADER);
+    write(shard2.resolve("csv/payers.csv"), PAYERS_HEADER);
+    ShardMerger.merge(Arrays.asList(shard1, shard2), tempFolder.newFolder("merged").toPath());
+  }
+
+  @Test
+  public void testMergedShardsMatchUnshardedRun() throws Exception {
+    TestHelper.exportOff();
+    TestHelper.loadTestProperties();
+    Generator.DEFAULT_STATE = Config.get("test_state.default", "Massachusetts");
+    Config.set("exporter.csv.export", "true");
+    Config.set("exporter.csv.folder_per_run", "false");
+    Config.set("exporter.csv.append_mode", "false");
+    Config.set("exporter.csv.included_files", "");
+    Config.set("exporter.csv.excluded_files", "");
+    long endTime = System.currentTimeMillis();
+    int shardCount = 3;
+    try {
+      Path unsharded = run(endTime, 0, 1);
+      List<Path> shards = new ArrayList<>();
+      for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+        shards.add(run(endTime, shardIndex, shardCount));
+      }
+      Path merged = tempFolder.newFolder("merged").toPath();
+      ShardMerger.merge(shards, merged);
+
+      List<String> files = listFiles(unsharded.resolve("csv"));
+      assertEquals(files, listFiles(merged.resolve("csv")));
+      for (String file : files) {
+        assertSameRows(file, Files.readAllLines(unsharded.resolve("csv").resolve(file)),
+            Files.readAllLines(merged.resolve("csv").resolve(file)));
+      }
+    } finally {
+      Config.set("exporter.csv.export", "false");
+    }
+  }
+
+  /**
+   * Run a shard of a small population, exporting CSV to a new folder.
+   */
+  private Path run(long endTime, int shardIndex, int shardCount) throws Exception {
+    File output = tempFolder.newFolder();
+    Config.set("exporter.baseDirectory", output.toString());
+    CSVExporter.getInstance().init();
+    Provider.clear();
+    Payer.clear();
+    Generator.GeneratorOptions opts = new Generator.GeneratorOptions();
+    opts.population = 7;
+    opts.seed = 2468L;
+    opts.clinicianSeed = 2468L;
+    opts.endTime = endTime;
+    opts.shardIndex = shardIndex;
+    opts.shardCount = shardCount;
+    new Generator(opts).run();
+    return output.toPath();
+  }
+
+  private static List<String> listFiles(Path folder) throws Exception {
+    try (Stream<Path> files = Files.list(folder)) {
+      return files.map(file -> file.getFileName().toString())
+          .filter(name -> !name.equals(CSVExporter.PAYER_TOTALS))
+          .sorted().collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Check that two CSV files have the same header and rows, in any order. Totals summed in a
+   * different order can differ in their last bits, so numbers only need to be very close.
+   */
+  private static void assertSameRows(String file, List<String> expected, List<String> actual) {
+    assertEquals(file, expected.get(0), actual.get(0));
+    List<String> expectedRows = new ArrayList<>(expected.subList(1, expected.size()));
+    List<String> actualRows = new ArrayList<>(actual.subList(1, actual.size()));
+    Collections.sort(expectedRows);
+    Collections.sort(actualRows);
+    assertEquals(file, expectedRows.size(), actualRows.size());
+    for (int i = 0; i < expectedRows.size(); i++) {
+      String[] expectedCells = expectedRows.get(i).split(",", -1);
+      String[] actualCells = actualRows.get(i).split(",", -1);
+      assertEquals(file + ": " + actualRows.get(i), expectedCells.length, actualCells.length);
+      for (int j = 0; j < expectedCells.length; j++) {
+        if (expectedCells[j].equals(actualCells[j])) {
+          continue;
+        }
+        String message = file + ": " + expectedRows.get(i) + " != " + actualRows.get(i);
+        double value = Double.parseDouble(expectedCells[j]);
+        assertEquals(message, value, Double.parseDouble(actualCells[j]),
+            Math.abs(value) * 1e-9 + 0.01);
+      }
+    }
+  }
+}
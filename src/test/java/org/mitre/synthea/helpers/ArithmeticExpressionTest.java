@@ -0,0 +1,70 @@
+package org.mitre.synthea.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class ArithmeticExpressionTest {
+  private static BigDecimal evaluate(String expression, String... values) {
+    ArithmeticExpression arithmetic = ArithmeticExpression.parse(expression, param -> true);
+    assertNotNull(expression, arithmetic);
+    BigDecimal[] decimals = new BigDecimal[values.length];
+    for (int i = 0; i < values.length; i++) {
+      decimals[i] = new BigDecimal(values[i]);
+    }
+    return arithmetic.evaluate(decimals);
+  }
+
+  @Test
+  public void testScale() {
+    // results keep the scale of the exact result, as the CQL Decimal operators do
+    assertEquals(new BigDecimal("0.3"), evaluate("#{a} + #{b}", "0.1", "0.2"));
+    assertEquals(new BigDecimal("3.000"), evaluate("#{a} * #{b}", "1.50", "2.0"));
+    assertEquals(new BigDecimal("12.5"), evaluate("25 / 2"));
+    assertEquals(new BigDecimal("5"), evaluate("#{a} / #{b}", "10", "2"));
+    assertEquals(new BigDecimal("-1.25"), evaluate("-#{a}", "1.25"));
+  }
+
+  @Test
+  public void testTruncation() {
+    // anything past 8 decimal places is rounded toward negative infinity
+    assertEquals(new BigDecimal("0.33333333"), evaluate("#{a} / 3", "1"));
+    assertEquals(new BigDecimal("-0.33333334"), evaluate("#{a} / 3", "-1"));
+    assertEquals(new BigDecimal("0.66666666"), evaluate("2 / #{a}", "3"));
+    assertEquals(new BigDecimal("0.00000001"), evaluate("#{a} * #{b}", "0.0001", "0.00012"));
+    assertEquals(new BigDecimal("-0.00000002"), evaluate("#{a} * #{b}", "-0.0001", "0.00012"));
+    assertEquals(new BigDecimal("1.00000000"), evaluate("#{a} + #{b}", "1", "0.000000001"));
+  }
+
+  @Test
+  public void testDivideByZero() {
+    assertNull(evaluate("#{a} / #{b}", "1", "0"));
+    assertNull(evaluate("#{a} / #{b}", "1", "0.000"));
+    // null propagates through the rest of the expression
+    assertNull(evaluate("(#{a} / #{b}) + 1.5", "1", "0"));
+    assertNull(evaluate("-(#{a} / 0)", "1"));
+  }
+
+  @Test
+  public void testOutOfRange() {
+    assertEquals(new BigDecimal("99999999999999999999"),
+        evaluate("#{a} + #{b}", "99999999999999999998", "1"));
+    try {
+      evaluate("#{a} + #{b}", "99999999999999999999.99999999", "0.00000001");
+      fail("Expected the sum to be out of range");
+    } catch (ArithmeticExpression.OutOfRangeException e) {
+      // expected, the CQL engine evaluates it instead
+    }
+    try {
+      evaluate("#{a} * #{b}", "-100000000000", "1000000000000");
+      fail("Expected the product to be out of range");
+    } catch (ArithmeticExpression.OutOfRangeException e) {
+      // expected, the CQL engine evaluates it instead
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package org.mitre.synthea.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BoundedExecutorTest {
+
+  @Test
+  public void testOutstandingTasksNeverExceedBound() throws Exception {
+    int bound = 3;
+    BoundedExecutor executor = new BoundedExecutor(Executors.newFixedThreadPool(2), bound);
+    AtomicInteger running = new AtomicInteger(0);
+    AtomicInteger maxOutstanding = new AtomicInteger(0);
+    AtomicInteger completed = new AtomicInteger(0);
+    for (int i = 0; i < 50; i++) {
+      executor.submit(() -> {
+        running.incrementAndGet();
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        completed.incrementAndGet();
+      });
+      maxOutstanding.accumulateAndGet(executor.getOutstanding(), Math::max);
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    assertEquals(50, completed.get());
+    assertTrue(maxOutstanding.get() <= bound);
+    assertTrue(executor.getMaxOutstanding() >= maxOutstanding.get());
+    assertTrue(executor.getMaxOutstanding() <= bound);
+    assertEquals(0, executor.getOutstanding());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBound() {
+    new BoundedExecutor(Executors.newSingleThreadExecutor(), 0);
+  }
+}
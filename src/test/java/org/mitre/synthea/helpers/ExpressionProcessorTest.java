@@ -1,13 +1,16 @@
 package org.mitre.synthea.helpers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.Test;
 import org.mitre.synthea.world.agents.Person;
@@ -28,6 +31,31 @@ public class ExpressionProcessorTest {
     assertEquals(81L, result.doubleValue(), 0.001);
   } 
   
+  @Test
+  public void testNativeArithmeticMatchesCql() {
+    String[] expressions = { "25 / 2", "#{a} / 3", "#{a} * #{b} - 2.5",
+        "-(#{a} + 1) / (#{b} - 7)", "2 * (#{a} + 0.125) / #{b} * 3" };
+    Random random = new Random(7L);
+    for (String expression : expressions) {
+      ExpressionProcessor expProcessor = new ExpressionProcessor(expression);
+      assertTrue(expProcessor.isNativeArithmetic());
+      for (int i = 0; i < 500; i++) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        for (String param : expProcessor.getParamNames()) {
+          params.put(param, random.nextBoolean()
+              ? new BigDecimal(random.nextInt(20000) - 10000).movePointLeft(random.nextInt(4))
+              : new BigDecimal(random.nextDouble() * 20));
+        }
+        // the same value and the same scale
+        assertEquals(expression + " " + params, expProcessor.evaluateCql(params),
+            expProcessor.evaluate(params));
+      }
+    }
+
+    assertFalse(new ExpressionProcessor("10 + 3").isNativeArithmetic());
+    assertFalse(new ExpressionProcessor("Max({ #{a}, 2.0 })").isNativeArithmetic());
+  }
+
   @Test
   public void testWithPersonAttributes() {
     Person p = new Person(0L);
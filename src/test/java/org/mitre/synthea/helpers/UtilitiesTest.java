@@ -8,6 +8,7 @@ import com.google.gson.JsonPrimitive;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Random;
 import org.junit.Test;
 import org.mitre.synthea.world.agents.Person;
 
@@ -221,4 +222,19 @@ public class UtilitiesTest {
     // IllegalArgumentException
     Utilities.strToObject(Date.class, "oops");
   }
+
+  @Test
+  public void testSkipAheadRandom() {
+    long seed = 987654321L;
+    Random sequential = new Random(seed);
+    for (int i = 0; i < 1000; i++) {
+      long expected = sequential.nextLong();
+      assertEquals(expected, Utilities.skipAheadRandom(seed, i).nextLong());
+    }
+    // the skipped-ahead generator continues the same sequence
+    Random skipped = Utilities.skipAheadRandom(seed, 1000);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(sequential.nextLong(), skipped.nextLong());
+    }
+  }
 }
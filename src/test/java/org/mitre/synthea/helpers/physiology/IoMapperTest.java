@@ -2,10 +2,18 @@ package org.mitre.synthea.helpers.physiology;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -169,4 +177,63 @@ public class IoMapperTest {
     assertEquals(6.0, (double) testMapper.getOutputResult(mockResults, 0), 0.0001);
     
   }
+
+  private static MultiTable getMockResults() {
+    double[] timePoints = {0,1,2,3};
+    double[][] mockData = {{0.0}, {1.0}, {2.0}, {3.0}};
+    return new MultiTable(timePoints, mockData, new String[] {"model_output"});
+  }
+
+  @Test
+  public void ioMapperExpressionOnThreadsTest() throws Exception {
+    // an output mapped only by an expression, shared by several threads
+    testMapper.setTo("test attribute");
+    testMapper.setType(IoMapper.IoType.ATTRIBUTE);
+    testMapper.setFromExp("Sum(#{model_output})");
+    Map<String, String> paramTypes = new HashMap<String, String>();
+    paramTypes.put("model_output", "List<Decimal>");
+    MultiTable mockResults = getMockResults();
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Object>> results = new ArrayList<Future<Object>>();
+      for (int i = 0; i < 16; i++) {
+        results.add(executor.submit(() -> {
+          IoMapper copy = new IoMapper(testMapper);
+          copy.initialize(paramTypes);
+          return copy.getOutputResult(mockResults, 0);
+        }));
+      }
+      for (Future<Object> result : results) {
+        assertEquals(6.0, (double) result.get(), 0.0001);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void ioMapperSerializationTest() throws Exception {
+    testMapper.setTo("test attribute");
+    testMapper.setType(IoMapper.IoType.ATTRIBUTE);
+    testMapper.setFromExp("Sum(#{model_output})");
+    testMapper.setVariance(0.5);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(testMapper);
+    }
+    IoMapper read;
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      read = (IoMapper) in.readObject();
+    }
+    assertEquals(0.5, read.getVariance(), 0.0);
+
+    // the deserialized mapper gets its own expression processors
+    Map<String, String> paramTypes = new HashMap<String, String>();
+    paramTypes.put("model_output", "List<Decimal>");
+    read.initialize(paramTypes);
+    assertEquals(6.0, (double) read.getOutputResult(getMockResults(), 0), 0.0001);
+  }
 }
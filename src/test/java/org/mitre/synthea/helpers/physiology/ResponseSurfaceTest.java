@@ -0,0 +1,67 @@
+package org.mitre.synthea.helpers.physiology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResponseSurfaceTest {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  /**
+   * Returns a surface of f(a, b) = 2a + 3b + 1 over a in [0, 2] and b in [10, 13].
+   */
+  private static ResponseSurface getLinearSurface() {
+    double[] min = {0.0, 10.0};
+    double[] step = {1.0, 1.5};
+    int[] points = {3, 3};
+    double[] values = new double[9];
+    for (int a = 0; a < points[0]; a++) {
+      for (int b = 0; b < points[1]; b++) {
+        values[a * points[1] + b] = 2.0 * (min[0] + a * step[0])
+            + 3.0 * (min[1] + b * step[1]) + 1.0;
+      }
+    }
+    return new ResponseSurface("fingerprint", new String[] {"a", "b"}, min, step, points,
+        new String[] {"Systolic Blood Pressure"}, new double[][] {values});
+  }
+
+  @Test
+  public void testInterpolation() {
+    ResponseSurface surface = getLinearSurface();
+    int output = surface.indexOfOutput("Systolic Blood Pressure");
+    assertEquals(0, output);
+    assertEquals(-1, surface.indexOfOutput("Diastolic Blood Pressure"));
+
+    // a linear function is interpolated exactly, on and between the grid points
+    assertEquals(31.0, surface.interpolate(output, new double[] {0.0, 10.0}), 1e-9);
+    assertEquals(2.0 * 1.25 + 3.0 * 11.2 + 1.0,
+        surface.interpolate(output, new double[] {1.25, 11.2}), 1e-9);
+    assertEquals(2.0 * 2.0 + 3.0 * 13.0 + 1.0,
+        surface.interpolate(output, new double[] {2.0, 13.0}), 1e-9);
+
+    // inputs outside of the ranges are clamped to the edges
+    assertEquals(2.0 * 0.0 + 3.0 * 13.0 + 1.0,
+        surface.interpolate(output, new double[] {-5.0, 20.0}), 1e-9);
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    ResponseSurface surface = getLinearSurface();
+    File file = new File(tempFolder.getRoot(), "circulation.surface");
+    surface.write(file);
+
+    assertNull(ResponseSurface.read(file, "another fingerprint"));
+    assertNull(ResponseSurface.read(new File(tempFolder.getRoot(), "missing"), "fingerprint"));
+    ResponseSurface read = ResponseSurface.read(file, "fingerprint");
+    assertNotNull(read);
+    double[] x = {0.4, 12.1};
+    assertEquals(surface.interpolate(0, x), read.interpolate(0, x), 0.0);
+  }
+}
@@ -0,0 +1,46 @@
+package org.mitre.synthea.helpers.physiology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Test;
+import org.simulator.math.odes.MultiTable;
+
+public class SimulationCacheTest {
+
+  @After
+  public void clear() {
+    SimulationCache.clear();
+  }
+
+  @Test
+  public void testBuckets() {
+    // values within the same variance-wide bucket share a representative value
+    long bucket = SimulationCache.bucket(120.2, 0.5);
+    assertEquals(bucket, SimulationCache.bucket(120.4, 0.5));
+    assertNotEquals(bucket, SimulationCache.bucket(120.6, 0.5));
+    assertEquals(120.25, SimulationCache.representative(bucket, 0.5), 1e-9);
+    assertEquals(-1L, SimulationCache.bucket(-0.1, 0.5));
+
+    // inputs without a variance are used exactly
+    long exact = SimulationCache.bucket(1.2345, 0.0);
+    assertNotEquals(exact, SimulationCache.bucket(1.2346, 0.0));
+    assertEquals(1.2345, SimulationCache.representative(exact, 0.0), 0.0);
+  }
+
+  @Test
+  public void testGetAndPut() {
+    SimulationCache.Key key = new SimulationCache.Key("model", new long[] { 1L, 2L });
+    assertNull(SimulationCache.get(key));
+    MultiTable results = new MultiTable();
+    SimulationCache.put(key, results);
+    assertSame(results,
+        SimulationCache.get(new SimulationCache.Key("model", new long[] { 1L, 2L })));
+    assertNull(SimulationCache.get(new SimulationCache.Key("other", new long[] { 1L, 2L })));
+    assertEquals(1L, SimulationCache.getHits());
+    assertEquals(2L, SimulationCache.getMisses());
+  }
+}
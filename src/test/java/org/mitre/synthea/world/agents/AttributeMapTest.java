@@ -0,0 +1,142 @@
+package org.mitre.synthea.world.agents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AttributeMapTest {
+
+  @Test
+  public void testWellKnownAttributesHaveSlots() {
+    assertTrue(AttributeRegistry.slotOf(Person.BIRTHDATE) >= 0);
+    assertTrue(AttributeRegistry.slotOf(Person.GENDER) >= 0);
+    assertEquals(-1, AttributeRegistry.slotOf("some gmf attribute that is not well-known"));
+    assertEquals(Person.GENDER, AttributeRegistry.nameOf(AttributeRegistry.slotOf(Person.GENDER)));
+  }
+
+  @Test
+  public void testMatchesHashMap() {
+    Random random = new Random(11L);
+    String[] keys = { Person.BIRTHDATE, Person.GENDER, Person.INCOME, Person.SMOKER,
+        "gmf_attribute_1", "gmf_attribute_2", "gmf_attribute_3" };
+    AttributeMap attributes = new AttributeMap();
+    Map<String, Object> expected = new HashMap<String, Object>();
+
+    for (int i = 0; i < 10000; i++) {
+      String key = keys[random.nextInt(keys.length)];
+      Object value = random.nextBoolean() ? (Object) (double) random.nextInt(4)
+          : (Object) random.nextInt(4);
+      switch (random.nextInt(5)) {
+        case 0:
+        case 1:
+          assertEquals(expected.put(key, value), attributes.put(key, value));
+          break;
+        case 2:
+          assertEquals(expected.remove(key), attributes.remove(key));
+          break;
+        case 3:
+          attributes.putDouble(key, 0.5);
+          expected.put(key, 0.5);
+          break;
+        default:
+          double value2 = expected.containsKey(key)
+              ? ((Number) expected.get(key)).doubleValue() : -1.0;
+          assertEquals(value2, attributes.getDouble(key, -1.0), 0.0);
+          break;
+      }
+      assertEquals(expected.containsKey(key), attributes.containsKey(key));
+      assertEquals(expected.get(key), attributes.get(key));
+      assertEquals(expected.size(), attributes.size());
+    }
+    assertEquals(expected, attributes);
+    assertEquals(attributes, expected);
+    assertEquals(expected.hashCode(), attributes.hashCode());
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullValuesRejected() {
+    new AttributeMap().put(Person.GENDER, null);
+  }
+
+  @Test
+  public void testReplaceWhileIterating() {
+    AttributeMap attributes = new AttributeMap();
+    attributes.put(Person.GENDER, "F");
+    attributes.put("gmf_attribute", "a");
+    attributes.forEach((key, value) -> attributes.put(key, value + "!"));
+    assertEquals("F!", attributes.get(Person.GENDER));
+    assertEquals("a!", attributes.get("gmf_attribute"));
+
+    Iterator<Map.Entry<String, Object>> iterator = attributes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getKey().equals(Person.GENDER)) {
+        iterator.remove();
+      }
+    }
+    assertFalse(attributes.containsKey(Person.GENDER));
+    assertEquals(1, attributes.size());
+  }
+
+  @Test
+  public void testAddAndRemoveWhileIterating() {
+    AttributeMap attributes = new AttributeMap();
+    attributes.put(Person.GENDER, "F");
+    attributes.put(Person.BIRTHDATE, 0L);
+    attributes.put("gmf_attribute", "a");
+    // iterators are weakly consistent, like those of the ConcurrentHashMap this replaces
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      attributes.remove(Person.BIRTHDATE);
+      attributes.put(Person.INCOME, 1);
+      attributes.put("gmf_attribute_" + entry.getKey(), entry.getValue());
+    }
+    assertFalse(attributes.containsKey(Person.BIRTHDATE));
+    assertEquals(1, attributes.get(Person.INCOME));
+    assertEquals("F", attributes.get("gmf_attribute_" + Person.GENDER));
+    assertEquals("a", attributes.get("gmf_attribute"));
+  }
+
+  @Test
+  public void testLateRegistration() {
+    String key = "attribute_registered_after_use";
+    AttributeMap attributes = new AttributeMap();
+    attributes.put(key, 3.0);
+    AttributeRegistry.register(key);
+    assertEquals(3.0, attributes.get(key));
+    assertEquals(1, attributes.size());
+    attributes.putDouble(key, 4.0);
+    assertEquals(4.0, attributes.getDouble(key, 0.0), 0.0);
+    assertEquals(1, attributes.size());
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    AttributeMap attributes = new AttributeMap();
+    attributes.put(Person.BIRTHDATE, 123456789L);
+    attributes.putDouble("most-recent-qaly", 12.5);
+    attributes.put("gmf_attribute", "value");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(attributes);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    AttributeMap copy = (AttributeMap) in.readObject();
+
+    assertEquals(attributes, copy);
+    assertEquals(123456789L, copy.get(Person.BIRTHDATE));
+    assertEquals(12.5, copy.getDouble("most-recent-qaly", 0.0), 0.0);
+    assertNull(copy.get(Person.GENDER));
+  }
+}
@@ -12,6 +12,10 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.Period;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -159,6 +163,38 @@ public class PersonTest {
     testAgeMonths(birthdate, now, 11);
   }
 
+  @Test
+  public void testAgeMatchesPeriod() {
+    ZoneId zone = ZoneId.systemDefault();
+    Random random = new Random(7L);
+    long hour = 60 * 60 * 1000L;
+    for (int i = 0; i < 200; i++) {
+      long birthdate = timestamp(1900, 1, 1, 0, 0, 0)
+          + (long) (random.nextDouble() * TestHelper.years(120));
+      person.attributes.put(Person.BIRTHDATE, birthdate);
+      LocalDate birthday = Instant.ofEpochMilli(birthdate).atZone(zone).toLocalDate();
+      long time = birthdate - TestHelper.years(1);
+      for (int step = 0; step < 300; step++) {
+        // several checks on the same day, then move forward by up to a few weeks
+        time += random.nextBoolean() ? random.nextInt(6) * hour : random.nextInt(600) * hour;
+        Period expected = Period.between(birthday,
+            Instant.ofEpochMilli(time).atZone(zone).toLocalDate());
+        assertEquals(expected, person.age(time));
+        assertEquals(Math.max(0, expected.getYears()), person.ageInYears(time));
+        assertEquals(Math.max(0, expected.toTotalMonths()), person.ageInMonths(time));
+        double decimalYears = expected.getYears() + expected.getMonths() / 12.0
+            + expected.getDays() / 365.2425;
+        assertEquals(Math.max(0, decimalYears), person.ageInDecimalYears(time), 0.0);
+      }
+    }
+    // a changed birthdate isn't answered from the previous day's age
+    long now = timestamp(2020, 6, 1, 12, 0, 0);
+    testAgeYears(timestamp(2000, 1, 1, 0, 0, 0), now, 20);
+    testAgeYears(timestamp(1990, 1, 1, 0, 0, 0), now, 30);
+    person.attributes.remove(Person.BIRTHDATE);
+    assertEquals(0, person.ageInYears(now));
+  }
+
   private void testAgeYears(long birthdate, long now, long expectedAge) {
     person.attributes.put(Person.BIRTHDATE, birthdate);
     assertEquals(expectedAge, person.ageInYears(now));
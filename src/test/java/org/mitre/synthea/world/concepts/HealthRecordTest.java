@@ -1,5 +1,9 @@
 package org.mitre.synthea.world.concepts;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -7,6 +11,7 @@ import org.mitre.synthea.world.agents.Payer;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
 import org.mitre.synthea.world.concepts.HealthRecord.EncounterType;
+import org.mitre.synthea.world.concepts.HealthRecord.Observation;
 import org.mitre.synthea.world.concepts.HealthRecord.Report;
 
 public class HealthRecordTest {
@@ -76,4 +81,80 @@ public class HealthRecordTest {
     Assert.assertEquals("B", report.observations.get(1).value);
     Assert.assertEquals("C", report.observations.get(2).value);
   } 
+
+  @Test
+  public void testLatestObservation() {
+    Person person = new Person(0L);
+    person.setPayerAtTime(time, noInsurance);
+    HealthRecord record = new HealthRecord(person);
+    Assert.assertNull(record.getLatestObservation("A"));
+    Assert.assertEquals(Long.MAX_VALUE, record.timeSinceLastWellnessEncounter(time));
+
+    Encounter wellness = record.encounterStart(time, EncounterType.WELLNESS);
+    record.observation(time, "A", 1);
+    record.observation(time, "A", 2);
+    Assert.assertEquals(1, record.getLatestObservation("A").value);
+
+    Encounter ambulatory = record.encounterStart(time + 10, EncounterType.AMBULATORY);
+    record.observation(time + 10, "A", 3);
+    Assert.assertEquals(3, record.getLatestObservation("A").value);
+    // adding to an earlier encounter doesn't make it the latest
+    wellness.addObservation(time + 20, "A", 4);
+    Assert.assertEquals(3, record.getLatestObservation("A").value);
+    Assert.assertEquals(30, record.timeSinceLastWellnessEncounter(time + 30));
+
+    // moving the observation into a panel falls back to the previous encounter
+    record.multiObservation(time + 10, "Panel", 1);
+    Assert.assertEquals(1, record.getLatestObservation("A").value);
+    Assert.assertEquals("Panel", record.getLatestObservation("Panel").type);
+    Assert.assertNull(ambulatory.findObservation("A"));
+
+    // encounters added directly to the list are still found
+    Encounter direct = record.new Encounter(time + 40, EncounterType.WELLNESS.toString());
+    direct.addObservation(time + 40, "A", 5);
+    record.encounters.add(direct);
+    Assert.assertEquals(5, record.getLatestObservation("A").value);
+    Assert.assertEquals(10, record.timeSinceLastWellnessEncounter(time + 50));
+  }
+
+  @Test
+  public void testLatestObservationAfterListChanges() {
+    Person person = new Person(0L);
+    person.setPayerAtTime(time, noInsurance);
+    HealthRecord record = new HealthRecord(person);
+    Encounter first = record.encounterStart(time, EncounterType.WELLNESS);
+    record.observation(time, "A", 1);
+    Encounter second = record.encounterStart(time + 10, EncounterType.AMBULATORY);
+    record.observation(time + 10, "A", 2);
+    Assert.assertEquals(2, record.getLatestObservation("A").value);
+
+    // changes made straight to the lists keep the index up to date
+    Observation removed = second.observations.remove(0);
+    Assert.assertEquals(1, record.getLatestObservation("A").value);
+    second.observations.add(removed);
+    Assert.assertEquals(2, record.getLatestObservation("A").value);
+    Iterator<Observation> iterator = first.observations.iterator();
+    iterator.next();
+    iterator.remove();
+    second.observations.clear();
+    Assert.assertNull(record.getLatestObservation("A"));
+    first.observations.add(removed);
+    Assert.assertEquals(2, record.getLatestObservation("A").value);
+
+    // reordering the encounters changes which one is the latest
+    second.addObservation(time + 10, "A", 3);
+    Assert.assertEquals(3, record.getLatestObservation("A").value);
+    Collections.reverse(record.encounters);
+    Assert.assertEquals(2, record.getLatestObservation("A").value);
+    Assert.assertEquals(30, record.timeSinceLastWellnessEncounter(time + 30));
+
+    // a replaced list can't report changes, so the index is rebuilt every time
+    record.encounters = new ArrayList<Encounter>(record.encounters);
+    Assert.assertEquals(2, record.getLatestObservation("A").value);
+    record.encounters.remove(first);
+    Assert.assertEquals(3, record.getLatestObservation("A").value);
+    second.observations = new ArrayList<Observation>();
+    Assert.assertNull(record.getLatestObservation("A"));
+    Assert.assertEquals(Long.MAX_VALUE, record.timeSinceLastWellnessEncounter(time + 30));
+  }
 }